@@ -3,7 +3,13 @@
  * This class provides utilities for extracting and encoding ARGB values
  * from/to a 32-bit integer representation. Each color channel is stored
  * as an 8-bit value (0-255).
+ * 
+ * @deprecated Unpacking a pixel into an object allocates for every pixel
+ *             when escape analysis fails, as it does in larger loops. Use the
+ *             static methods of {@link Pixels}, which work on the packed int
+ *             directly; no filter in the project uses this class any more.
  */
+@Deprecated
 public class ARGB {
     /**
      * Alpha channel value (0-255).
@@ -35,10 +41,10 @@ public class ARGB {
      */
     public ARGB(int pixel) {
         // Extract different bits from pixel that stores the ARGB values
-        this.alpha = (pixel >> 24) & 0xff;
-        this.red = (pixel >> 16) & 0xff;
-        this.green = (pixel >> 8) & 0xff;
-        this.blue = pixel & 0xff;
+        this.alpha = Pixels.alpha(pixel);
+        this.red = Pixels.red(pixel);
+        this.green = Pixels.green(pixel);
+        this.blue = Pixels.blue(pixel);
     }
     
     /**
@@ -67,6 +73,6 @@ public class ARGB {
      */
     public int toInt() {
         // Encode the ARGB values into a single integer
-        return (this.alpha << 24) | (this.red << 16) | (this.green << 8) | blue;
+        return Pixels.pack(alpha, red, green, blue);
     }
 }
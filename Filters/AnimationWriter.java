@@ -0,0 +1,212 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes an animation one frame at a time, as an animated PNG or an animated
+ * GIF, so frames that are computed one after another are encoded as soon as
+ * they are ready and never held in memory together.
+ * 
+ * Animated PNGs keep every frame's full color and alpha and are written by
+ * {@link PngWriter#animated}, which compresses each frame in parallel. GIFs
+ * are written with ImageIO's GIF writer, which reduces each frame to a
+ * palette of at most 256 colors; they are larger and slower to write, but
+ * play everywhere. Every frame covers the whole canvas and replaces the
+ * previous one, and the animation loops forever.
+ */
+public final class AnimationWriter implements Closeable {
+    
+    /**
+     * How long each frame is shown by default, in milliseconds.
+     */
+    public static final int DEFAULT_FRAME_DELAY = 100;
+    
+    /**
+     * The file name extension of animations written as GIF.
+     */
+    public static final String GIF_EXTENSION = ".gif";
+    
+    /**
+     * The name of the GIF image metadata format of ImageIO.
+     */
+    private static final String GIF_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+    
+    /**
+     * The APNG writer, or null when writing a GIF.
+     */
+    private final PngWriter png;
+    
+    /**
+     * The GIF writer, its stream and the metadata of every frame, or null
+     * when writing an APNG.
+     */
+    private final ImageWriter gif;
+    private final ImageOutputStream gifOut;
+    private final IIOMetadata gifMetadata;
+    
+    /**
+     * The size of every frame, and the number of frames.
+     */
+    private final int width;
+    private final int height;
+    private final int frames;
+    
+    /**
+     * The number of frames written so far.
+     */
+    private int framesWritten;
+    
+    /**
+     * Starts an animation file, a GIF if the name ends in ".gif" and an
+     * animated PNG otherwise.
+     * 
+     * @param file The file to write, replaced if it exists
+     * @param width The width of every frame
+     * @param height The height of every frame
+     * @param frames The number of frames that will be written
+     * @param delayMillis How long each frame is shown, in milliseconds
+     * @param opaque Whether every frame is fully opaque, so an APNG can drop
+     *               the alpha channel
+     * @throws IOException If the file cannot be created
+     * @throws IllegalArgumentException If the number of frames or the delay
+     *         is out of range
+     */
+    public AnimationWriter(File file, int width, int height, int frames, int delayMillis, boolean opaque)
+            throws IOException {
+        if (frames < 1) {
+            throw new IllegalArgumentException("An animation needs at least one frame: " + frames);
+        }
+        if (delayMillis < 1 || delayMillis > PngWriter.MAX_FRAME_DELAY) {
+            throw new IllegalArgumentException("Frame delay must be 1-" + PngWriter.MAX_FRAME_DELAY
+                    + " ms: " + delayMillis);
+        }
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        if (!isGifName(file.getName())) {
+            png = PngWriter.animated(new BufferedOutputStream(new FileOutputStream(file)), width, height,
+                    opaque ? PngWriter.ColorType.RGB : PngWriter.ColorType.RGBA, frames, delayMillis);
+            gif = null;
+            gifOut = null;
+            gifMetadata = null;
+            return;
+        }
+        
+        png = null;
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext()) {
+            throw new IOException("No GIF writer available");
+        }
+        gif = writers.next();
+        file.delete();
+        gifOut = ImageIO.createImageOutputStream(file);
+        if (gifOut == null) {
+            throw new IOException("Cannot write " + file);
+        }
+        gif.setOutput(gifOut);
+        gifMetadata = createGifMetadata(delayMillis, opaque);
+        gif.prepareWriteSequence(null);
+    }
+    
+    /**
+     * Returns whether a file name has the GIF extension.
+     * 
+     * @param fileName The file name to check
+     * @return True if animations written under this name are GIFs
+     */
+    public static boolean isGifName(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(GIF_EXTENSION);
+    }
+    
+    /**
+     * Builds the metadata of every GIF frame: its delay in hundredths of a
+     * second, at least one, and the NETSCAPE2.0 extension that makes the
+     * animation loop forever. Frames with transparent pixels clear the canvas
+     * before the next frame, so earlier frames do not show through.
+     */
+    private IIOMetadata createGifMetadata(int delayMillis, boolean opaque) throws IOException {
+        ImageTypeSpecifier type = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB);
+        IIOMetadata metadata = gif.getDefaultImageMetadata(type, null);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(GIF_METADATA_FORMAT);
+        
+        IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", opaque ? "doNotDispose" : "restoreToBackgroundColor");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(Math.max(1, (delayMillis + 5) / 10)));
+        control.setAttribute("transparentColorIndex", "0");
+        root.appendChild(control);
+        
+        IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+        IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+        loop.setAttribute("applicationID", "NETSCAPE");
+        loop.setAttribute("authenticationCode", "2.0");
+        // Sub-block 1, then a loop count of 0, little-endian: forever
+        loop.setUserObject(new byte[] {1, 0, 0});
+        extensions.appendChild(loop);
+        root.appendChild(extensions);
+        
+        metadata.setFromTree(GIF_METADATA_FORMAT, root);
+        return metadata;
+    }
+    
+    /**
+     * Writes the next frame.
+     * 
+     * @param frame The pixels of the frame, which may be changed as soon as
+     *              this method returns
+     * @throws IOException If the frame cannot be written
+     * @throws IllegalArgumentException If the frame has the wrong size
+     * @throws IllegalStateException If all frames have been written
+     */
+    public void writeFrame(PixelBuffer frame) throws IOException {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("Frame is " + frame.getWidth() + "x" + frame.getHeight()
+                    + ", not " + width + "x" + height);
+        }
+        if (framesWritten == frames) {
+            throw new IllegalStateException("Animation has only " + frames + " frames");
+        }
+        if (png != null) {
+            png.writeRows(frame.getData(), frame.rowOffset(0), frame.getStride(), height);
+        } else {
+            gif.writeToSequence(new IIOImage(frame.toImage(), null, gifMetadata), null);
+        }
+        framesWritten++;
+    }
+    
+    /**
+     * Finishes and closes the file.
+     * 
+     * @throws IOException If the file cannot be written
+     * @throws IllegalStateException If not every frame has been written
+     */
+    @Override
+    public void close() throws IOException {
+        if (png != null) {
+            png.close();
+            return;
+        }
+        try {
+            if (framesWritten != frames) {
+                throw new IllegalStateException(framesWritten + " of " + frames + " frames have been written");
+            }
+            gif.endWriteSequence();
+        } finally {
+            gif.dispose();
+            gifOut.close();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Converts many image files with a single converter in one JVM.
+ * Every file passes through three stages: decode, process and PNG encode. Each
+ * stage runs on its own pool of worker threads, so the I/O-bound decoding and
+ * encoding of some files overlaps with the CPU-bound filtering of others.
+ * 
+ * To keep memory bounded, at most {@link #getMaxInFlight()} files are between
+ * the start of decoding and the end of encoding at any time. The thread that
+ * feeds the files waits for a file to finish before it starts decoding
+ * another one, so a slow stage holds back the stages before it instead of
+ * letting decoded images pile up in memory.
+ * 
+ * A file that cannot be read, processed or written is recorded as a failure in
+ * the {@link Report}; the remaining files are still converted. The report
+ * also adds up the {@link ConversionMetrics} of every converted file.
+ */
+public class BatchProcessor {
+    
+    /**
+     * Default number of decoding threads.
+     */
+    public static final int DEFAULT_DECODE_THREADS = 2;
+    
+    /**
+     * Default number of processing threads. The converter already spreads
+     * each image over its {@link ParallelEngine}, so one image at a time is
+     * usually enough to keep every core busy.
+     */
+    public static final int DEFAULT_PROCESS_THREADS = 1;
+    
+    /**
+     * Default number of encoding threads.
+     */
+    public static final int DEFAULT_ENCODE_THREADS = 2;
+    
+    /**
+     * The converter applied to every file.
+     */
+    private final Converter converter;
+    
+    /**
+     * The number of threads for each stage.
+     */
+    private final int decodeThreads;
+    private final int processThreads;
+    private final int encodeThreads;
+    
+    /**
+     * The largest number of files between decoding and encoding at once.
+     */
+    private final int maxInFlight;
+    
+    /**
+     * Creates a batch processor with the default stage sizes.
+     * 
+     * @param converter The converter applied to every file
+     */
+    public BatchProcessor(Converter converter) {
+        this(converter, DEFAULT_DECODE_THREADS, DEFAULT_PROCESS_THREADS, DEFAULT_ENCODE_THREADS, 0);
+    }
+    
+    /**
+     * Creates a batch processor with the given stage sizes.
+     * 
+     * @param converter The converter applied to every file
+     * @param decodeThreads The number of threads reading and decoding files
+     * @param processThreads The number of threads running the converter
+     * @param encodeThreads The number of threads encoding and writing PNG files
+     * @param maxInFlight The largest number of files held in memory at once, or
+     *                    0 for twice the total number of stage threads
+     * @throws IllegalArgumentException If a thread count is less than 1 or
+     *                                  maxInFlight is negative
+     */
+    public BatchProcessor(Converter converter, int decodeThreads, int processThreads,
+                          int encodeThreads, int maxInFlight) {
+        if (decodeThreads < 1 || processThreads < 1 || encodeThreads < 1) {
+            throw new IllegalArgumentException("Every stage needs at least one thread: "
+                    + decodeThreads + "/" + processThreads + "/" + encodeThreads);
+        }
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight must not be negative: " + maxInFlight);
+        }
+        this.converter = converter;
+        this.decodeThreads = decodeThreads;
+        this.processThreads = processThreads;
+        this.encodeThreads = encodeThreads;
+        this.maxInFlight = maxInFlight > 0
+                ? maxInFlight
+                : 2 * (decodeThreads + processThreads + encodeThreads);
+    }
+    
+    /**
+     * Returns the largest number of files held in memory at once.
+     * 
+     * @return The in-flight limit
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+    
+    /**
+     * Lists the input files named by a path.
+     * A directory yields every file in it whose extension ImageIO can read, in
+     * name order. Any other file is read as a list of image paths, one per
+     * line; blank lines are ignored and relative paths are resolved against
+     * the list's directory.
+     * 
+     * @param path A directory of images or a text file listing images
+     * @return The image files to convert
+     * @throws IOException If the directory or list cannot be read
+     */
+    public static List<File> listInputs(File path) throws IOException {
+        List<File> inputs = new ArrayList<>();
+        if (path.isDirectory()) {
+            List<String> suffixes = Arrays.asList(ImageIO.getReaderFileSuffixes());
+            File[] files = path.listFiles();
+            if (files == null) {
+                throw new IOException("Cannot list directory " + path);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                int dotIndex = name.lastIndexOf('.');
+                if (file.isFile() && dotIndex >= 0
+                        && suffixes.contains(name.substring(dotIndex + 1).toLowerCase(Locale.ROOT))) {
+                    inputs.add(file);
+                }
+            }
+        } else {
+            File base = path.getAbsoluteFile().getParentFile();
+            for (String line : Files.readAllLines(path.toPath(), StandardCharsets.UTF_8)) {
+                String name = line.trim();
+                if (!name.isEmpty()) {
+                    File file = new File(name);
+                    inputs.add(file.isAbsolute() ? file : new File(base, name));
+                }
+            }
+        }
+        return inputs;
+    }
+    
+    /**
+     * Returns the file an input is written to.
+     * The output keeps the input's name with the extension replaced by
+     * ".png", since every output is encoded as PNG. Inputs that differ only
+     * in their extension, such as rgb.png and rgb.bmp, therefore share an
+     * output; {@link #run} converts the first of them and fails the others.
+     * 
+     * @param input The input file
+     * @param outputDir The directory receiving the outputs
+     * @return The output file
+     */
+    public static File getOutputFile(File input, File outputDir) {
+        String name = input.getName();
+        int dotIndex = name.lastIndexOf('.');
+        String baseName = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        return new File(outputDir, baseName + ".png");
+    }
+    
+    /**
+     * Converts every input file and writes the results to the output directory.
+     * This method returns once every file has either been written or failed.
+     * An input whose output file an earlier input already writes to fails
+     * without being decoded, so that no result silently overwrites another.
+     * 
+     * @param inputs The image files to convert
+     * @param outputDir The directory receiving the PNG outputs, created if needed
+     * @return A report of the converted and failed files
+     * @throws IOException If the output directory cannot be created
+     * @throws InterruptedException If the calling thread is interrupted while
+     *                              waiting for files to finish
+     */
+    @SuppressWarnings("try")
+    public Report run(List<File> inputs, File outputDir) throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        
+        ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads, namedThreads("decode"));
+        ExecutorService processors = Executors.newFixedThreadPool(processThreads, namedThreads("process"));
+        ExecutorService encoders = Executors.newFixedThreadPool(encodeThreads, namedThreads("encode"));
+        Semaphore slots = new Semaphore(maxInFlight);
+        CountDownLatch done = new CountDownLatch(inputs.size());
+        String converterName = converter.getClass().getSimpleName();
+        Report report = new Report(converterName);
+        long start = System.nanoTime();
+        
+        Map<File, File> claimed = new HashMap<>();
+        
+        try {
+            for (File input : inputs) {
+                File output = getOutputFile(input, outputDir);
+                File other = claimed.putIfAbsent(output.getAbsoluteFile(), input);
+                if (other != null) {
+                    report.fail(input, new IOException("Output " + output + " is already written for " + other));
+                    done.countDown();
+                    continue;
+                }
+                
+                // Backpressure: wait until a file leaves the pipeline
+                slots.acquire();
+                ConversionMetrics metrics = new ConversionMetrics(converterName);
+                Runnable finish = () -> {
+                    slots.release();
+                    done.countDown();
+                };
+                
+                // Each stage hands its result to the next stage's pool
+                decoders.execute(() -> {
+                    BufferedImage img;
+                    try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.DECODE)) {
+                        img = ImageDecoder.getDefault().read(input);
+                        if (img == null) {
+                            throw new IOException("Unsupported image format");
+                        }
+                        metrics.recordImage(img.getWidth(), img.getHeight());
+                    } catch (IOException | RuntimeException | Error e) {
+                        report.fail(input, e);
+                        finish.run();
+                        return;
+                    }
+                    processors.execute(() -> {
+                        BufferedImage processedImg;
+                        try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.PROCESS)) {
+                            processedImg = converter.processImage(img);
+                        } catch (RuntimeException | Error e) {
+                            report.fail(input, e);
+                            finish.run();
+                            return;
+                        }
+                        encoders.execute(() -> {
+                            try {
+                                try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.ENCODE)) {
+                                    PngWriter.write(processedImg, output);
+                                }
+                                report.succeed(metrics);
+                            } catch (IOException | RuntimeException | Error e) {
+                                report.fail(input, e);
+                            } finally {
+                                finish.run();
+                            }
+                        });
+                    });
+                });
+            }
+            done.await();
+        } finally {
+            decoders.shutdownNow();
+            processors.shutdownNow();
+            encoders.shutdownNow();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+    
+    /**
+     * Creates a factory for daemon threads named after a stage, so that an
+     * unfinished batch never keeps the JVM alive.
+     * 
+     * @param stage The name of the stage
+     * @return A factory for the stage's threads
+     */
+    private static ThreadFactory namedThreads(String stage) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "pixelcraft-" + stage + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * The outcome of a batch run.
+     */
+    public static final class Report {
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final Map<File, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final ConversionMetrics metrics;
+        private long elapsedNanos;
+        
+        private Report(String converterName) {
+            this.metrics = new ConversionMetrics(converterName);
+        }
+        
+        private void succeed(ConversionMetrics fileMetrics) {
+            succeeded.incrementAndGet();
+            metrics.add(fileMetrics);
+        }
+        
+        private void fail(File input, Throwable e) {
+            failures.put(input, e);
+        }
+        
+        /**
+         * Returns the number of files that were converted and written.
+         * 
+         * @return The success count
+         */
+        public int getSucceeded() {
+            return succeeded.get();
+        }
+        
+        /**
+         * Returns the files that could not be converted, in the order they
+         * failed, together with the cause.
+         * 
+         * @return The failed files and what went wrong
+         */
+        public Map<File, Throwable> getFailures() {
+            synchronized (failures) {
+                return new LinkedHashMap<>(failures);
+            }
+        }
+        
+        /**
+         * Returns the wall-clock time of the whole batch.
+         * 
+         * @return The elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+        
+        /**
+         * Returns the time and allocations of the decode, process and encode
+         * stages of the files that were converted, added up over all files.
+         * Stages of different files overlap, so their total time exceeds the
+         * elapsed time when the stage pools are busy at once.
+         * 
+         * @return The metrics of the converted files
+         */
+        public ConversionMetrics getMetrics() {
+            return metrics;
+        }
+    }
+}
@@ -1,62 +1,385 @@
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
+import java.util.Arrays;
 
 /**
- * Applies an intense 5x5 box blur effect to images while preserving transparency.
- * This implementation uses a 25-pixel neighborhood averaging technique to create
- * a strong blur effect. Each pixel's RGB values are replaced with the average
- * of all valid pixels in a 5x5 grid centered on that pixel.
+ * Applies a box blur effect to images while preserving transparency.
+ * Each pixel's RGB values are replaced with the average of all valid pixels in
+ * a square window centered on that pixel; near the image border the window is
+ * clipped to the image and the average is taken over the pixels that remain.
+ * The default radius of 2 gives an intense 5x5 blur.
+ * 
+ * The blur is computed separably with running sums: each row is first summed
+ * horizontally by sliding the window one pixel at a time (adding the pixel
+ * that enters and subtracting the one that leaves), then the row sums are
+ * combined vertically in the same way. The cost per pixel is therefore the
+ * same for every radius. Red and blue are summed together in the two halves
+ * of a long, and rows stream through the passes in ring buffers taken from
+ * the thread's {@link Scratch} space, so blurring a band allocates nothing
+ * but a few small objects.
+ * 
+ * In Gaussian mode the box blur is applied three times in a row, which closely
+ * approximates a Gaussian blur with a standard deviation of about
+ * sqrt(radius * (radius + 1)).
  */
 public class Blur extends Converter {
     
     /**
-     * Processes an image to apply intense 5x5 box blur effect.
-     * For each pixel, this method samples a 5x5 neighborhood and computes
-     * the average RGB values. The alpha channel is preserved from the original.
+     * Default blur radius, giving a 5x5 window.
+     */
+    public static final int DEFAULT_RADIUS = 2;
+    
+    /**
+     * Largest supported radius; larger windows could overflow the 32-bit
+     * halves of the sums.
+     */
+    public static final int MAX_RADIUS = 1024;
+    
+    /**
+     * Number of box blur passes used to approximate a Gaussian blur.
+     */
+    private static final int GAUSSIAN_PASSES = 3;
+    
+    /**
+     * The number of pixels the window extends on each side of its center.
+     */
+    private final int radius;
+    
+    /**
+     * The number of times the box blur is applied.
+     */
+    private final int passes;
+    
+    /**
+     * Creates an intense 5x5 box blur.
+     */
+    public Blur() {
+        this(DEFAULT_RADIUS);
+    }
+    
+    /**
+     * Creates a box blur with the given radius.
      * 
-     * @param img The input image to be blurred
-     * @return A new BufferedImage with the 5x5 box blur applied
+     * @param radius The number of pixels the window extends on each side
+     * @throws IllegalArgumentException If the radius is negative or above {@link #MAX_RADIUS}
+     */
+    public Blur(int radius) {
+        this(radius, false);
+    }
+    
+    /**
+     * Creates a box blur, or a three-pass approximation of a Gaussian blur.
+     * 
+     * @param radius The number of pixels the window extends on each side
+     * @param gaussian True to apply the box blur three times
+     * @throws IllegalArgumentException If the radius is negative or above {@link #MAX_RADIUS}
+     */
+    public Blur(int radius, boolean gaussian) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("radius must be between 0 and " + MAX_RADIUS + ": " + radius);
+        }
+        this.radius = radius;
+        this.passes = gaussian ? GAUSSIAN_PASSES : 1;
+    }
+    
+    /**
+     * Returns the number of pixels the window extends on each side.
+     * 
+     * @return The blur radius
+     */
+    public int getRadius() {
+        return radius;
+    }
+    
+    /**
+     * Returns whether this blur approximates a Gaussian with three passes.
+     * 
+     * @return True in Gaussian mode
+     */
+    public boolean isGaussian() {
+        return passes == GAUSSIAN_PASSES;
+    }
+    
+    /**
+     * The cache key includes the radius and mode.
+     * 
+     * @return The class name with the blur parameters
      */
     @Override
-    protected BufferedImage processImage(BufferedImage img) {
-        int width = img.getWidth();
-        int height = img.getHeight();
-        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    public String getCacheKey() {
+        return super.getCacheKey() + "(radius=" + radius + ",gaussian=" + isGaussian() + ")";
+    }
+    
+    /**
+     * Applies the blur to the requested rows.
+     * The rows, together with the halo rows every pass needs, are fed one at
+     * a time into a chain of {@link Pass}es. Each pass produces
+     * {@code radius} fewer rows on each side (except at the image border) and
+     * feeds every row it completes to the next, until the last pass writes
+     * exactly the requested rows. The alpha channel is preserved from the
+     * original.
+     * 
+     * @param src The pixels of the input image to be blurred
+     * @param dst The output buffer to write the blurred pixels to
+     * @param startY The first row to blur (inclusive)
+     * @param endY The last row to blur (exclusive)
+     */
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        if (startY >= endY) {
+            return;
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
         
-        // Process each pixel in the image
-        for (int y = 0; y < height; y++) {
+        // Rows of input needed by the first pass
+        int firstRow = Math.max(0, startY - getHaloRows());
+        int lastRow = Math.min(height, endY + getHaloRows());
+        
+        Scratch scratch = Scratch.acquire();
+        try {
+            // Chain the passes; each one shrinks the valid rows by the radius
+            Pass first = null;
+            Pass previous = null;
+            int validFrom = firstRow;
+            int validTo = lastRow;
+            for (int pass = 0; pass < passes; pass++) {
+                int outFrom = pass == passes - 1 ? startY : (validFrom == 0 ? 0 : validFrom + radius);
+                int outTo = pass == passes - 1 ? endY : (validTo == height ? height : validTo - radius);
+                Pass current = new Pass(scratch, pass, src, dst, validFrom, validTo, outFrom, outTo);
+                if (previous == null) {
+                    first = current;
+                } else {
+                    previous.next = current;
+                }
+                previous = current;
+                validFrom = outFrom;
+                validTo = outTo;
+            }
+            
+            // Feed the input rows, split into red and blue, and green
+            int[] in = src.getData();
+            long[] row = first.buffer;
+            for (int y = firstRow; y < lastRow; y++) {
+                int offset = src.rowOffset(y);
+                for (int x = 0; x < width; x++) {
+                    int pixel = in[offset + x];
+                    row[x] = Pixels.redBlue(pixel);
+                    row[width + x] = Pixels.green(pixel);
+                }
+                first.push();
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+    
+    /**
+     * One box blur pass over a range of rows, which receives its input one
+     * row at a time.
+     * The pass keeps the horizontal window sums of the rows its vertical
+     * window covers in a ring, and one running sum per column over them.
+     * Once the window of the next output row is complete, the row is divided
+     * out and passed on, the rows above the next window are subtracted, and
+     * their ring slots are reused. The ring holds 2 * radius + 2 rows, so a
+     * pass works on a few rows however tall the band is.
+     * 
+     * All values are longs holding red and blue in their two halves (see
+     * {@link Pixels#redBlue}), each followed by the same number of longs
+     * holding green. The window sums of a half are at most 2049 * 2049 * 255,
+     * which fits in its 32 bits.
+     */
+    private final class Pass {
+        
+        /**
+         * The values of the pass, {@code width} longs of red and blue and
+         * {@code width} of green each: the input row at 0, the column sums
+         * at 2 * width, and the ring of horizontal sums from 4 * width on.
+         */
+        private final long[] buffer;
+        
+        private final PixelBuffer src;
+        private final PixelBuffer dst;
+        private final int width;
+        private final int height;
+        
+        /**
+         * The first input row, and the output rows [outFrom, outTo).
+         */
+        private final int inFrom;
+        private final int outFrom;
+        private final int outTo;
+        
+        /**
+         * The number of rows in the ring, at most the number of input rows.
+         */
+        private final int ringRows;
+        
+        /**
+         * The column sums cover the input rows [sumFrom, sumTo); the next row
+         * pushed is sumTo, and the next row produced is nextOut.
+         */
+        private int sumFrom;
+        private int sumTo;
+        private int nextOut;
+        
+        /**
+         * The pass receiving the rows produced, or null if this is the last
+         * pass, which writes them to the output buffer.
+         */
+        private Pass next;
+        
+        /**
+         * Creates a pass with its buffer taken from a scratch slot and empty
+         * column sums.
+         */
+        private Pass(Scratch scratch, int slot, PixelBuffer src, PixelBuffer dst,
+                     int inFrom, int inTo, int outFrom, int outTo) {
+            this.src = src;
+            this.dst = dst;
+            this.width = src.getWidth();
+            this.height = src.getHeight();
+            this.inFrom = inFrom;
+            this.outFrom = outFrom;
+            this.outTo = outTo;
+            this.ringRows = Math.max(1, Math.min(2 * radius + 2, inTo - inFrom));
+            this.buffer = scratch.longs(slot, Math.toIntExact((4L + 2L * ringRows) * width));
+            Arrays.fill(buffer, 2 * width, 4 * width, 0);
+            this.sumFrom = inFrom;
+            this.sumTo = inFrom;
+            this.nextOut = outFrom;
+        }
+        
+        /**
+         * Takes the input row stored at the start of the buffer, and produces
+         * every output row whose window it completes.
+         */
+        private void push() {
+            // Free the ring slot of the new row
+            drop(sumTo - ringRows + 1);
+            long[] values = buffer;
+            int columns = 2 * width;
+            int ring = 4 * width + (sumTo - inFrom) % ringRows * 2 * width;
+            
+            // Start with the window around x = 0, which is clipped on the left
+            long redBlue = 0;
+            long green = 0;
+            for (int x = 0; x <= Math.min(radius, width - 1); x++) {
+                redBlue += values[x];
+                green += values[width + x];
+            }
+            
             for (int x = 0; x < width; x++) {
-                // Initialize RGB accumulators
-                int sumRed = 0, sumGreen = 0, sumBlue = 0;
-                int count = 0;
+                values[ring + x] = redBlue;
+                values[ring + width + x] = green;
+                values[columns + x] += redBlue;
+                values[columns + width + x] += green;
                 
-                // Sample 5x5 neighborhood (25 pixels)
-                for (int dy = -2; dy <= 2; dy++) {
-                    for (int dx = -2; dx <= 2; dx++) {
-                        int nx = x + dx;
-                        int ny = y + dy;
-                        
-                        // Verify pixel is within image bounds
-                        if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
-                            ARGB pixel = new ARGB(img.getRGB(nx, ny));
-                            sumRed += pixel.red;
-                            sumGreen += pixel.green;
-                            sumBlue += pixel.blue;
-                            count++;
-                        }
-                    }
+                // Slide the window: add the entering pixel, drop the leaving one
+                if (x + radius + 1 < width) {
+                    redBlue += values[x + radius + 1];
+                    green += values[width + x + radius + 1];
+                }
+                if (x - radius >= 0) {
+                    redBlue -= values[x - radius];
+                    green -= values[width + x - radius];
                 }
-                
-                // Preserve original alpha channel while applying blurred RGB
-                result.setRGB(x, y, new ARGB(
-                    img.getRGB(x, y) >>> 24,  // Original alpha
-                    sumRed / count,           // Averaged red
-                    sumGreen / count,         // Averaged green
-                    sumBlue / count           // Averaged blue
-                ).toInt());
+            }
+            sumTo++;
+            
+            while (nextOut < outTo && Math.min(height, nextOut + radius + 1) <= sumTo) {
+                drop(Math.max(0, nextOut - radius));
+                produce(nextOut++);
             }
         }
         
-        return result;
+        /**
+         * Subtracts the rows above a row from the column sums.
+         */
+        private void drop(int toRow) {
+            int columns = 2 * width;
+            for (; sumFrom < toRow; sumFrom++) {
+                int ring = 4 * width + (sumFrom - inFrom) % ringRows * 2 * width;
+                for (int x = 0; x < width; x++) {
+                    buffer[columns + x] -= buffer[ring + x];
+                    buffer[columns + width + x] -= buffer[ring + width + x];
+                }
+            }
+        }
+        
+        /**
+         * Divides the column sums by the number of pixels in each clipped
+         * window, which gives exactly the average of the window, and passes
+         * the row on or writes it out.
+         */
+        private void produce(int y) {
+            int countY = Math.min(y + radius, height - 1) - Math.max(y - radius, 0) + 1;
+            int columns = 2 * width;
+            if (next != null) {
+                long[] target = next.buffer;
+                for (int x = 0; x < width; x++) {
+                    int count = (Math.min(x + radius, width - 1) - Math.max(x - radius, 0) + 1) * countY;
+                    target[x] = Pixels.divideHalves(buffer[columns + x], count);
+                    target[width + x] = buffer[columns + width + x] / count;
+                }
+                next.push();
+                return;
+            }
+            int[] in = src.getData();
+            int[] out = dst.getData();
+            int srcRow = src.rowOffset(y);
+            int dstRow = dst.rowOffset(y);
+            for (int x = 0; x < width; x++) {
+                int count = (Math.min(x + radius, width - 1) - Math.max(x - radius, 0) + 1) * countY;
+                long redBlue = buffer[columns + x];
+                out[dstRow + x] = Pixels.withRgb(in[srcRow + x], (int) (Pixels.high(redBlue) / count),
+                        (int) (buffer[columns + width + x] / count), (int) (Pixels.low(redBlue) / count));
+            }
+        }
+    }
+    
+    /**
+     * Blurring averages a window of pixels around each output pixel.
+     * 
+     * @return {@link OperationKind#NEIGHBORHOOD}
+     */
+    @Override
+    public OperationKind getOperationKind() {
+        return OperationKind.NEIGHBORHOOD;
+    }
+    
+    /**
+     * Blurs the region from a copy of the pixels around it. The window is
+     * the same everywhere but at the image edges, so the copy needs only
+     * the halo on each side.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param region The output pixels to compute
+     */
+    @Override
+    protected void processRegion(PixelBuffer src, PixelBuffer dst, Rectangle region) {
+        processCrop(src, dst, region, getHaloRows());
+    }
+    
+    /**
+     * Previews with the radius divided by the subsampling factor, so the
+     * window covers the same part of the image.
+     * 
+     * @param subsampling The factor the input is reduced by
+     * @return A blur of the same mode with the reduced radius
+     */
+    @Override
+    protected Converter getPreviewConverter(int subsampling) {
+        return new Blur(scaleDown(radius, subsampling), isGaussian());
+    }
+    
+    /**
+     * Every pass reaches {@code radius} rows above and below its output rows.
+     * 
+     * @return The radius times the number of passes
+     */
+    @Override
+    public int getHaloRows() {
+        return radius * passes;
     }
 }
-
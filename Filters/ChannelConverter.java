@@ -0,0 +1,230 @@
+import java.util.List;
+
+/**
+ * Base class for point filters that transform each color channel on its own,
+ * such as Brighten and Invert.
+ * The new value of a channel depends only on the old value of the same
+ * channel, so the whole filter is described by four functions from 0-255 to
+ * 0-255. Subclasses declare these in {@link #transfer}; the first time the
+ * filter runs they are compiled into lookup tables, and every pixel after that
+ * costs four table lookups instead of per-pixel arithmetic and clamping.
+ * 
+ * Tables also compose: applying two channel filters one after the other is
+ * the same as a single table holding the second function of the first, so a
+ * {@link Pipeline} merges a run of consecutive channel filters into one
+ * {@link #compose composition} before processing any pixels. A chain of any
+ * number of channel filters costs one lookup per channel.
+ * 
+ * When every channel's table turns out to be {@code clamp(±value + c)}, as
+ * for Brighten, Invert and most chains of them, the filter runs as arithmetic
+ * on the vector {@link PixelKernels} instead, which process several pixels
+ * per instruction where table lookups can only do one.
+ * 
+ * Filters that mix channels, such as Grayscale and Sepia, are not channel
+ * filters; they extend {@link PointConverter} directly.
+ */
+public abstract class ChannelConverter extends PointConverter {
+    
+    /**
+     * The channels passed to {@link #transfer}, numbered by their byte
+     * position in a packed ARGB pixel.
+     */
+    public static final int BLUE = 0;
+    public static final int GREEN = 1;
+    public static final int RED = 2;
+    public static final int ALPHA = 3;
+    
+    /**
+     * Number of values of an 8-bit channel.
+     */
+    private static final int LEVELS = 256;
+    
+    /**
+     * The compiled lookup tables, one run of 256 entries per channel in
+     * channel order, or null before the first use. Entries are stored already
+     * shifted into their channel's position, so a pixel is the OR of four
+     * lookups.
+     */
+    private volatile int[] table;
+    
+    /**
+     * The factor and term of each channel if every channel's table is
+     * {@code clamp(value * scale + offset)} with a scale of 1 or -1, otherwise
+     * null. Written before {@link #table}, and only read after it.
+     */
+    private int[] scale;
+    private int[] offset;
+    
+    /**
+     * Maps one channel value to its new value.
+     * Called for all four channels, alpha included, and for every value from
+     * 0 to 255 when the table is compiled; results outside 0-255 are clamped,
+     * so implementations need not clamp themselves. The function must depend
+     * on its arguments and the converter's parameters only.
+     * 
+     * @param channel The channel, one of {@link #ALPHA}, {@link #RED},
+     *                {@link #GREEN} and {@link #BLUE}
+     * @param value The old value of the channel, 0-255
+     * @return The new value of the channel
+     */
+    protected abstract int transfer(int channel, int value);
+    
+    /**
+     * Returns the compiled lookup tables, compiling them on first use.
+     * Two threads may compile them at the same time, which is harmless since
+     * both produce the same tables.
+     * 
+     * @return The tables, indexed by channel * 256 + value
+     */
+    final int[] getTable() {
+        int[] compiled = table;
+        if (compiled == null) {
+            compiled = new int[4 * LEVELS];
+            for (int channel = BLUE; channel <= ALPHA; channel++) {
+                for (int value = 0; value < LEVELS; value++) {
+                    int result = Math.max(0, Math.min(LEVELS - 1, transfer(channel, value)));
+                    compiled[channel * LEVELS + value] = result << (8 * channel);
+                }
+            }
+            findAffine(compiled);
+            table = compiled;
+        }
+        return compiled;
+    }
+    
+    /**
+     * Checks whether each channel's table is {@code clamp(value * s + c)} for a
+     * scale s of 1 or -1 and some term c, and if so records s and c.
+     * 
+     * @param compiled The compiled tables
+     */
+    private void findAffine(int[] compiled) {
+        int[] scales = new int[4];
+        int[] offsets = new int[4];
+        for (int channel = BLUE; channel <= ALPHA; channel++) {
+            int base = channel * LEVELS;
+            int shift = 8 * channel;
+            boolean found = false;
+            for (int s = 1; s >= -1 && !found; s -= 2) {
+                // The term follows from any value that is not clamped; if all
+                // are, pick a term that clamps every value the same way
+                int max = LEVELS - 1;
+                int c = (compiled[base] >>> shift) == 0 ? (s > 0 ? -max : 0) : (s > 0 ? max : 2 * max);
+                for (int value = 0; value < LEVELS; value++) {
+                    int result = compiled[base + value] >>> shift;
+                    if (result > 0 && result < LEVELS - 1) {
+                        c = result - s * value;
+                        break;
+                    }
+                }
+                found = true;
+                for (int value = 0; value < LEVELS && found; value++) {
+                    int expected = Math.max(0, Math.min(LEVELS - 1, s * value + c));
+                    found = compiled[base + value] >>> shift == expected;
+                }
+                scales[channel] = s;
+                offsets[channel] = c;
+            }
+            if (!found) {
+                return;
+            }
+        }
+        scale = scales;
+        offset = offsets;
+    }
+    
+    /**
+     * Transforms a run of pixels with four table lookups per pixel, or with
+     * vector arithmetic when the tables have the form that allows it.
+     * 
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to transform
+     */
+    @Override
+    protected final void filterRow(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        int[] lut = getTable();
+        PixelKernels kernels = PixelKernels.getDefault();
+        if (scale != null) {
+            kernels.affine(scale, offset, lut, in, inOffset, out, outOffset, length);
+        } else {
+            kernels.lookup(lut, in, inOffset, out, outOffset, length);
+        }
+    }
+    
+    /**
+     * Composes channel filters into a single filter with the same effect as
+     * applying them in order. The composed tables are compiled right away.
+     * 
+     * @param converters The filters to compose, in order of application
+     * @return A filter applying all of them with one lookup per channel
+     * @throws IllegalArgumentException If the list is empty
+     */
+    public static ChannelConverter compose(List<? extends ChannelConverter> converters) {
+        if (converters.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to compose");
+        }
+        ChannelConverter composition = new Composition(converters);
+        composition.getTable();
+        return composition;
+    }
+    
+    /**
+     * Several channel filters applied one after another.
+     */
+    private static final class Composition extends ChannelConverter {
+        
+        /**
+         * The tables of the composed filters, in order of application.
+         */
+        private final int[][] tables;
+        
+        /**
+         * The cache key of the composition, or null if any filter has none.
+         */
+        private final String cacheKey;
+        
+        Composition(List<? extends ChannelConverter> converters) {
+            tables = new int[converters.size()][];
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < tables.length; i++) {
+                ChannelConverter converter = converters.get(i);
+                tables[i] = converter.getTable();
+                String converterKey = converter.getCacheKey();
+                if (key != null && converterKey != null) {
+                    key.append(i > 0 ? Pipeline.SEPARATOR : "").append(converterKey);
+                } else {
+                    key = null;
+                }
+            }
+            cacheKey = key != null ? key.toString() : null;
+        }
+        
+        /**
+         * Runs the value through the tables of every composed filter.
+         * 
+         * @param channel The channel
+         * @param value The old value of the channel
+         * @return The value after the last filter
+         */
+        @Override
+        protected int transfer(int channel, int value) {
+            for (int[] stage : tables) {
+                value = (stage[channel * LEVELS + value] >>> (8 * channel)) & 0xff;
+            }
+            return value;
+        }
+        
+        /**
+         * The key joins the keys of the composed filters.
+         * 
+         * @return The joined keys, or null if any filter has no key
+         */
+        @Override
+        public String getCacheKey() {
+            return cacheKey;
+        }
+    }
+}
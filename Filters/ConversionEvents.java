@@ -0,0 +1,123 @@
+/**
+ * Reports the stages of conversions and the bands and tiles of parallel work
+ * to a profiler.
+ * This class does nothing. When the JVM provides JDK Flight Recorder (module
+ * {@code jdk.jfr}, Java 11 and later), the subclass
+ * {@code FlightRecorderEvents} in the {@code jfr} directory overrides it to
+ * emit one Flight Recorder event for every timed {@link ConversionMetrics}
+ * stage and for every band and tile run by a {@link ParallelEngine}, so a
+ * recording shows which converter and which part of the image the time of
+ * each thread went to.
+ * 
+ * {@link #getDefault()} picks the Flight Recorder events when the class has
+ * been compiled and the module is available at run time, and this class
+ * otherwise; setting the system property {@code pixelcraft.jfr} to false
+ * forces this class. Events cost nothing unless a recording is running
+ * that enables them.
+ */
+public class ConversionEvents {
+    
+    /**
+     * The name of the Flight Recorder implementation, loaded by reflection so
+     * that this class compiles and runs without JFR.
+     */
+    private static final String FLIGHT_RECORDER_EVENTS = "FlightRecorderEvents";
+    
+    /**
+     * The events used by conversions.
+     */
+    private static volatile ConversionEvents defaultEvents;
+    
+    /**
+     * Creates events that report nothing.
+     */
+    protected ConversionEvents() {
+    }
+    
+    /**
+     * Returns the events used by conversions, the Flight Recorder events if
+     * they are available and not disabled, otherwise events that report
+     * nothing.
+     * 
+     * @return The default events
+     */
+    public static ConversionEvents getDefault() {
+        ConversionEvents events = defaultEvents;
+        if (events == null) {
+            synchronized (ConversionEvents.class) {
+                events = defaultEvents;
+                if (events == null) {
+                    events = Boolean.parseBoolean(System.getProperty("pixelcraft.jfr", "true"))
+                            ? loadFlightRecorderEvents() : new ConversionEvents();
+                    defaultEvents = events;
+                }
+            }
+        }
+        return events;
+    }
+    
+    /**
+     * Replaces the events used by conversions.
+     * 
+     * @param events The new default events
+     */
+    public static void setDefault(ConversionEvents events) {
+        defaultEvents = events;
+    }
+    
+    /**
+     * Creates the Flight Recorder events, or events that report nothing if
+     * they were not compiled or the JVM has no Flight Recorder.
+     */
+    private static ConversionEvents loadFlightRecorderEvents() {
+        try {
+            return (ConversionEvents) Class.forName(FLIGHT_RECORDER_EVENTS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return new ConversionEvents();
+        }
+    }
+    
+    /**
+     * Called when a stage of a conversion starts.
+     * 
+     * @param stage The stage that starts
+     * @return A handle passed to {@link #endStage}, or null
+     */
+    public Object beginStage(ConversionMetrics.Stage stage) {
+        return null;
+    }
+    
+    /**
+     * Called on the same thread when a stage of a conversion ends.
+     * 
+     * @param event The handle returned by {@link #beginStage}
+     * @param stage The stage that ended
+     * @param converter The name of the converter, or null if unknown
+     * @param pixels The number of pixels of the image converted, or 0 if not
+     *               known yet
+     */
+    public void endStage(Object event, ConversionMetrics.Stage stage, String converter, long pixels) {
+    }
+    
+    /**
+     * Returns the task a {@link ParallelEngine} runs for every band, which
+     * may report each band before passing it on.
+     * 
+     * @param task The work to run for each band
+     * @return The same task
+     */
+    public ParallelEngine.BandTask recordBands(ParallelEngine.BandTask task) {
+        return task;
+    }
+    
+    /**
+     * Returns the task a {@link ParallelEngine} runs for every tile, which
+     * may report each tile before passing it on.
+     * 
+     * @param task The work to run for each tile
+     * @return The same task
+     */
+    public ParallelEngine.TileTask recordTiles(ParallelEngine.TileTask task) {
+        return task;
+    }
+}
@@ -0,0 +1,322 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Measures where the time of conversions goes: the wall time and the bytes
+ * allocated in each {@link Stage} - decoding, processing, encoding and
+ * looking results up in a {@link ResultCache} - and
+ * the number of pixels converted, from which the throughput in megapixels
+ * per second follows.
+ * 
+ * A stage is measured by a {@link Timer}, started before the stage and
+ * closed after it, usually with try-with-resources:
+ * 
+ *   try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.DECODE)) {
+ *       img = decoder.read(file);
+ *   }
+ * 
+ * The timer is never referenced inside the block, so methods timing stages
+ * this way are annotated with {@code @SuppressWarnings("try")}.
+ * 
+ * A stage may be timed several times, as {@link StripProcessor} does for
+ * every strip, and the times add up. The metrics of several conversions are
+ * combined with {@link #add}; {@link BatchProcessor} and {@link ImageServer}
+ * keep totals this way. Every timed stage is also reported to
+ * {@link ConversionEvents}, so that it shows up in Flight Recorder.
+ * 
+ * Allocated bytes are read from the HotSpot ThreadMXBean for the thread
+ * that runs the stage. Images and output buffers are allocated there; what
+ * the {@link ParallelEngine}'s worker threads allocate, such as the
+ * compression buffers of {@link PngWriter}, is not counted. On JVMs without
+ * per-thread allocation counters the allocated bytes are reported as -1.
+ */
+public final class ConversionMetrics {
+    
+    /**
+     * The stages of a conversion.
+     */
+    public enum Stage {
+        
+        /**
+         * Reading and decoding the input.
+         */
+        DECODE,
+        
+        /**
+         * Running the converter.
+         */
+        PROCESS,
+        
+        /**
+         * Encoding and writing the output.
+         */
+        ENCODE,
+        
+        /**
+         * Hashing the input, and looking up, copying or storing the result in
+         * a {@link ResultCache}.
+         */
+        CACHE;
+        
+        /**
+         * Returns the name of the stage as used in JSON.
+         * 
+         * @return The lower-case stage name
+         */
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+    
+    /**
+     * The JVM's thread counters.
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    
+    /**
+     * The name of the converter measured, or null for totals over several
+     * converters.
+     */
+    private final String converter;
+    
+    /**
+     * The number of images converted and their pixels.
+     */
+    private long images;
+    private long pixels;
+    
+    /**
+     * The wall time and the allocated bytes of each stage, indexed by ordinal.
+     */
+    private final long[] nanos = new long[Stage.values().length];
+    private final long[] allocatedBytes = new long[Stage.values().length];
+    
+    /**
+     * Creates empty metrics for totals over several converters.
+     */
+    public ConversionMetrics() {
+        this(null);
+    }
+    
+    /**
+     * Creates empty metrics for a converter.
+     * 
+     * @param converter The name of the converter, included in the JSON and
+     *                  in the Flight Recorder events
+     */
+    public ConversionMetrics(String converter) {
+        this.converter = converter;
+    }
+    
+    /**
+     * Starts timing a stage on the calling thread.
+     * 
+     * @param stage The stage that starts
+     * @return The timer, to be closed on the same thread when the stage ends
+     */
+    public Timer start(Stage stage) {
+        return new Timer(stage);
+    }
+    
+    /**
+     * Counts one converted image.
+     * 
+     * @param width The width of the full input image
+     * @param height The height of the full input image
+     */
+    public synchronized void recordImage(int width, int height) {
+        images++;
+        pixels += (long) width * height;
+    }
+    
+    /**
+     * Adds the time and allocations of one timed stage.
+     */
+    private synchronized void record(Stage stage, long stageNanos, long stageBytes) {
+        nanos[stage.ordinal()] += stageNanos;
+        allocatedBytes[stage.ordinal()] += stageBytes;
+    }
+    
+    /**
+     * Adds the images, times and allocations of other metrics to these.
+     * 
+     * @param other The metrics to add, which are not changed
+     */
+    public void add(ConversionMetrics other) {
+        long otherImages;
+        long otherPixels;
+        long[] otherNanos;
+        long[] otherBytes;
+        synchronized (other) {
+            otherImages = other.images;
+            otherPixels = other.pixels;
+            otherNanos = other.nanos.clone();
+            otherBytes = other.allocatedBytes.clone();
+        }
+        synchronized (this) {
+            images += otherImages;
+            pixels += otherPixels;
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] += otherNanos[i];
+                allocatedBytes[i] += otherBytes[i];
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of images converted.
+     * 
+     * @return The image count
+     */
+    public synchronized long getImages() {
+        return images;
+    }
+    
+    /**
+     * Returns the number of pixels of the images converted, counting the full
+     * input also when it was decoded subsampled.
+     * 
+     * @return The pixel count
+     */
+    public synchronized long getPixels() {
+        return pixels;
+    }
+    
+    /**
+     * Returns the wall time spent in a stage.
+     * 
+     * @param stage The stage
+     * @return The time in nanoseconds
+     */
+    public synchronized long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+    
+    /**
+     * Returns the wall time spent in all stages together. When stages of
+     * different images overlap, as in a batch, this is more than the elapsed
+     * time.
+     * 
+     * @return The time in nanoseconds
+     */
+    public synchronized long getTotalNanos() {
+        long total = 0;
+        for (long stageNanos : nanos) {
+            total += stageNanos;
+        }
+        return total;
+    }
+    
+    /**
+     * Returns the bytes allocated by the threads running a stage.
+     * 
+     * @param stage The stage
+     * @return The allocated bytes, or -1 if the JVM does not count them
+     */
+    public synchronized long getAllocatedBytes(Stage stage) {
+        return isAllocationCounted() ? allocatedBytes[stage.ordinal()] : -1;
+    }
+    
+    /**
+     * Returns the bytes allocated by the threads running all stages.
+     * 
+     * @return The allocated bytes, or -1 if the JVM does not count them
+     */
+    public synchronized long getAllocatedBytes() {
+        if (!isAllocationCounted()) {
+            return -1;
+        }
+        long total = 0;
+        for (long stageBytes : allocatedBytes) {
+            total += stageBytes;
+        }
+        return total;
+    }
+    
+    /**
+     * Returns the throughput over the time of all stages.
+     * 
+     * @return Megapixels per second, or 0 if nothing was timed
+     */
+    public synchronized double getMegapixelsPerSecond() {
+        long total = getTotalNanos();
+        return total > 0 ? pixels * 1e3 / total : 0;
+    }
+    
+    /**
+     * Formats the metrics as a JSON object: the converter, the images and
+     * megapixels, the total time, throughput and allocations, and the time
+     * and allocations of every stage.
+     * 
+     * @return The metrics as JSON
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        if (converter != null) {
+            json.append("\"converter\":\"").append(converter.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",");
+        }
+        json.append(String.format(Locale.ROOT,
+                "\"images\":%d,\"megapixels\":%.3f,\"millis\":%.3f,\"megapixelsPerSecond\":%.3f,"
+                + "\"allocatedBytes\":%d,\"stages\":{",
+                images, pixels / 1e6, getTotalNanos() / 1e6, getMegapixelsPerSecond(), getAllocatedBytes()));
+        for (Stage stage : Stage.values()) {
+            if (stage.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "\"%s\":{\"millis\":%.3f,\"allocatedBytes\":%d}",
+                    stage, getNanos(stage) / 1e6, getAllocatedBytes(stage)));
+        }
+        return json.append("}}").toString();
+    }
+    
+    /**
+     * Returns whether the JVM counts the bytes allocated by each thread.
+     */
+    private static boolean isAllocationCounted() {
+        return THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+    }
+    
+    /**
+     * Returns the bytes allocated by the calling thread since it started.
+     */
+    private static long currentThreadAllocatedBytes() {
+        if (!isAllocationCounted()) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Measures one run of a stage, from its creation to {@link #close()}.
+     * Both must happen on the same thread, since allocations are counted per
+     * thread.
+     */
+    public final class Timer implements AutoCloseable {
+        private final Stage stage;
+        private final Object event;
+        private final long startBytes;
+        private final long startNanos;
+        
+        private Timer(Stage stage) {
+            this.stage = stage;
+            this.event = ConversionEvents.getDefault().beginStage(stage);
+            this.startBytes = currentThreadAllocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+        
+        /**
+         * Ends the stage and adds its time and allocations to the metrics.
+         */
+        @Override
+        public void close() {
+            long stageNanos = System.nanoTime() - startNanos;
+            record(stage, stageNanos, currentThreadAllocatedBytes() - startBytes);
+            ConversionEvents.getDefault().endStage(event, stage, converter, getPixels());
+        }
+    }
+}
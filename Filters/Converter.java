@@ -1,7 +1,11 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
 import java.io.File;
-import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Abstract base class for image conversion and processing operations.
@@ -11,34 +15,651 @@ import java.io.IOException;
  */
 public abstract class Converter {
     
+    /**
+     * The number of pixels computed at a time for a {@link PixelLayout#GRAY}
+     * result, 4 MB of packed ARGB ints.
+     */
+    private static final int GRAY_STRIP_PIXELS = 1 << 20;
+    
+    /**
+     * The engine used to run this converter in parallel, or null to use the
+     * shared default engine.
+     */
+    private ParallelEngine engine;
+    
     /**
      * Converts an input image file to an output image file with processing.
      * This method reads the input file, applies the transformation defined in
-     * and saves the result in PNG format.
+     * and saves the result in PNG format with the parallel {@link PngWriter},
+     * in the uncompressed
+     * {@link RawImage} format when the output name ends in ".argb", or as a
+     * {@link TilePyramid} of PNG tiles when it ends in ".dzi". Input files
+     * are decoded by the shared {@link ImageDecoder}, which also recognizes raw
+     * files by their content. Converters that ask for a
+     * {@link #getDecodeSubsampling() subsampled} input receive it through
+     * {@link #processSubsampledImage}.
      * 
      * @param inputFileName  The path to the input image file
      * @param outputFileName The path where the processed image will be saved
      * @throws IOException If an error occurs during file I/O operations
      */
     public void convert(String inputFileName, String outputFileName) throws IOException {
+        convert(inputFileName, outputFileName, new ConversionMetrics(getClass().getSimpleName()));
+    }
+    
+    /**
+     * Converts an input image file to an output image file as
+     * {@link #convert(String, String)} does, and adds the time and
+     * allocations of decoding, processing and encoding to the given metrics.
+     * 
+     * @param inputFileName  The path to the input image file
+     * @param outputFileName The path where the processed image will be saved
+     * @param metrics The metrics receiving the stages and the image size
+     * @throws IOException If an error occurs during file I/O operations
+     */
+    @SuppressWarnings("try")
+    public void convert(String inputFileName, String outputFileName, ConversionMetrics metrics)
+            throws IOException {
         // Read the input image file
         File inputFile = new File(inputFileName);
-        BufferedImage img = ImageIO.read(inputFile);
+        ImageDecoder decoder = ImageDecoder.getDefault();
+        int subsampling = getDecodeSubsampling();
+        Dimension size = null;
+        BufferedImage img;
+        try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.DECODE)) {
+            if (subsampling > 1) {
+                size = decoder.getSize(inputFile);
+                img = size != null ? decoder.read(inputFile, subsampling) : null;
+            } else {
+                img = decoder.read(inputFile);
+            }
+            if (img == null) {
+                throw new IOException("Unsupported image format: " + inputFileName);
+            }
+            // Count the pixels of the full input, also when it was subsampled
+            if (size != null) {
+                metrics.recordImage(size.width, size.height);
+            } else {
+                metrics.recordImage(img.getWidth(), img.getHeight());
+            }
+        }
         
-        BufferedImage processedImg = processImage(img);
+        BufferedImage processedImg;
+        try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.PROCESS)) {
+            processedImg = size != null
+                    ? processSubsampledImage(img, subsampling, size.width, size.height)
+                    : processImage(img);
+        }
         
         // Save the output image to a file
+        try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.ENCODE)) {
+            save(processedImg, outputFileName);
+        }
+    }
+    
+    /**
+     * Saves a processed image as {@link #convert} does: in the raw format when
+     * the name ends in ".argb", as a tile pyramid when it ends in ".dzi", and
+     * as PNG otherwise.
+     * 
+     * @param img The image to save
+     * @param outputFileName The path where the image will be saved
+     * @throws IOException If the file cannot be written
+     */
+    protected static void save(BufferedImage img, String outputFileName) throws IOException {
         File outputFile = new File(outputFileName);
-        ImageIO.write(processedImg, "PNG", outputFile);
+        if (RawImage.isRawName(outputFileName)) {
+            RawImage.write(img, outputFile);
+        } else if (TilePyramid.isPyramidName(outputFileName)) {
+            TilePyramid.write(img, outputFile);
+        } else {
+            PngWriter.write(img, outputFile);
+        }
     }
     
     /**
      * Processes the input image and returns the transformed result.
-     * This abstract method must be implemented by all subclasses to define
-     * the specific image transformation to be applied.
+     * The image is wrapped in a {@link PixelBuffer} so that subclasses work on
+     * packed ARGB ints instead of going through getRGB/setRGB for every pixel.
+     * The result is allocated in the converter's {@link #getOutputLayout}:
+     * {@link PixelLayout#ARGB} results come from {@link #processPixels}, while
+     * the other layouts are filled by {@link #processRowsInParallel} directly,
+     * gray results a strip at a time through a small packed ARGB window so
+     * that no full-size int buffer is ever allocated for them.
+     * 
+     * @param img The input BufferedImage to be processed
+     * @return A new BufferedImage representing the processed result
+     */
+    protected BufferedImage processImage(BufferedImage img) {
+        Converter converter = getImageConverter();
+        if (converter != this) {
+            converter.setEngine(engine);
+            return converter.processImage(img);
+        }
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelLayout layout = getOutputLayout(src);
+        if (layout == PixelLayout.ARGB) {
+            return processPixels(src).toImage();
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        BufferedImage result = layout.createImage(width, height);
+        if (layout != PixelLayout.GRAY) {
+            PixelBuffer dst = PixelBuffer.wrapOutput(result);
+            processRowsInParallel(src, dst, 0, height);
+            return dst.toImage();
+        }
+        
+        // Compute the rows strip by strip and keep the blue channel of each
+        byte[] gray = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+        int stripRows = Math.max(1, Math.min(height, GRAY_STRIP_PIXELS / width));
+        int[] strip = new int[stripRows * width];
+        for (int startY = 0; startY < height; startY += stripRows) {
+            int endY = Math.min(startY + stripRows, height);
+            Arrays.fill(strip, 0);
+            processRowsInParallel(src, PixelBuffer.window(strip, width, height, startY), startY, endY);
+            int base = startY * width;
+            for (int i = 0, n = (endY - startY) * width; i < n; i++) {
+                gray[base + i] = (byte) strip[i];
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Processes the input image as {@link #processImage} does, but stops with
+     * an InterruptedException when the calling thread is interrupted, so that
+     * a {@link ProgressiveRenderer} can abandon a result nobody waits for.
+     * Point and neighborhood converters compute the result a strip of rows at
+     * a time with {@link #processRowsInParallel} and check for an interrupt
+     * between strips. Geometric converters need their whole input at once and
+     * are only checked before and after.
      * 
      * @param img The input BufferedImage to be processed
      * @return A new BufferedImage representing the processed result
+     * @throws InterruptedException If the thread was interrupted before the
+     *         result was complete
+     */
+    protected BufferedImage processImageInterruptibly(BufferedImage img) throws InterruptedException {
+        checkInterrupted();
+        Converter converter = getImageConverter();
+        if (converter != this) {
+            converter.setEngine(engine);
+            return converter.processImageInterruptibly(img);
+        }
+        if (getOperationKind() == OperationKind.GEOMETRIC) {
+            BufferedImage result = processImage(img);
+            checkInterrupted();
+            return result;
+        }
+        
+        PixelBuffer src = PixelBuffer.wrap(img);
+        int width = src.getWidth();
+        int height = src.getHeight();
+        PixelLayout layout = getOutputLayout(src);
+        BufferedImage result = layout.createImage(width, height);
+        PixelBuffer dst = layout != PixelLayout.GRAY ? PixelBuffer.wrapOutput(result) : null;
+        byte[] gray = dst == null ? ((DataBufferByte) result.getRaster().getDataBuffer()).getData() : null;
+        int stripRows = Math.max(1, Math.min(height, GRAY_STRIP_PIXELS / width));
+        int[] strip = dst == null ? new int[stripRows * width] : null;
+        for (int startY = 0; startY < height; startY += stripRows) {
+            checkInterrupted();
+            int endY = Math.min(startY + stripRows, height);
+            if (dst != null) {
+                processRowsInParallel(src, dst, startY, endY);
+            } else {
+                Arrays.fill(strip, 0);
+                processRowsInParallel(src, PixelBuffer.window(strip, width, height, startY), startY, endY);
+                int base = startY * width;
+                for (int i = 0, n = (endY - startY) * width; i < n; i++) {
+                    gray[base + i] = (byte) strip[i];
+                }
+            }
+        }
+        return dst != null ? dst.toImage() : result;
+    }
+    
+    /**
+     * Throws an InterruptedException, clearing the interrupt, if the calling
+     * thread has been interrupted.
+     */
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+    
+    /**
+     * Computes a quick approximation of the result of {@link #processImage}
+     * at a reduced size. The input is subsampled to every n-th pixel of every
+     * n-th row, which reads only the pixels that are kept, and the converter
+     * {@link #getPreviewConverter} returns for n filters the reduced image,
+     * so the cost depends on the size of the preview rather than on the size
+     * of the input. A factor of 1 computes the full result.
+     * 
+     * @param img The input image
+     * @param subsampling The factor n the input is reduced by, at least 1
+     * @return The result for the reduced input, ceil(width / n) x
+     *         ceil(height / n) pixels for converters that keep the size
+     * @throws IllegalArgumentException If the factor is less than 1
+     */
+    public BufferedImage preview(BufferedImage img, int subsampling) {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1: " + subsampling);
+        }
+        if (subsampling == 1) {
+            return processImage(img);
+        }
+        Converter converter = getPreviewConverter(subsampling);
+        if (converter != this) {
+            converter.setEngine(engine);
+        }
+        return converter.processImage(subsample(img, subsampling));
+    }
+    
+    /**
+     * Returns a converter that does to an image subsampled by the given factor
+     * what this converter does to the full image, for {@link #preview}.
+     * Sizes given in pixels of the input, such as a blur radius or a block
+     * size, are divided by the factor. The default returns this converter,
+     * which suits converters without such parameters.
+     * 
+     * @param subsampling The factor the input is reduced by, at least 2
+     * @return The converter to run on the reduced input
+     */
+    protected Converter getPreviewConverter(int subsampling) {
+        return this;
+    }
+    
+    /**
+     * Returns the converter that computes one whole image, for
+     * {@link #processImage}, {@link #processImageInterruptibly} and
+     * {@link StripProcessor}. Those compute an image in many bands and strips,
+     * and a converter whose output depends on something drawn once per
+     * image, such as the seed of an unseeded {@link Glitch}, returns a copy
+     * with it fixed, so that every band and strip of the image agrees. The
+     * default returns this converter, which suits converters whose output is
+     * determined by their input.
+     * 
+     * @return The converter to run on one image
+     */
+    protected Converter getImageConverter() {
+        return this;
+    }
+    
+    /**
+     * Divides a size in pixels by a subsampling factor, rounding to the
+     * nearest whole pixel.
+     * 
+     * @param size The size in pixels of the full image
+     * @param subsampling The factor the image is reduced by
+     * @return The size in pixels of the reduced image
+     */
+    protected static int scaleDown(int size, int subsampling) {
+        return (size + subsampling / 2) / subsampling;
+    }
+    
+    /**
+     * Reduces an image to every n-th pixel of every n-th row. Packed int
+     * images are read in place; any other image one kept row at a time.
+     * 
+     * @param img The image to reduce
+     * @param subsampling The factor n
+     * @return A new TYPE_INT_ARGB image of ceil(width / n) x ceil(height / n) pixels
+     */
+    private static BufferedImage subsample(BufferedImage img, int subsampling) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        PixelBuffer samples = PixelBuffer.create((width + subsampling - 1) / subsampling,
+                (height + subsampling - 1) / subsampling);
+        int[] out = samples.getData();
+        int i = 0;
+        if (img.getType() == BufferedImage.TYPE_INT_ARGB || img.getType() == BufferedImage.TYPE_INT_RGB) {
+            // The ints of an RGB image carry no alpha
+            int alpha = img.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+            PixelBuffer src = PixelBuffer.wrapOutput(img);
+            int[] in = src.getData();
+            for (int y = 0; y < height; y += subsampling) {
+                int offset = src.rowOffset(y);
+                for (int x = 0; x < width; x += subsampling) {
+                    out[i++] = in[offset + x] | alpha;
+                }
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y += subsampling) {
+                img.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x += subsampling) {
+                    out[i++] = row[x];
+                }
+            }
+        }
+        return samples.toImage();
+    }
+    
+    /**
+     * Returns the pixel layout the result of this converter is stored and
+     * written in. The default, {@link PixelLayout#ARGB}, keeps all four
+     * channels. A converter may declare a smaller layout when its output never
+     * needs more: {@link PixelLayout#GRAY} keeps only the blue channel of each
+     * computed pixel, {@link PixelLayout#RGB} drops alpha and
+     * {@link PixelLayout#GRAY_ALPHA} keeps blue and alpha. Only converters that
+     * produce an image of the input's size with {@link #processRowsInParallel}
+     * may declare a layout other than ARGB.
+     * 
+     * @param src The pixels of the input image, or null when the converter
+     *            runs before the input is known, as in a {@link StripProcessor};
+     *            the layout must then suit any input
+     * @return The layout of the output image
+     */
+    public PixelLayout getOutputLayout(PixelBuffer src) {
+        return PixelLayout.ARGB;
+    }
+    
+    /**
+     * Returns how much of the input {@link #convert} needs to decode. A factor
+     * n greater than 1 means the result can be computed from every n-th pixel
+     * of every n-th row, which {@link ImageDecoder} reads at a fraction of the
+     * cost of the full image; the reduced image is then passed to
+     * {@link #processSubsampledImage} instead of {@link #processImage}.
+     * The default of 1 decodes the full image.
+     * 
+     * @return The subsampling factor, at least 1
+     */
+    protected int getDecodeSubsampling() {
+        return 1;
+    }
+    
+    /**
+     * Computes the full-size result from a subsampled input, for converters
+     * whose {@link #getDecodeSubsampling()} is greater than 1.
+     * 
+     * @param img The input, reduced to ceil(width / n) x ceil(height / n) pixels
+     * @param subsampling The subsampling factor n
+     * @param width The width of the full input
+     * @param height The height of the full input
+     * @return A new BufferedImage representing the processed result
+     * @throws UnsupportedOperationException If the converter does not
+     *         subsample its input
      */
-    protected abstract BufferedImage processImage(BufferedImage img);
+    protected BufferedImage processSubsampledImage(BufferedImage img, int subsampling, int width, int height) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not subsample its input");
+    }
+    
+    /**
+     * Processes the input pixels and returns the transformed result.
+     * The output buffer is split into row bands that are processed in parallel
+     * by {@link #processRows} on this converter's {@link ParallelEngine}.
+     * Subclasses may override this method when a different split suits the
+     * transformation better.
+     * 
+     * @param src The pixels of the input image
+     * @return A new PixelBuffer holding the processed result
+     */
+    protected PixelBuffer processPixels(PixelBuffer src) {
+        PixelBuffer dst = createOutput(src);
+        processRowsInParallel(src, dst, 0, dst.getHeight());
+        return dst;
+    }
+    
+    /**
+     * Computes the output rows in the range [startY, endY), split into bands
+     * that run in parallel on this converter's {@link ParallelEngine}.
+     * Used for whole images by {@link #processPixels} and for single strips by
+     * {@link StripProcessor}. Subclasses may override this method when they can
+     * process a range of rows more efficiently as a whole.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param startY The first output row to compute (inclusive)
+     * @param endY The last output row to compute (exclusive)
+     */
+    protected void processRowsInParallel(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        getEngine().invokeBands(endY - startY, (bandStart, bandEnd) ->
+                processRows(src, dst, startY + bandStart, startY + bandEnd));
+    }
+    
+    /**
+     * Allocates the buffer the processed pixels are written to.
+     * The default creates a TYPE_INT_ARGB image of the size
+     * {@link #getOutputSize} gives for the input.
+     * 
+     * @param src The pixels of the input image
+     * @return A new, empty output buffer
+     */
+    protected PixelBuffer createOutput(PixelBuffer src) {
+        Dimension size = getOutputSize(src.getWidth(), src.getHeight());
+        return PixelBuffer.create(size.width, size.height);
+    }
+    
+    /**
+     * Returns the size of the output for an input of the given size. The
+     * default keeps the size; converters that change it override this method.
+     * 
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The width and height of the output
+     */
+    public Dimension getOutputSize(int width, int height) {
+        return new Dimension(width, height);
+    }
+    
+    /**
+     * Updates a previous result of this converter after part of its input
+     * has changed, recomputing only the output pixels the change can affect,
+     * as an interactive editor does after each stroke. The result is the
+     * same as converting the whole changed input again.
+     * The affected output region comes from {@link #getAffectedRegion} and is
+     * computed by {@link #processRegion}, so the work grows with the size of
+     * the change rather than of the image for the filters that override
+     * those. Converters that cannot tell which pixels a change affects, such
+     * as rotations inside a pipeline, compute the whole result again. The
+     * input is read in place when it is TYPE_INT_ARGB, and the result is
+     * updated in place when it is an image created by this converter.
+     * 
+     * @param src The changed input image
+     * @param output The result of this converter for the input before the
+     *               change, updated in place
+     * @param dirty The rectangle of input pixels that changed
+     * @return The rectangle of output pixels that were recomputed, empty if
+     *         the change lies outside the input
+     * @throws IllegalArgumentException If the result does not have the size
+     *         this converter produces from the input
+     */
+    public Rectangle reprocess(BufferedImage src, BufferedImage output, Rectangle dirty) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        Dimension size = getOutputSize(width, height);
+        if (output.getWidth() != size.width || output.getHeight() != size.height) {
+            throw new IllegalArgumentException("Result is " + output.getWidth() + "x" + output.getHeight()
+                    + ", not the " + size.width + "x" + size.height + " of a " + width + "x" + height + " input");
+        }
+        Rectangle changed = dirty.intersection(new Rectangle(width, height));
+        if (changed.isEmpty()) {
+            return new Rectangle();
+        }
+        Rectangle region = getAffectedRegion(changed, width, height);
+        if (region == null) {
+            // Any output pixel may change, so compute them all again
+            output.getRaster().setRect(processImage(src).getRaster());
+            return new Rectangle(size);
+        }
+        region = region.intersection(new Rectangle(size));
+        if (region.isEmpty()) {
+            return region;
+        }
+        
+        PixelBuffer in = PixelBuffer.wrap(src);
+        if (PixelLayout.of(output) != PixelLayout.GRAY) {
+            PixelBuffer out = PixelBuffer.wrapOutput(output);
+            processRegion(in, out, region);
+            out.toImage();
+            return region;
+        }
+        
+        // Compute the rows of the region and store the gray level of its pixels
+        int[] rows = new int[region.height * size.width];
+        processRegion(in, PixelBuffer.window(rows, size.width, size.height, region.y), region);
+        WritableRaster raster = output.getRaster();
+        int[] samples = new int[region.width];
+        for (int y = 0; y < region.height; y++) {
+            for (int x = 0; x < region.width; x++) {
+                samples[x] = rows[y * size.width + region.x + x] & 0xff;
+            }
+            raster.setSamples(region.x, region.y + y, region.width, 1, 0, samples);
+        }
+        return region;
+    }
+    
+    /**
+     * Returns the output pixels that can differ when the given input pixels
+     * change. The default depends on the {@link #getOperationKind operation
+     * kind}: a point operation affects the same pixels, a neighborhood
+     * operation also those within {@link #getHaloRows()} pixels of them in
+     * every direction, and a geometric operation any pixel. Converters whose
+     * neighborhood is not a square around the pixel, or that move pixels in
+     * a known way, override this method.
+     * 
+     * @param dirty The changed input pixels, inside the input
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The affected output pixels, or null if any may be affected
+     */
+    public Rectangle getAffectedRegion(Rectangle dirty, int width, int height) {
+        switch (getOperationKind()) {
+            case POINT:
+                return new Rectangle(dirty);
+            case NEIGHBORHOOD:
+                Rectangle region = new Rectangle(dirty);
+                region.grow(getHaloRows(), getHaloRows());
+                return region.intersection(new Rectangle(width, height));
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Computes the output pixels of a region, as part of {@link #reprocess}.
+     * Pixels outside the region may be written too, but only with the values
+     * the whole result has there. The default computes point operations from
+     * a copy of the region alone, see {@link #processCrop}, and every other
+     * operation as the full output rows of the region with
+     * {@link #processRowsInParallel}.
+     * 
+     * @param src The pixels of the whole input image
+     * @param dst The output buffer, holding at least the rows of the region
+     * @param region The output pixels to compute, inside the output
+     */
+    protected void processRegion(PixelBuffer src, PixelBuffer dst, Rectangle region) {
+        if (getOperationKind() == OperationKind.POINT) {
+            processCrop(src, dst, region, 0);
+        } else {
+            processRowsInParallel(src, dst, region.y, region.y + region.height);
+        }
+    }
+    
+    /**
+     * Computes the output pixels of a region from a copy of just the input
+     * pixels around it, for converters that treat every pixel alike except
+     * at the edges of the image. The region is grown by the halo on every
+     * side, within the image, and that part of the input is processed as an
+     * image of its own. The output pixels within the halo of the copy's
+     * edges may differ from the whole result, since the copy ends there, so
+     * only the region is stored; at the image's own edges the copy ends
+     * where the image does.
+     * 
+     * @param src The pixels of the whole input image
+     * @param dst The output buffer, holding at least the rows of the region
+     * @param region The output pixels to compute, inside the output
+     * @param halo The number of pixels around an output pixel it depends on
+     */
+    protected void processCrop(PixelBuffer src, PixelBuffer dst, Rectangle region, int halo) {
+        Rectangle input = new Rectangle(region);
+        input.grow(halo, halo);
+        input = input.intersection(new Rectangle(src.getWidth(), src.getHeight()));
+        int[] in = src.getData();
+        int[] crop = new int[input.width * input.height];
+        for (int y = 0; y < input.height; y++) {
+            System.arraycopy(in, src.rowOffset(input.y + y) + input.x, crop, y * input.width, input.width);
+        }
+        
+        // Only the rows of the region are computed, at their full crop width
+        int top = region.y - input.y;
+        int[] rows = new int[region.height * input.width];
+        processRowsInParallel(PixelBuffer.window(crop, input.width, input.height, 0),
+                PixelBuffer.window(rows, input.width, input.height, top), top, top + region.height);
+        int[] out = dst.getData();
+        for (int y = 0; y < region.height; y++) {
+            System.arraycopy(rows, y * input.width + region.x - input.x,
+                    out, dst.rowOffset(region.y + y) + region.x, region.width);
+        }
+    }
+    
+    /**
+     * Computes the output rows in the range [startY, endY).
+     * This abstract method must be implemented by all subclasses to define
+     * the specific image transformation to be applied. It may be called
+     * concurrently for disjoint row ranges of the same output, so it must only
+     * write the requested rows and must not modify shared state.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param startY The first output row to compute (inclusive)
+     * @param endY The last output row to compute (exclusive)
+     */
+    protected abstract void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY);
+    
+    /**
+     * Describes how output pixels depend on input pixels.
+     * The default, {@link OperationKind#GEOMETRIC}, makes no assumption about
+     * which input pixels an output row reads.
+     * 
+     * @return The kind of operation this converter performs
+     */
+    public OperationKind getOperationKind() {
+        return OperationKind.GEOMETRIC;
+    }
+    
+    /**
+     * Returns how many input rows above and below an output row are needed to
+     * compute it. Only meaningful for {@link OperationKind#NEIGHBORHOOD}
+     * converters; point operations need none.
+     * 
+     * @return The number of halo rows on each side of a band
+     */
+    public int getHaloRows() {
+        return 0;
+    }
+    
+    /**
+     * Returns a key identifying this converter together with its parameters,
+     * used by {@link ResultCache} to recognize repeated conversions. Two
+     * converters with the same key must produce the same output from the same
+     * input. The default, the class name, suits converters without parameters;
+     * converters with parameters must include them, and converters whose
+     * output is not determined by their input return null.
+     * 
+     * @return The cache key, or null if results must never be cached
+     */
+    public String getCacheKey() {
+        return getClass().getName();
+    }
+    
+    /**
+     * Returns the engine used to run this converter in parallel.
+     * 
+     * @return This converter's engine, or the shared default engine
+     */
+    public ParallelEngine getEngine() {
+        return engine != null ? engine : ParallelEngine.getDefault();
+    }
+    
+    /**
+     * Sets the engine used to run this converter in parallel.
+     * 
+     * @param engine The engine to use, or null for the shared default engine
+     */
+    public void setEngine(ParallelEngine engine) {
+        this.engine = engine;
+    }
 }
@@ -1,166 +1,219 @@
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
+import java.util.Arrays;
 
 /**
- * Implements recursive Sobel edge detection algorithm for images.
+ * Implements Sobel edge detection for images.
  * This class converts an input image into an edge map where edges are highlighted
  * in white against a black background. The implementation uses the Sobel operator
  * with two 3x3 kernels (horizontal and vertical) to detect edges in both directions.
- * The algorithm is fully recursive and processes the image row-by-row to avoid
- * stack overflow.
+ * 
+ * The image is processed iteratively, one row at a time. Each input row is
+ * converted to luma (the average of red, green and blue) exactly once and kept
+ * in a ring buffer of three rows, which is all the 3x3 kernels need. Because of
+ * this the detector only needs one halo row above and below the rows it
+ * computes, and {@link StripProcessor} streams images of any size through it
+ * without holding the full frame.
+ * 
+ * The outermost rows and columns have no complete 3x3 neighborhood and are
+ * left transparent black, however the rows are computed. The edge map holds
+ * one gray level per pixel and an alpha that is only clear at the border, so
+ * it is stored as {@link PixelLayout#GRAY_ALPHA}.
  */
 public class EdgeDetection extends Converter {
     
     /**
-     * The horizontal Sobel kernel for detecting vertical edges.
+     * The value of the pixels of the one-pixel border, transparent black.
      */
-    private static final int[][] GX = {{-1, 0, 1}, {-2, 0, 2}, {-1, 0, 1}};
+    private static final int BORDER = 0;
     
     /**
-     * The vertical Sobel kernel for detecting horizontal edges.
+     * How the gradient magnitude is computed from the two Sobel responses.
      */
-    private static final int[][] GY = {{-1, -2, -1}, {0, 0, 0}, {1, 2, 1}};
+    public enum Magnitude {
+        
+        /**
+         * The Euclidean magnitude √(Gx² + Gy²).
+         */
+        EXACT,
+        
+        /**
+         * The cheaper approximation |Gx| + |Gy|, which needs no square root.
+         * It is never smaller than the exact magnitude and at most about 41%
+         * larger, so edges come out somewhat brighter.
+         */
+        APPROXIMATE
+    }
     
     /**
-     * The number of rows to process in each batch.
-     * Smaller values reduce recursion depth but may increase total recursive calls.
-     * A value of 10-20 provides good balance for most images.
+     * The magnitude computation used by this detector.
      */
-    private static final int ROW_BATCH_SIZE = 10;
+    private final Magnitude magnitude;
+    
+    /**
+     * Creates an edge detector using the exact gradient magnitude.
+     */
+    public EdgeDetection() {
+        this(Magnitude.EXACT);
+    }
     
     /**
-     * Processes the input image to detect edges using recursive Sobel operator.
-     * This method applies the Sobel edge detection algorithm recursively to identify
-     * edges in the image. The output is a grayscale image where edge pixels are white
-     * and non-edge pixels are black.
+     * Creates an edge detector using the given magnitude computation.
      * 
-     * @param img The input image to be processed
-     * @return A new BufferedImage with edges highlighted in white on black background
+     * @param magnitude How to combine the horizontal and vertical gradients
      */
-    @Override
-    protected BufferedImage processImage(BufferedImage img) {
-        BufferedImage result = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-        processRows(img, result, 1, Math.min(ROW_BATCH_SIZE, img.getHeight() - 2));
-        return result;
+    public EdgeDetection(Magnitude magnitude) {
+        this.magnitude = magnitude;
     }
     
     /**
-     * Recursively processes the image in batches of rows to limit stack depth.
-     * This method divides the image into horizontal batches and processes each
-     * batch recursively. Edge rows (y=0 and y=height-1) are skipped to avoid
-     * out-of-bounds issues with the 3x3 kernel.
+     * Returns the magnitude computation used by this detector.
      * 
-     * @param src The source image to read pixels from
-     * @param dest The destination image to write edge pixels to
-     * @param startY The starting row index (inclusive)
-     * @param endY The ending row index (inclusive)
+     * @return The magnitude mode
      */
-    private void processRows(BufferedImage src, BufferedImage dest, int startY, int endY) {
-        // Base case: stop when we've processed all rows
-        if (startY >= src.getHeight() - 1) return;
-        
-        // Process current batch of rows
-        processRowBatch(src, dest, startY, endY, 1);
-        
-        // Process next batch recursively
-        int nextStart = endY + 1;
-        int nextEnd = Math.min(nextStart + ROW_BATCH_SIZE - 1, src.getHeight() - 2);
-        processRows(src, dest, nextStart, nextEnd);
+    public Magnitude getMagnitude() {
+        return magnitude;
     }
     
     /**
-     * Processes a batch of rows column by column recursively.
-     * For each column in the current batch of rows, this method applies the
-     * Sobel operator to detect edges. Edge columns (x=0 and x=width-1) are
-     * skipped to avoid kernel boundary issues.
+     * The cache key includes the magnitude computation.
      * 
-     * @param src Source image
-     * @param dest Destination image
-     * @param startY Starting row of current batch
-     * @param endY Ending row of current batch
-     * @param x Current column being processed
+     * @return The class name with the magnitude computation
      */
-    private void processRowBatch(BufferedImage src, BufferedImage dest, 
-                               int startY, int endY, int x) {
-        // Base case: stop at image width boundary
-        if (x >= src.getWidth() - 1) return;
-        
-        // Process current column in all rows of this batch
-        processColumn(src, dest, x, startY, endY);
-        
-        // Process next column recursively
-        processRowBatch(src, dest, startY, endY, x + 1);
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + "(magnitude=" + magnitude + ")";
     }
     
     /**
-     * Processes a single column in the specified row range recursively.
-     * For each pixel in the column, this method calculates horizontal (Gx) and
-     * vertical (Gy) gradients using the Sobel kernels, then computes the edge
-     * magnitude as √(Gx² + Gy²).
+     * Edge magnitudes are opaque gray levels, framed by the transparent
+     * border.
      * 
-     * @param src Source image
-     * @param dest Destination image
-     * @param x Column to process
-     * @param y Current row being processed
-     * @param endY Last row to process in this column
+     * @param src The input pixels, which do not affect the layout
+     * @return {@link PixelLayout#GRAY_ALPHA}
      */
-    private void processColumn(BufferedImage src, BufferedImage dest, 
-                             int x, int y, int endY) {
-        // Base case: stop when we've processed all rows in this column
-        if (y > endY) return;
-        
-        // Calculate Sobel gradients
-        int gx = calculateGradient(src, x, y, GX, -1, -1, 0, 0);
-        int gy = calculateGradient(src, x, y, GY, -1, -1, 0, 0);
-        
-        // Calculate edge magnitude and constrain to [0,255]
-        int magnitude = Math.min(255, (int) Math.sqrt(gx * gx + gy * gy));
-        
-        // Set output pixel (white edges on black background)
-        dest.setRGB(x, y, new ARGB(255, magnitude, magnitude, magnitude).toInt());
-        
-        // Process next row in this column
-        processColumn(src, dest, x, y + 1, endY);
+    @Override
+    public PixelLayout getOutputLayout(PixelBuffer src) {
+        return PixelLayout.GRAY_ALPHA;
     }
     
     /**
-     * Recursively calculates the gradient value using the specified kernel.
-     * This method convolves a 3x3 Sobel kernel with the neighborhood around
-     * the center pixel. The image is first converted to grayscale, then each
-     * neighbor is weighted by the corresponding kernel value.
+     * Detects edges in the requested rows using the Sobel operator.
+     * The luma of the row above the first requested row and of that row itself
+     * are computed first; then for every output row, the luma of the row below
+     * is computed into the slot of the ring buffer that is no longer needed.
+     * Edge rows (y=0 and y=height-1) and the first and last column have no
+     * complete 3x3 neighborhood and are set to the transparent black border.
      * 
-     * @param img The source image
-     * @param centerX X-coordinate of center pixel
-     * @param centerY Y-coordinate of center pixel
-     * @param kernel The Sobel kernel (GX or GY) to use
-     * @param dx Current x-offset (-1, 0, or 1)
-     * @param dy Current y-offset (-1, 0, or 1)
-     * @param sum Accumulated sum of weighted neighbor values
-     * @param count Number of valid neighbors processed
-     * @return The calculated gradient value
+     * @param src The pixels of the input image to be processed
+     * @param dst The output buffer to write edge values to
+     * @param startY The first row to process (inclusive)
+     * @param endY The last row to process (exclusive)
      */
-    private int calculateGradient(BufferedImage img, int centerX, int centerY, 
-                                int[][] kernel, int dx, int dy, int sum, int count) {
-        // Base case: finished processing 3x3 neighborhood
-        if (dy > 1) return sum;
-        
-        // Move to next row when done with current row
-        if (dx > 1) {
-            return calculateGradient(img, centerX, centerY, kernel, -1, dy + 1, sum, count);
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] out = dst.getData();
+        for (int y = startY; y < endY; y++) {
+            int offset = dst.rowOffset(y);
+            if (y == 0 || y == height - 1) {
+                Arrays.fill(out, offset, offset + width, BORDER);
+            } else {
+                out[offset] = BORDER;
+                out[offset + width - 1] = BORDER;
+            }
         }
         
-        int nx = centerX + dx;
-        int ny = centerY + dy;
-        
-        // Only process valid pixels
-        if (nx >= 0 && nx < img.getWidth() && ny >= 0 && ny < img.getHeight()) {
-            ARGB pixel = new ARGB(img.getRGB(nx, ny));
-            // Convert to grayscale and apply kernel weight
-            int gray = (pixel.red + pixel.green + pixel.blue) / 3;
-            return calculateGradient(img, centerX, centerY, kernel, dx + 1, dy, 
-                                   sum + gray * kernel[dy + 1][dx + 1], count + 1);
+        int firstY = Math.max(startY, 1);
+        int lastY = Math.min(endY, height - 1);
+        if (firstY >= lastY) {
+            return;
         }
         
-        // Skip out-of-bounds pixels
-        return calculateGradient(img, centerX, centerY, kernel, dx + 1, dy, sum, count);
+        // The luma of rows y - 1, y and y + 1, rotated as y advances and
+        // reused by the next band on this thread
+        Scratch scratch = Scratch.acquire();
+        try {
+            int[] above = scratch.ints(0, width);
+            int[] row = scratch.ints(1, width);
+            int[] below = scratch.ints(2, width);
+            int[] in = src.getData();
+            toLuma(in, src.rowOffset(firstY - 1), above, width);
+            toLuma(in, src.rowOffset(firstY), row, width);
+            
+            for (int y = firstY; y < lastY; y++) {
+                toLuma(in, src.rowOffset(y + 1), below, width);
+                sobelRow(above, row, below, out, dst.rowOffset(y), width);
+                int[] oldest = above;
+                above = row;
+                row = below;
+                below = oldest;
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+    
+    /**
+     * Converts a row of packed ARGB pixels to luma values.
+     * 
+     * @param pixels The array holding the row
+     * @param offset The index of the first pixel of the row
+     * @param luma The array receiving one luma value per pixel
+     * @param width The number of pixels in the row
+     */
+    private static void toLuma(int[] pixels, int offset, int[] luma, int width) {
+        PixelKernels.getDefault().luma(pixels, offset, luma, width);
+    }
+    
+    /**
+     * Applies the Sobel kernels to the interior pixels of one row and writes
+     * the edge pixels, using {@link PixelKernels#sobel}, vectorized when
+     * possible.
+     * 
+     * @param above The luma of the row above
+     * @param row The luma of the row being processed
+     * @param below The luma of the row below
+     * @param out The array receiving the edge pixels
+     * @param outOffset The index of the first pixel of the output row
+     * @param width The number of pixels in the row
+     */
+    private void sobelRow(int[] above, int[] row, int[] below, int[] out, int outOffset, int width) {
+        PixelKernels.getDefault().sobel(above, row, below, out, outOffset, 1, width - 1,
+                magnitude == Magnitude.EXACT);
+    }
+    
+    /**
+     * The Sobel kernels read a 3x3 window around each output pixel.
+     * 
+     * @return {@link OperationKind#NEIGHBORHOOD}
+     */
+    @Override
+    public OperationKind getOperationKind() {
+        return OperationKind.NEIGHBORHOOD;
+    }
+    
+    /**
+     * Detects the edges of the region from a copy of the pixels around it,
+     * one pixel on each side; the transparent border only appears at the
+     * image's own edges.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param region The output pixels to compute
+     */
+    @Override
+    protected void processRegion(PixelBuffer src, PixelBuffer dst, Rectangle region) {
+        processCrop(src, dst, region, getHaloRows());
+    }
+    
+    /**
+     * The 3x3 window reaches one row above and below each output row.
+     * 
+     * @return 1
+     */
+    @Override
+    public int getHaloRows() {
+        return 1;
     }
 }
@@ -0,0 +1,15 @@
+/**
+ * Flips images vertically (mirrors along the horizontal axis).
+ * The top row of the input becomes the bottom row of the output, and so on;
+ * each row is copied unchanged. All pixel data including RGB and alpha
+ * channels are preserved during the transformation.
+ */
+public class FlipVertical extends GeometricTransform {
+    
+    /**
+     * Creates a vertical flip.
+     */
+    public FlipVertical() {
+        super(Orientation.FLIP_VERTICAL);
+    }
+}
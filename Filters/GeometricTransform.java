@@ -0,0 +1,275 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Rotates and mirrors images by multiples of 90 degrees, in any of the eight
+ * {@link Orientation orientations}.
+ * Every output pixel is a copy of one input pixel, found from its position
+ * with two additions: stepping one pixel along an output row moves a fixed
+ * distance through the input array, and so does stepping one output row. The
+ * orientation only decides the two distances and the starting point.
+ * 
+ * Orientations that keep rows as rows read and write memory in order. Those
+ * that turn rows into columns read one input pixel per row for every output
+ * row, so walking a whole output row at a time touches a different cache line
+ * for every pixel, and on large images each line is evicted long before its
+ * neighbors are needed. These are copied in square blocks of
+ * {@link #BLOCK_SIZE} pixels instead: a block's input rows and output rows
+ * both stay in the cache while the block is transposed, so every cache line
+ * is loaded once.
+ * 
+ * Orientations that keep the image's size can also be applied
+ * {@link #transformInPlace in place}, without a second image, by swapping
+ * pixels pairwise; a {@link Pipeline} does this with its intermediate images.
+ * A pipeline also composes consecutive transforms into one with
+ * {@link #compose}, so {@code Rotate+Rotate+FlipHorizontal} moves every pixel
+ * once, as a single vertical flip.
+ */
+public class GeometricTransform extends Converter {
+    
+    /**
+     * The edge of the square blocks transposing orientations are copied in.
+     * A block of ints is read from 64 input rows and written to 64 output
+     * rows, 16 KB each way, which stays in the fastest caches while the
+     * block is copied; smaller blocks measured slower on a 12 MP image.
+     */
+    private static final int BLOCK_SIZE = 64;
+    
+    /**
+     * The orientation this transform produces.
+     */
+    private final Orientation orientation;
+    
+    /**
+     * Creates a transform producing the given orientation of its input.
+     * 
+     * @param orientation The orientation of the output
+     */
+    public GeometricTransform(Orientation orientation) {
+        if (orientation == null) {
+            throw new IllegalArgumentException("No orientation given");
+        }
+        this.orientation = orientation;
+    }
+    
+    /**
+     * Returns the orientation this transform produces.
+     * 
+     * @return The orientation of the output
+     */
+    public Orientation getOrientation() {
+        return orientation;
+    }
+    
+    /**
+     * Combines transforms applied one after another into a single transform.
+     * 
+     * @param transforms The transforms to compose, in order of application
+     * @return A transform with the combined orientation
+     * @throws IllegalArgumentException If the list is empty
+     */
+    public static GeometricTransform compose(List<? extends GeometricTransform> transforms) {
+        if (transforms.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to compose");
+        }
+        Orientation combined = Orientation.IDENTITY;
+        for (GeometricTransform transform : transforms) {
+            combined = combined.then(transform.getOrientation());
+        }
+        return new GeometricTransform(combined);
+    }
+    
+    /**
+     * Returns the size of the output, with width and height swapped for the
+     * orientations that transpose.
+     * 
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The width and height of the output
+     */
+    @Override
+    public Dimension getOutputSize(int width, int height) {
+        return orientation.isTransposed() ? new Dimension(height, width) : new Dimension(width, height);
+    }
+    
+    /**
+     * Fills the requested rows of the output.
+     * Output pixel (x, y) is input element {@code origin + x * stepX + y * stepY},
+     * where the origin is the input corner output pixel (0, 0) comes from.
+     * Rows are copied whole when the orientation keeps them as rows, and in
+     * {@link #BLOCK_SIZE} blocks when it transposes.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer
+     * @param startY The first output row to fill (inclusive)
+     * @param endY The last output row to fill (exclusive)
+     */
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        copy(src, dst, 0, startY, dst.getWidth(), endY);
+    }
+    
+    /**
+     * The changed pixels move to where the orientation puts them.
+     * 
+     * @param dirty The changed input pixels
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The output pixels the changed pixels are copied to
+     */
+    @Override
+    public Rectangle getAffectedRegion(Rectangle dirty, int width, int height) {
+        // The input columns and rows after flipping, in output order
+        int startX = orientation.isFlipX() ? width - dirty.x - dirty.width : dirty.x;
+        int startY = orientation.isFlipY() ? height - dirty.y - dirty.height : dirty.y;
+        if (orientation.isTransposed()) {
+            return new Rectangle(startY, startX, dirty.height, dirty.width);
+        }
+        return new Rectangle(startX, startY, dirty.width, dirty.height);
+    }
+    
+    /**
+     * Copies just the pixels of the region.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer
+     * @param region The output pixels to fill
+     */
+    @Override
+    protected void processRegion(PixelBuffer src, PixelBuffer dst, Rectangle region) {
+        getEngine().invokeBands(region.height, (startY, endY) -> copy(src, dst, region.x, region.y + startY,
+                region.x + region.width, region.y + endY));
+    }
+    
+    /**
+     * Fills the output pixels [startX, endX) x [startY, endY).
+     */
+    private void copy(PixelBuffer src, PixelBuffer dst, int startX, int startY, int endX, int endY) {
+        int stride = src.getStride();
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        
+        // The input distances of one step along an output row and down an output column
+        int stepRow = orientation.isFlipY() ? -stride : stride;
+        int stepColumn = orientation.isFlipX() ? -1 : 1;
+        int stepX = orientation.isTransposed() ? stepRow : stepColumn;
+        int stepY = orientation.isTransposed() ? stepColumn : stepRow;
+        int origin = src.rowOffset(orientation.isFlipY() ? src.getHeight() - 1 : 0)
+                + (orientation.isFlipX() ? src.getWidth() - 1 : 0);
+        
+        if (!orientation.isTransposed()) {
+            for (int y = startY; y < endY; y++) {
+                int source = origin + y * stepY + startX * stepX;
+                int dstRow = dst.rowOffset(y);
+                if (stepX == 1) {
+                    System.arraycopy(in, source, out, dstRow + startX, endX - startX);
+                } else {
+                    for (int x = startX; x < endX; x++, source--) {
+                        out[dstRow + x] = in[source];
+                    }
+                }
+            }
+            return;
+        }
+        
+        // Transpose block by block, so the input rows of a block stay cached
+        for (int blockY = startY; blockY < endY; blockY += BLOCK_SIZE) {
+            int blockEndY = Math.min(blockY + BLOCK_SIZE, endY);
+            for (int blockX = startX; blockX < endX; blockX += BLOCK_SIZE) {
+                int blockEndX = Math.min(blockX + BLOCK_SIZE, endX);
+                for (int y = blockY; y < blockEndY; y++) {
+                    int source = origin + y * stepY + blockX * stepX;
+                    int dstRow = dst.rowOffset(y);
+                    for (int x = blockX; x < blockEndX; x++, source += stepX) {
+                        out[dstRow + x] = in[source];
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies this transform to a buffer in place, for the orientations that
+     * keep the image's size and do not transpose it.
+     * Each pixel is swapped with the one it trades places with, so no second
+     * image is needed: a horizontal flip reverses every row, and a vertical
+     * flip or a 180 degree rotation swaps row y with row h - 1 - y, reversing
+     * both for the rotation. Pairs of rows are swapped in parallel bands.
+     * 
+     * @param buffer The pixels to transform, which must not be read by
+     *               anything else meanwhile
+     * @throws IllegalArgumentException If the orientation transposes
+     */
+    public void transformInPlace(PixelBuffer buffer) {
+        if (orientation.isTransposed()) {
+            throw new IllegalArgumentException(orientation + " cannot be applied in place");
+        }
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        int[] data = buffer.getData();
+        boolean flipX = orientation.isFlipX();
+        if (!orientation.isFlipY()) {
+            if (flipX) {
+                getEngine().invokeBands(height, (startY, endY) -> {
+                    for (int y = startY; y < endY; y++) {
+                        reverse(data, buffer.rowOffset(y), width);
+                    }
+                });
+            }
+            return;
+        }
+        
+        // Band k swaps row k with row h - 1 - k; the middle row of an odd height stays put
+        getEngine().invokeBands(height / 2, (startY, endY) -> {
+            for (int y = startY; y < endY; y++) {
+                int top = buffer.rowOffset(y);
+                int bottom = buffer.rowOffset(height - 1 - y);
+                for (int x = 0; x < width; x++) {
+                    int other = flipX ? bottom + width - 1 - x : bottom + x;
+                    int pixel = data[top + x];
+                    data[top + x] = data[other];
+                    data[other] = pixel;
+                }
+            }
+        });
+        if (flipX && height % 2 == 1) {
+            reverse(data, buffer.rowOffset(height / 2), width);
+        }
+    }
+    
+    /**
+     * Reverses the order of the pixels of one row.
+     */
+    private static void reverse(int[] data, int start, int width) {
+        for (int left = start, right = start + width - 1; left < right; left++, right--) {
+            int pixel = data[left];
+            data[left] = data[right];
+            data[right] = pixel;
+        }
+    }
+    
+    /**
+     * Orientations that keep every pixel in its row read only the row they
+     * write, so they can run in bands and strips without a halo; all others
+     * read from anywhere in the input.
+     * 
+     * @return {@link OperationKind#NEIGHBORHOOD} for the identity and the
+     *         horizontal flip, {@link OperationKind#GEOMETRIC} otherwise
+     */
+    @Override
+    public OperationKind getOperationKind() {
+        return orientation.isRowLocal() ? OperationKind.NEIGHBORHOOD : OperationKind.GEOMETRIC;
+    }
+    
+    /**
+     * Transforms with the same orientation produce the same output, whatever
+     * they are called or composed from.
+     * 
+     * @return The class name with the orientation
+     */
+    @Override
+    public String getCacheKey() {
+        return GeometricTransform.class.getName() + "(" + orientation + ")";
+    }
+}
@@ -1,5 +1,8 @@
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.Random;
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
 
 /**
  * Applies a digital glitch effect by randomly shifting color channels horizontally.
@@ -7,63 +10,267 @@ import java.util.Random;
  * shifting the red, green, and blue color channels of each scanline by random amounts.
  * This channel misalignment produces the characteristic chromatic aberration seen in
  * glitch art and corrupted digital media.
+ * 
+ * The shifts of a scanline are drawn from a random source of its own, seeded
+ * from the filter's seed and the row number, so any row can be computed on
+ * its own: bands and strips running in any order on any number of threads
+ * give the same image. A filter created with a seed produces the same image
+ * every time; one created without draws a new seed for every image.
+ * 
+ * {@link #convertAnimated} decodes an image once and writes a sequence of
+ * differently glitched frames as an animated PNG or GIF.
  */
 public class Glitch extends Converter {
     
     /**
-     * Random number generator for glitch parameters.
-     * Used to create unpredictable shift amounts for each color channel.
+     * The largest maximum shift distance drawn for an image, in pixels.
      */
-    private final Random rand = new Random();
+    private static final int MAX_SHIFT_AMOUNT = 10;
     
     /**
-     * Processes an image to apply glitch effect through RGB channel shifting.
-     * For each horizontal scanline, this method generates random shift values for
-     * the red, green, and blue channels. Each pixel's color channels are then sampled
-     * from different horizontal positions, creating the characteristic color separation
-     * effect. The alpha channel remains unchanged to preserve transparency.
+     * An odd constant that spreads the row numbers over the seeds of the row
+     * random sources, so neighboring rows get unrelated sequences.
+     */
+    private static final long ROW_MULTIPLIER = 0xd1b54a32d192ed03L;
+    
+    /**
+     * The seed of the shifts, used only if {@link #seeded}.
+     */
+    private final long seed;
+    
+    /**
+     * Whether the filter has a fixed seed.
+     */
+    private final boolean seeded;
+    
+    /**
+     * Creates a glitch filter with a new random seed for every image.
+     */
+    public Glitch() {
+        this.seed = 0;
+        this.seeded = false;
+    }
+    
+    /**
+     * Creates a glitch filter that produces the same shifts every time.
+     * 
+     * @param seed The seed of the random shifts
+     */
+    public Glitch(long seed) {
+        this.seed = seed;
+        this.seeded = true;
+    }
+    
+    /**
+     * Processes the pixels to apply glitch effect through RGB channel shifting.
+     * All bands share one seed, so the image is the same however it is split.
      * 
-     * @param img The input image to be processed
-     * @return A new BufferedImage with glitch effect applied, featuring RGB channel
+     * @param src The pixels of the input image to be processed
+     * @return A new PixelBuffer with glitch effect applied, featuring RGB channel
      *         misalignment for a distorted aesthetic
      */
     @Override
-    protected BufferedImage processImage(BufferedImage img) {
-        int width = img.getWidth();
-        int height = img.getHeight();
-        
-        // Create output image with ARGB color space
-        BufferedImage processedImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    protected PixelBuffer processPixels(PixelBuffer src) {
+        PixelBuffer dst = createOutput(src);
+        long frameSeed = frameSeed(nextSeed(), 0);
+        getEngine().invokeBands(src.getHeight(), (startY, endY) -> shiftRows(src, dst, frameSeed, startY, endY));
+        return dst;
+    }
+    
+    /**
+     * Applies the glitch effect to the requested rows. With a fixed seed the
+     * rows are the same as in a whole image; without one, each call draws a
+     * new seed, so images are computed by the seeded copy
+     * {@link #getImageConverter} returns.
+     * 
+     * @param src The pixels of the input image to be processed
+     * @param dst The output buffer to write the glitched rows to
+     * @param startY The first row to process (inclusive)
+     * @param endY The last row to process (exclusive)
+     */
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        shiftRows(src, dst, frameSeed(nextSeed(), 0), startY, endY);
+    }
+    
+    /**
+     * Converts an input image file to an animation of differently glitched
+     * frames. The input is decoded once, and each frame is computed into the
+     * same buffer and encoded before the next one is computed, so memory use
+     * does not grow with the number of frames.
+     * 
+     * @param inputFileName The path to the input image file
+     * @param outputFileName The path of the animation, a GIF if it ends in
+     *                       ".gif" and an animated PNG otherwise
+     * @param frames The number of frames
+     * @param delayMillis How long each frame is shown, in milliseconds
+     * @throws IOException If the input cannot be decoded or the output written
+     * @throws IllegalArgumentException If the number of frames or the delay
+     *         is out of range
+     */
+    public void convertAnimated(String inputFileName, String outputFileName, int frames, int delayMillis)
+            throws IOException {
+        BufferedImage img = ImageDecoder.getDefault().read(new File(inputFileName));
+        if (img == null) {
+            throw new IOException("Unsupported image format: " + inputFileName);
+        }
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer dst = createOutput(src);
+        long animationSeed = nextSeed();
+        try (AnimationWriter writer = new AnimationWriter(new File(outputFileName), src.getWidth(),
+                src.getHeight(), frames, delayMillis, src.isOpaque())) {
+            for (int frame = 0; frame < frames; frame++) {
+                long frameSeed = frameSeed(animationSeed, frame);
+                getEngine().invokeBands(src.getHeight(), (startY, endY) ->
+                        shiftRows(src, dst, frameSeed, startY, endY));
+                writer.writeFrame(dst);
+            }
+        }
+    }
+    
+    /**
+     * Without a fixed seed, draws the seed of the next image once and returns
+     * a filter with that seed, so every band and strip of the image is
+     * shifted within the same range.
+     * 
+     * @return This filter if it has a fixed seed, or a new seeded filter
+     */
+    @Override
+    protected Converter getImageConverter() {
+        return seeded ? this : new Glitch(nextSeed());
+    }
+    
+    /**
+     * Returns the seed of the next image: the fixed seed, or a new random one.
+     */
+    private long nextSeed() {
+        return seeded ? seed : new SplittableRandom().nextLong();
+    }
+    
+    /**
+     * Derives the seed of one frame of an animation from the animation's
+     * seed. Single images are frame 0.
+     */
+    private static long frameSeed(long seed, int frame) {
+        return new SplittableRandom(seed + frame).nextLong();
+    }
+    
+    /**
+     * Shifts the color channels of the requested rows.
+     * A maximum shift distance of 1-10 pixels is drawn for the frame, then
+     * three shifts within that distance for each row from the row's own
+     * random source. The alpha channel remains unchanged to preserve
+     * transparency.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write the glitched rows to
+     * @param frameSeed The seed of the frame
+     * @param startY The first row to process (inclusive)
+     * @param endY The last row to process (exclusive)
+     */
+    private static void shiftRows(PixelBuffer src, PixelBuffer dst, long frameSeed, int startY, int endY) {
+        int width = src.getWidth();
+        int[] in = src.getData();
+        int[] out = dst.getData();
         
         // Determine maximum random shift distance (1-10 pixels)
-        int shiftAmount = rand.nextInt(10) + 1; 
+        int shiftAmount = new SplittableRandom(frameSeed).nextInt(MAX_SHIFT_AMOUNT) + 1;
         
         // Process each scanline independently
-        for (int y = 0; y < height; y++) {
+        for (int y = startY; y < endY; y++) {
             // Generate unique shifts for each color channel per line
-            int rShift = rand.nextInt(shiftAmount) - shiftAmount / 2; // Red shift (-5 to +5)
-            int gShift = rand.nextInt(shiftAmount) - shiftAmount / 2; // Green shift
-            int bShift = rand.nextInt(shiftAmount) - shiftAmount / 2;  // Blue shift
-            
-            // Process each pixel in the current line
-            for (int x = 0; x < width; x++) {
-                // Calculate shifted positions with boundary checks
-                int newX_R = Math.min(Math.max(x + rShift, 0), width - 1);
-                int newX_G = Math.min(Math.max(x + gShift, 0), width - 1);
-                int newX_B = Math.min(Math.max(x + bShift, 0), width - 1);
-                
-                // Sample color channels from different positions
-                ARGB original = new ARGB(img.getRGB(x, y));
-                int r = new ARGB(img.getRGB(newX_R, y)).red;    // Shifted red
-                int g = new ARGB(img.getRGB(newX_G, y)).green;  // Shifted green
-                int b = new ARGB(img.getRGB(newX_B, y)).blue;   // Shifted blue
-                
-                // Combine shifted colors with original alpha
-                ARGB newColor = new ARGB(original.alpha, r, g, b);
-                processedImg.setRGB(x, y, newColor.toInt());
-            }
+            SplittableRandom rowRandom = new SplittableRandom(frameSeed ^ (y + 1) * ROW_MULTIPLIER);
+            int rShift = rowRandom.nextInt(shiftAmount) - shiftAmount / 2; // Red shift (-5 to +5)
+            int gShift = rowRandom.nextInt(shiftAmount) - shiftAmount / 2; // Green shift
+            int bShift = rowRandom.nextInt(shiftAmount) - shiftAmount / 2; // Blue shift
+            shiftRow(in, src.rowOffset(y), out, dst.rowOffset(y), width, rShift, gShift, bShift);
+        }
+    }
+    
+    /**
+     * Shifts the color channels of one row.
+     * Each channel of the output row is the same channel of the input row,
+     * moved by its shift. Away from the ends of the row every shifted position
+     * is inside the row, so each channel is a plain offset copy and the
+     * channels are merged with masks, with no bounds checks; only the few
+     * pixels at each end clamp their positions to the row.
+     */
+    private static void shiftRow(int[] in, int srcRow, int[] out, int dstRow, int width,
+                                 int rShift, int gShift, int bShift) {
+        // [from, to) is where no shifted position leaves the row
+        int from = Math.min(width, Math.max(0, -Math.min(rShift, Math.min(gShift, bShift))));
+        int to = Math.max(from, width - Math.max(0, Math.max(rShift, Math.max(gShift, bShift))));
+        for (int x = from; x < to; x++) {
+            int i = srcRow + x;
+            out[dstRow + x] = (in[i] & Pixels.ALPHA_MASK)
+                    | (in[i + rShift] & Pixels.RED_MASK)
+                    | (in[i + gShift] & Pixels.GREEN_MASK)
+                    | (in[i + bShift] & Pixels.BLUE_MASK);
         }
         
-        return processedImg;
+        // The few pixels at each end sample the nearest pixel inside the row
+        shiftClamped(in, srcRow, out, dstRow, width, rShift, gShift, bShift, 0, from);
+        shiftClamped(in, srcRow, out, dstRow, width, rShift, gShift, bShift, to, width);
+    }
+    
+    /**
+     * Shifts the color channels of the pixels [startX, endX) of one row,
+     * clamping the shifted positions to the row.
+     */
+    private static void shiftClamped(int[] in, int srcRow, int[] out, int dstRow, int width,
+                                     int rShift, int gShift, int bShift, int startX, int endX) {
+        for (int x = startX; x < endX; x++) {
+            // Calculate shifted positions with boundary checks
+            int r = in[srcRow + Math.min(Math.max(x + rShift, 0), width - 1)];
+            int g = in[srcRow + Math.min(Math.max(x + gShift, 0), width - 1)];
+            int b = in[srcRow + Math.min(Math.max(x + bShift, 0), width - 1)];
+            out[dstRow + x] = (in[srcRow + x] & Pixels.ALPHA_MASK)
+                    | (r & Pixels.RED_MASK) | (g & Pixels.GREEN_MASK) | (b & Pixels.BLUE_MASK);
+        }
+    }
+    
+    /**
+     * Each output pixel reads pixels from the same scanline only, so bands
+     * need no rows above or below them.
+     * 
+     * @return {@link OperationKind#NEIGHBORHOOD}
+     */
+    @Override
+    public OperationKind getOperationKind() {
+        return OperationKind.NEIGHBORHOOD;
+    }
+    
+    /**
+     * A pixel's channels move along its row by at most
+     * {@link #MAX_SHIFT_AMOUNT} pixels, so with a fixed seed a change affects
+     * only the pixels that far to either side of it. Without a seed the
+     * shifts are drawn again, and every pixel may change.
+     * 
+     * @param dirty The changed input pixels
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The changed pixels widened by the largest shift, or null
+     *         without a fixed seed
+     */
+    @Override
+    public Rectangle getAffectedRegion(Rectangle dirty, int width, int height) {
+        if (!seeded) {
+            return null;
+        }
+        Rectangle region = new Rectangle(dirty);
+        region.grow(MAX_SHIFT_AMOUNT, 0);
+        return region.intersection(new Rectangle(width, height));
+    }
+    
+    /**
+     * With a fixed seed the output is determined by the input and the seed.
+     * Without one the shifts differ every time, and the output must not be
+     * served from a cache.
+     * 
+     * @return The class name with the seed, or null without a fixed seed
+     */
+    @Override
+    public String getCacheKey() {
+        return seeded ? super.getCacheKey() + "(seed=" + seed + ")" : null;
     }
 }
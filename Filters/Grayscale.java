@@ -1,46 +1,43 @@
-import java.awt.image.BufferedImage;
-
 /**
  * Converts colored images to grayscale using the averaging method.
  * This class implements grayscale conversion by calculating the average of the
  * red, green, and blue color channels for each pixel. While this method is
  * computationally simple, it treats all color channels equally and may not
  * produce the most perceptually accurate grayscale representation.
+ * 
+ * The result holds one gray level per pixel, so it is stored and written as
+ * {@link PixelLayout#GRAY}, or as {@link PixelLayout#GRAY_ALPHA} when the
+ * input has transparent pixels whose alpha must be kept.
  */
-public class Grayscale extends Converter {
+public class Grayscale extends PointConverter {
     
     /**
-     * Processes the input image and converts it to grayscale.
+     * Converts a run of pixels to grayscale.
      * This method calculates the grayscale value for each pixel by averaging the
      * red, green, and blue components. The resulting gray value is assigned to all
      * three RGB channels while preserving the original alpha (transparency) value.
+     * The loop runs in {@link PixelKernels#grayscale}, vectorized when possible.
      * 
-     * @param img A BufferedImage representing the input image to be processed
-     * @return A new BufferedImage representing the grayscale image with the same
-     *         dimensions as the input
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write the grayscale pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to convert
      */
     @Override
-    public BufferedImage processImage(BufferedImage img) {
-        // Get width and height of input image
-        int width = img.getWidth();
-        int height = img.getHeight();
-        
-        // Create a new grayscale image with the same width and height
-        BufferedImage processedImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        
-        // Iterate over each pixel to convert it to grayscale
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                int rgb = img.getRGB(x, y);
-                ARGB color = new ARGB(rgb);
-                
-                int grayLevel = (color.red + color.green + color.blue) / 3;
-                ARGB grayColor = new ARGB(color.alpha, grayLevel, grayLevel, grayLevel);
-                
-                processedImg.setRGB(x, y, grayColor.toInt());
-            }
-        }
-        
-        return processedImg;
+    protected void filterRow(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        PixelKernels.getDefault().grayscale(in, inOffset, out, outOffset, length);
+    }
+    
+    /**
+     * Gray pixels need one byte, or two when the input's alpha varies.
+     * 
+     * @param src The input pixels, or null if they are not known yet
+     * @return {@link PixelLayout#GRAY} for an opaque input, otherwise
+     *         {@link PixelLayout#GRAY_ALPHA}
+     */
+    @Override
+    public PixelLayout getOutputLayout(PixelBuffer src) {
+        return src != null && src.isOpaque() ? PixelLayout.GRAY : PixelLayout.GRAY_ALPHA;
     }
 }
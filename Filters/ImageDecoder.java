@@ -0,0 +1,535 @@
+import java.awt.Dimension;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes input images for the converters, faster than ImageIO.read.
+ * 
+ * ImageIO.read looks up a reader afresh for every file, asking every
+ * registered plugin whether it understands the data, and creates a new reader
+ * each time. It also returns whatever image type the codec prefers, usually
+ * TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR, which {@link PixelBuffer#wrap} then has
+ * to convert to packed ARGB pixel by pixel. This decoder instead:
+ * 
+ *   - remembers the reader plugins it has used and tries them first, and keeps
+ *     idle readers per plugin to reuse them, one thread at a time;
+ *   - decodes 8-bit sRGB PNG and JPEG images straight into a TYPE_INT_ARGB
+ *     destination through an ImageReadParam, so the converters wrap the
+ *     result without any copy; other formats and layouts (gray, palette,
+ *     16-bit, ICC profiles) are decoded as ImageIO would and converted by
+ *     {@link PixelBuffer#wrap}, so their pixels come out exactly as before;
+ *   - reads 8-bit gray PNGs marked as sRGB, such as those earlier versions
+ *     wrote for the gray results of Grayscale and EdgeDetection, with their
+ *     levels taken literally; ImageIO ignores the marking and reads every
+ *     gray PNG as linear gray, which makes these lighter;
+ *   - reads every n-th pixel of every n-th row with source subsampling when
+ *     the consumer only needs a reduced image, such as a thumbnail or
+ *     {@link Converter#getDecodeSubsampling() Pixelate with large blocks},
+ *     which decodes the full image data but converts and stores only a
+ *     fraction of it.
+ * 
+ * Raw {@link RawImage} files are recognized by their content and read as
+ * well. The decoder counts the images, pixels and time it spends per format,
+ * see {@link #toString()}.
+ */
+public final class ImageDecoder {
+    
+    /**
+     * The formats whose readers write correctly into a TYPE_INT_ARGB
+     * destination or an RGB view of one, by their lower-case format name.
+     */
+    private static final List<String> DIRECT_FORMATS = Arrays.asList("png", "jpeg");
+    
+    /**
+     * The types of the PNG chunks {@link #hasSrgbChunk} looks for.
+     */
+    private static final int SRGB_CHUNK = 's' << 24 | 'R' << 16 | 'G' << 8 | 'B';
+    private static final int IDAT_CHUNK = 'I' << 24 | 'D' << 16 | 'A' << 8 | 'T';
+    
+    /**
+     * The format name under which raw images are counted.
+     */
+    private static final String RAW_FORMAT = "argb";
+    
+    /**
+     * The decoder shared by the converters.
+     */
+    private static final ImageDecoder DEFAULT = new ImageDecoder();
+    
+    /**
+     * The reader plugins that have decoded an image, in the order they were
+     * first used.
+     */
+    private final List<ImageReaderSpi> providers = new CopyOnWriteArrayList<>();
+    
+    /**
+     * The idle readers of each plugin.
+     */
+    private final Map<ImageReaderSpi, Queue<ImageReader>> idleReaders = new ConcurrentHashMap<>();
+    
+    /**
+     * The counters of each format, by format name.
+     */
+    private final Map<String, FormatStatistics> statistics = new ConcurrentHashMap<>();
+    
+    /**
+     * Returns the decoder shared by the converters.
+     * 
+     * @return The default decoder
+     */
+    public static ImageDecoder getDefault() {
+        return DEFAULT;
+    }
+    
+    /**
+     * Reads an image file at full size.
+     * 
+     * @param file The file to read
+     * @return The image, TYPE_INT_ARGB when the format allows a direct
+     *         decode, or null if no reader understands the file
+     * @throws IOException If the file cannot be read
+     */
+    public BufferedImage read(File file) throws IOException {
+        return read(file, 1);
+    }
+    
+    /**
+     * Reads an image file, keeping only every n-th pixel of every n-th row.
+     * The image has {@code ceil(width / n)} by {@code ceil(height / n)}
+     * pixels; pixel (x, y) is pixel (x * n, y * n) of the full image.
+     * 
+     * @param file The file to read
+     * @param subsampling The subsampling factor n, 1 for the full image
+     * @return The image, or null if no reader understands the file
+     * @throws IOException If the file cannot be read
+     */
+    public BufferedImage read(File file, int subsampling) throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1: " + subsampling);
+        }
+        if (RawImage.isRaw(file)) {
+            long start = System.nanoTime();
+            BufferedImage img = RawImage.read(file);
+            record(RAW_FORMAT, (long) img.getWidth() * img.getHeight(), System.nanoTime() - start);
+            return subsampling == 1 ? img : subsample(img, subsampling);
+        }
+        try (ImageInputStream input = new FileImageInputStream(file)) {
+            return read(input, subsampling);
+        }
+    }
+    
+    /**
+     * Reads an image held in memory, such as the body of a request.
+     * 
+     * @param data The encoded image
+     * @return The image, or null if no reader understands the data
+     * @throws IOException If the data cannot be decoded
+     */
+    public BufferedImage read(byte[] data) throws IOException {
+        // A memory cache, not the temporary file ImageIO.read would use
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            return read(input, 1);
+        }
+    }
+    
+    /**
+     * Reads an image file reduced by the largest subsampling factor that
+     * still leaves at least the given number of pixels in each direction, as
+     * the starting point for a thumbnail. Images smaller than the requested
+     * size are read at full size.
+     * 
+     * @param file The file to read
+     * @param minWidth The smallest acceptable width
+     * @param minHeight The smallest acceptable height
+     * @return The image, or null if no reader understands the file
+     * @throws IOException If the file cannot be read
+     */
+    public BufferedImage readThumbnail(File file, int minWidth, int minHeight) throws IOException {
+        Dimension size = getSize(file);
+        if (size == null) {
+            return null;
+        }
+        int subsampling = Math.max(1, Math.min(size.width / Math.max(1, minWidth),
+                size.height / Math.max(1, minHeight)));
+        return read(file, subsampling);
+    }
+    
+    /**
+     * Reads only the dimensions of an image file.
+     * 
+     * @param file The file to inspect
+     * @return The width and height, or null if no reader understands the file
+     * @throws IOException If the file cannot be read
+     */
+    public Dimension getSize(File file) throws IOException {
+        if (RawImage.isRaw(file)) {
+            try (RawImage.Reader reader = new RawImage.Reader(file)) {
+                return new Dimension(reader.getWidth(), reader.getHeight());
+            }
+        }
+        try (ImageInputStream input = new FileImageInputStream(file)) {
+            ImageReaderSpi provider = findProvider(input);
+            if (provider == null) {
+                return null;
+            }
+            ImageReader reader = borrowReader(provider);
+            boolean reusable = false;
+            try {
+                reader.setInput(input, true, true);
+                Dimension size = new Dimension(reader.getWidth(0), reader.getHeight(0));
+                reusable = true;
+                return size;
+            } finally {
+                returnReader(provider, reader, reusable);
+            }
+        }
+    }
+    
+    /**
+     * Decodes the first image of a stream with a pooled reader.
+     */
+    private BufferedImage read(ImageInputStream input, int subsampling) throws IOException {
+        long start = System.nanoTime();
+        ImageReaderSpi provider = findProvider(input);
+        if (provider == null) {
+            return null;
+        }
+        boolean srgb = "png".equals(getFormatName(provider)) && hasSrgbChunk(input);
+        ImageReader reader = borrowReader(provider);
+        boolean reusable = false;
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            String format = getFormatName(provider);
+            int dstWidth = (width + subsampling - 1) / subsampling;
+            int dstHeight = (height + subsampling - 1) / subsampling;
+            BufferedImage img;
+            int bands = DIRECT_FORMATS.contains(format) ? getDirectBands(reader) : 0;
+            int grayBands = srgb ? getGrayBands(reader) : 0;
+            if (bands > 0) {
+                img = new BufferedImage(dstWidth, dstHeight, BufferedImage.TYPE_INT_ARGB);
+                param.setDestination(bands == 3 ? opaqueView(img) : img);
+                reader.read(0, param);
+            } else if (grayBands == 1) {
+                // The levels land in the palette indices of a gray image
+                img = PixelLayout.GRAY.createImage(dstWidth, dstHeight);
+                param.setDestination(img);
+                reader.read(0, param);
+            } else if (grayBands == 2) {
+                img = toGrayAlpha(reader.read(0, param).getRaster());
+            } else {
+                img = reader.read(0, param);
+            }
+            reusable = true;
+            record(format, (long) width * height, System.nanoTime() - start);
+            return img;
+        } finally {
+            returnReader(provider, reader, reusable);
+        }
+    }
+    
+    /**
+     * Returns how many bands of a TYPE_INT_ARGB destination the reader can
+     * fill directly: 3 for 8-bit sRGB without alpha, 4 for 8-bit sRGB with
+     * unpremultiplied alpha, and 0 when the image must be decoded into the
+     * reader's own type so that its colors are converted exactly as before.
+     */
+    private static int getDirectBands(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) {
+            return 0;
+        }
+        // The first type is the one ImageIO.read would decode into
+        ColorModel model = types.next().getColorModel();
+        if (model instanceof IndexColorModel || !model.getColorSpace().isCS_sRGB()
+                || model.isAlphaPremultiplied()) {
+            return 0;
+        }
+        for (int size : model.getComponentSize()) {
+            if (size != 8) {
+                return 0;
+            }
+        }
+        int components = model.getNumComponents();
+        return components == 3 && !model.hasAlpha() || components == 4 && model.hasAlpha() ? components : 0;
+    }
+    
+    /**
+     * Returns the number of bands of an 8-bit gray PNG, 1 without alpha and 2
+     * with, or 0 for any other layout.
+     */
+    private static int getGrayBands(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) {
+            return 0;
+        }
+        ColorModel model = types.next().getColorModel();
+        if (model instanceof IndexColorModel || model.getColorSpace().getType() != ColorSpace.TYPE_GRAY) {
+            return 0;
+        }
+        for (int size : model.getComponentSize()) {
+            if (size != 8) {
+                return 0;
+            }
+        }
+        return model.getNumComponents();
+    }
+    
+    /**
+     * Checks whether a PNG stream has an sRGB chunk before its image data.
+     * The reader skips the chunk when metadata is ignored, and would not apply
+     * it to gray images anyway, so the chunk headers are scanned here. The
+     * stream is left where it was.
+     */
+    private static boolean hasSrgbChunk(ImageInputStream input) throws IOException {
+        input.mark();
+        try {
+            input.skipBytes(8);
+            while (true) {
+                int length = input.readInt();
+                int type = input.readInt();
+                if (type == IDAT_CHUNK || length < 0) {
+                    return false;
+                }
+                if (type == SRGB_CHUNK) {
+                    return true;
+                }
+                input.skipBytes(length + 4L);
+            }
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            input.reset();
+        }
+    }
+    
+    /**
+     * Converts a decoded raster of gray and alpha samples to a
+     * {@link PixelLayout#GRAY_ALPHA} image, taking the levels literally.
+     */
+    private static BufferedImage toGrayAlpha(Raster raster) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        BufferedImage img = PixelLayout.GRAY_ALPHA.createImage(width, height);
+        PixelBuffer dst = PixelBuffer.wrap(img);
+        int[] out = dst.getData();
+        int[] samples = new int[2 * width];
+        for (int y = 0; y < height; y++) {
+            raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, 1, samples);
+            int offset = dst.rowOffset(y);
+            for (int x = 0; x < width; x++) {
+                out[offset + x] = samples[2 * x + 1] << 24 | samples[2 * x] * 0x010101;
+            }
+        }
+        return img;
+    }
+    
+    /**
+     * Returns a TYPE_INT_RGB image sharing the pixels of a TYPE_INT_ARGB image,
+     * with every alpha set to opaque. A reader decoding into it writes red,
+     * green and blue through the masks of the RGB view and leaves the alpha
+     * bits alone, so the ARGB image receives opaque pixels without a copy.
+     */
+    private static BufferedImage opaqueView(BufferedImage img) {
+        DataBufferInt buffer = (DataBufferInt) img.getRaster().getDataBuffer();
+        Arrays.fill(buffer.getData(), 0xff000000);
+        int[] masks = {0xff0000, 0xff00, 0xff};
+        WritableRaster raster = Raster.createPackedRaster(buffer, img.getWidth(), img.getHeight(),
+                img.getWidth(), masks, null);
+        return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+    }
+    
+    /**
+     * Finds the reader plugin for a stream, trying the plugins used before
+     * first and asking ImageIO only for a format not seen yet.
+     */
+    private ImageReaderSpi findProvider(ImageInputStream input) throws IOException {
+        for (ImageReaderSpi provider : providers) {
+            if (provider.canDecodeInput(input)) {
+                return provider;
+            }
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        ImageReaderSpi provider = reader.getOriginatingProvider();
+        if (provider == null) {
+            return null;
+        }
+        if (!providers.contains(provider)) {
+            providers.add(provider);
+        }
+        returnReader(provider, reader, true);
+        return provider;
+    }
+    
+    /**
+     * Takes an idle reader of a plugin, or creates one.
+     */
+    private ImageReader borrowReader(ImageReaderSpi provider) throws IOException {
+        ImageReader reader = idleReaders.computeIfAbsent(provider, p -> new ConcurrentLinkedQueue<>()).poll();
+        return reader != null ? reader : provider.createReaderInstance();
+    }
+    
+    /**
+     * Detaches a reader from its stream and makes it available again, or
+     * disposes of it if a failure may have left it in an unknown state.
+     */
+    private void returnReader(ImageReaderSpi provider, ImageReader reader, boolean reusable) {
+        if (!reusable) {
+            reader.dispose();
+            return;
+        }
+        reader.reset();
+        idleReaders.computeIfAbsent(provider, p -> new ConcurrentLinkedQueue<>()).offer(reader);
+    }
+    
+    /**
+     * Returns the lower-case name of the format a plugin reads, such as "png".
+     */
+    private static String getFormatName(ImageReaderSpi provider) {
+        String[] names = provider.getFormatNames();
+        return names.length > 0 ? names[0].toLowerCase(Locale.ROOT) : provider.getClass().getSimpleName();
+    }
+    
+    /**
+     * Keeps every n-th pixel of every n-th row of an image already in memory.
+     */
+    private static BufferedImage subsample(BufferedImage img, int subsampling) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer dst = PixelBuffer.create((src.getWidth() + subsampling - 1) / subsampling,
+                (src.getHeight() + subsampling - 1) / subsampling);
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        for (int y = 0; y < dst.getHeight(); y++) {
+            int srcRow = src.rowOffset(y * subsampling);
+            int dstRow = dst.rowOffset(y);
+            for (int x = 0; x < dst.getWidth(); x++) {
+                out[dstRow + x] = in[srcRow + x * subsampling];
+            }
+        }
+        return dst.toImage();
+    }
+    
+    /**
+     * Adds one decoded image to the counters of its format.
+     */
+    private void record(String format, long pixels, long nanos) {
+        statistics.computeIfAbsent(format, f -> new FormatStatistics()).add(pixels, nanos);
+    }
+    
+    /**
+     * Returns the number of images decoded in a format.
+     * 
+     * @param format The lower-case format name, such as "png" or "jpeg"
+     * @return The number of images
+     */
+    public long getImages(String format) {
+        FormatStatistics counters = statistics.get(format);
+        return counters != null ? counters.images.get() : 0;
+    }
+    
+    /**
+     * Returns the decoding throughput in a format: the pixels of the full
+     * source images, also when they were subsampled, per second spent in the
+     * decoder.
+     * 
+     * @param format The lower-case format name, such as "png" or "jpeg"
+     * @return Pixels per second, or 0 if nothing was decoded in the format
+     */
+    public double getPixelsPerSecond(String format) {
+        FormatStatistics counters = statistics.get(format);
+        return counters != null ? counters.getPixelsPerSecond() : 0;
+    }
+    
+    /**
+     * Describes the throughput of every format decoded so far, one line per
+     * format.
+     * 
+     * @return The statistics in a human-readable form
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, FormatStatistics> entry : statistics.entrySet()) {
+            FormatStatistics counters = entry.getValue();
+            text.append(String.format(Locale.ROOT, "%s: %d images, %.1f megapixels, %.1f megapixels/s%n",
+                    entry.getKey(), counters.images.get(), counters.pixels.get() / 1e6,
+                    counters.getPixelsPerSecond() / 1e6));
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Formats the counters of every format as a JSON object keyed by format.
+     * 
+     * @return The statistics as JSON
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, FormatStatistics> entry : statistics.entrySet()) {
+            FormatStatistics counters = entry.getValue();
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "\"%s\":{\"images\":%d,\"pixels\":%d,\"pixelsPerSecond\":%.0f}",
+                    entry.getKey(), counters.images.get(), counters.pixels.get(), counters.getPixelsPerSecond()));
+        }
+        return json.append('}').toString();
+    }
+    
+    /**
+     * The counters of one format.
+     */
+    private static final class FormatStatistics {
+        final AtomicLong images = new AtomicLong();
+        final AtomicLong pixels = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        
+        void add(long imagePixels, long imageNanos) {
+            images.incrementAndGet();
+            pixels.addAndGet(imagePixels);
+            nanos.addAndGet(imageNanos);
+        }
+        
+        double getPixelsPerSecond() {
+            long time = nanos.get();
+            return time > 0 ? pixels.get() * 1e9 / time : 0;
+        }
+    }
+}
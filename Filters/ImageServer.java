@@ -0,0 +1,515 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves image conversions over HTTP so that other programs can use PixelCraft
+ * without starting a JVM for every image.
+ * The server is built on the JDK's com.sun.net.httpserver and understands two
+ * requests:
+ * 
+ *   POST /convert/{ConverterName}[+{ConverterName}...]
+ *       The request body is an image in any format ImageIO can read; the
+ *       response is the processed image as PNG.
+ * 
+ *   GET /stats
+ *       Returns the number of conversions served and their latency
+ *       percentiles as JSON, the time and allocations of the decode, process
+ *       and encode stages of all conversions, the decoding throughput of each
+ *       input format, and the counters of the result cache if the server has
+ *       one.
+ * 
+ * Converters are created once per name or chain and reused by every later
+ * request, so no reflection happens after the first request for a name.
+ * Converters must therefore be safe to call from several threads at once,
+ * which all converters in this project are.
+ * 
+ * Every request runs on its own thread: a virtual thread when the JVM
+ * supports them (Java 21 and later), otherwise a thread from a cached pool.
+ * Threads are cheap, but decoded images are not, so at most
+ * {@link #getMaxConcurrent()} conversions run at the same time. A request that
+ * cannot start within the queue timeout is answered with 503.
+ * 
+ * With a {@link ResultCache} set, a request for an image and converter that
+ * have been converted before is answered from the cache without waiting for a
+ * slot or decoding the image.
+ */
+public class ImageServer {
+    
+    /**
+     * Default port the server listens on.
+     */
+    public static final int DEFAULT_PORT = 8080;
+    
+    /**
+     * Default time a request waits for a free conversion slot.
+     */
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 10_000;
+    
+    /**
+     * Path prefix of conversion requests.
+     */
+    private static final String CONVERT_PATH = "/convert/";
+    
+    /**
+     * The underlying HTTP server.
+     */
+    private final HttpServer server;
+    
+    /**
+     * The threads handling requests.
+     */
+    private final ExecutorService executor;
+    
+    /**
+     * Converters created so far, keyed by the converter name or chain.
+     */
+    private final Map<String, Converter> converters = new ConcurrentHashMap<>();
+    
+    /**
+     * Limits the number of conversions running at once.
+     */
+    private final Semaphore slots;
+    
+    /**
+     * The largest number of conversions running at once.
+     */
+    private final int maxConcurrent;
+    
+    /**
+     * How long a request waits for a free slot before it is rejected.
+     */
+    private final long queueTimeoutMillis;
+    
+    /**
+     * Latencies of the conversions served so far.
+     */
+    private final LatencyStats latencies = new LatencyStats();
+    
+    /**
+     * The stages of the conversions run so far, excluding cached results.
+     */
+    private final ConversionMetrics metrics = new ConversionMetrics();
+    
+    /**
+     * The cache of earlier results, or null to convert every request.
+     */
+    private volatile ResultCache cache;
+    
+    /**
+     * Creates a server listening on the loopback interface.
+     * 
+     * @param port The port to listen on, or 0 to pick a free port
+     * @param maxConcurrent The largest number of conversions running at once
+     * @throws IOException If the server socket cannot be opened
+     */
+    public ImageServer(int port, int maxConcurrent) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), maxConcurrent,
+                DEFAULT_QUEUE_TIMEOUT_MILLIS);
+    }
+    
+    /**
+     * Creates a server listening on the given address.
+     * 
+     * @param address The address and port to listen on
+     * @param maxConcurrent The largest number of conversions running at once
+     * @param queueTimeoutMillis How long a request waits for a free slot
+     * @throws IOException If the server socket cannot be opened
+     * @throws IllegalArgumentException If maxConcurrent is less than 1 or the
+     *                                  timeout is negative
+     */
+    public ImageServer(InetSocketAddress address, int maxConcurrent, long queueTimeoutMillis)
+            throws IOException {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1: " + maxConcurrent);
+        }
+        if (queueTimeoutMillis < 0) {
+            throw new IllegalArgumentException("queueTimeoutMillis must not be negative: " + queueTimeoutMillis);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.slots = new Semaphore(maxConcurrent, true);
+        this.executor = newRequestExecutor();
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext(CONVERT_PATH, this::handleConvert);
+        server.createContext("/stats", this::handleStats);
+    }
+    
+    /**
+     * Creates the executor running request handlers.
+     * Virtual threads are looked up reflectively so that the server still
+     * compiles and runs on JVMs older than Java 21.
+     * 
+     * @return A virtual-thread-per-task executor, or a cached thread pool
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "pixelcraft-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    /**
+     * Starts accepting requests in the background.
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stops the server, waiting up to the given time for running requests.
+     * 
+     * @param delaySeconds The longest time to wait for running requests
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Returns the port the server listens on, which is useful after asking
+     * for port 0.
+     * 
+     * @return The bound port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    /**
+     * Returns the largest number of conversions running at once.
+     * 
+     * @return The concurrency limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    /**
+     * Returns the latencies of the conversions served so far.
+     * 
+     * @return The latency statistics
+     */
+    public LatencyStats getLatencies() {
+        return latencies;
+    }
+    
+    /**
+     * Returns the time and allocations of the stages of the conversions run
+     * so far, added up over all requests that were not answered from the
+     * cache.
+     * 
+     * @return The conversion metrics
+     */
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Returns the cache of earlier results.
+     * 
+     * @return The result cache, or null if every request is converted
+     */
+    public ResultCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * Sets the cache of earlier results.
+     * 
+     * @param cache The result cache, or null to convert every request
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Handles POST /convert/{spec}.
+     * A result cache that cannot be read or written is reported on standard
+     * error and otherwise ignored, so the conversion still succeeds; a result
+     * that cannot be encoded gets 500.
+     * 
+     * @param exchange The request and response
+     * @throws IOException If the response cannot be sent
+     */
+    @SuppressWarnings("try")
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendText(exchange, 405, "Use POST");
+                return;
+            }
+            String spec = exchange.getRequestURI().getPath().substring(CONVERT_PATH.length());
+            Converter converter;
+            try {
+                converter = getConverter(spec);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                sendText(exchange, 404, "Unknown converter: " + spec);
+                return;
+            }
+            
+            byte[] input = readFully(exchange.getRequestBody());
+            
+            // A repeated conversion is answered from the cache without decoding
+            ConversionMetrics requestMetrics = new ConversionMetrics(spec);
+            ResultCache resultCache = cache;
+            String converterKey = converter.getCacheKey();
+            String key = resultCache != null && converterKey != null
+                    ? ResultCache.key(input, converterKey, "png") : null;
+            byte[] png = null;
+            if (key != null) {
+                try (ConversionMetrics.Timer ignored = requestMetrics.start(ConversionMetrics.Stage.CACHE)) {
+                    png = resultCache.get(key);
+                } catch (IOException e) {
+                    // An unreadable disk entry is converted again like a miss
+                    System.err.println("Cannot read cached result of " + spec + ": " + e.getMessage());
+                }
+            }
+            
+            if (png == null) {
+                // Wait for a conversion slot; threads are cheap but images are not
+                if (!slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    sendText(exchange, 503, "Server busy");
+                    return;
+                }
+                try {
+                    BufferedImage img;
+                    try (ConversionMetrics.Timer ignored = requestMetrics.start(ConversionMetrics.Stage.DECODE)) {
+                        img = ImageDecoder.getDefault().read(input);
+                    } catch (IOException e) {
+                        // A corrupt or truncated upload is the client's fault, like an unknown format
+                        sendText(exchange, 400, "Unsupported or corrupt image");
+                        return;
+                    }
+                    if (img == null) {
+                        sendText(exchange, 400, "Unsupported or missing image");
+                        return;
+                    }
+                    requestMetrics.recordImage(img.getWidth(), img.getHeight());
+                    BufferedImage processedImg;
+                    try (ConversionMetrics.Timer ignored = requestMetrics.start(ConversionMetrics.Stage.PROCESS)) {
+                        processedImg = converter.processImage(img);
+                    }
+                    try (ConversionMetrics.Timer ignored = requestMetrics.start(ConversionMetrics.Stage.ENCODE)) {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        PngWriter.write(processedImg, buffer);
+                        png = buffer.toByteArray();
+                    } catch (IOException e) {
+                        sendText(exchange, 500, "Cannot encode result: " + e.getMessage());
+                        return;
+                    }
+                } finally {
+                    slots.release();
+                }
+                if (key != null) {
+                    try (ConversionMetrics.Timer ignored = requestMetrics.start(ConversionMetrics.Stage.CACHE)) {
+                        resultCache.put(key, png);
+                    } catch (IOException e) {
+                        // The result is still good; only later requests miss it
+                        System.err.println("Cannot cache result of " + spec + ": " + e.getMessage());
+                    }
+                }
+            }
+            metrics.add(requestMetrics);
+            
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(png);
+            }
+            latencies.record(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "Server shutting down");
+        } catch (RuntimeException e) {
+            sendText(exchange, 500, "Error: " + e);
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Handles GET /stats.
+     * 
+     * @param exchange The request and response
+     * @throws IOException If the response cannot be sent
+     */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            String stats = latencies.toJson().trim();
+            ResultCache resultCache = cache;
+            if (resultCache != null) {
+                // Add the cache counters as a nested object
+                stats = stats.substring(0, stats.length() - 1) + ",\"cache\":" + resultCache.toJson() + "}";
+            }
+            // The stages of the conversions, and the decoding throughput of each input format
+            stats = stats.substring(0, stats.length() - 1) + ",\"metrics\":" + metrics.toJson()
+                    + ",\"decode\":" + ImageDecoder.getDefault().toJson() + "}";
+            byte[] json = (stats + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, json.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(json);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Returns the converter for a name or chain, creating it on first use.
+     * 
+     * @param spec One converter name, or several joined with '+'
+     * @return The shared converter instance
+     * @throws ReflectiveOperationException If a converter cannot be created
+     */
+    private Converter getConverter(String spec) throws ReflectiveOperationException {
+        Converter converter = converters.get(spec);
+        if (converter == null) {
+            // Two requests may race to create the same converter; keep the first
+            Converter created = Pipeline.parse(spec);
+            converter = converters.putIfAbsent(spec, created);
+            if (converter == null) {
+                converter = created;
+            }
+        }
+        return converter;
+    }
+    
+    /**
+     * Reads a request body completely.
+     * 
+     * @param in The request body
+     * @return The bytes of the body
+     * @throws IOException If the body cannot be read
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, n);
+        }
+        return buffer.toByteArray();
+    }
+    
+    /**
+     * Sends a plain text response.
+     * 
+     * @param exchange The request and response
+     * @param status The HTTP status code
+     * @param message The response body
+     * @throws IOException If the response cannot be sent
+     */
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] text = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, text.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(text);
+        }
+    }
+    
+    /**
+     * Keeps the latencies of the most recent requests and computes
+     * percentiles over them.
+     * Only the last {@link #WINDOW} latencies are kept, so the percentiles
+     * follow the current load and memory use stays constant.
+     */
+    public static final class LatencyStats {
+        
+        /**
+         * The number of recent latencies kept.
+         */
+        public static final int WINDOW = 4096;
+        
+        private final long[] recent = new long[WINDOW];
+        private long count;
+        
+        /**
+         * Records the latency of one request.
+         * 
+         * @param nanos The latency in nanoseconds
+         */
+        public synchronized void record(long nanos) {
+            recent[(int) (count % WINDOW)] = nanos;
+            count++;
+        }
+        
+        /**
+         * Returns the number of requests recorded since the server started.
+         * 
+         * @return The request count
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+        
+        /**
+         * Returns a latency percentile over the recent requests, using the
+         * nearest-rank method.
+         * 
+         * @param percentile The percentile, between 0 and 100
+         * @return The latency in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            return percentiles(percentile)[0];
+        }
+        
+        /**
+         * Computes several percentiles from a single sorted snapshot.
+         * 
+         * @param percentiles The percentiles, between 0 and 100
+         * @return The latencies in nanoseconds, in the same order
+         */
+        private long[] percentiles(double... percentiles) {
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(recent, (int) Math.min(count, WINDOW));
+            }
+            Arrays.sort(sorted);
+            long[] result = new long[percentiles.length];
+            for (int i = 0; i < percentiles.length && sorted.length > 0; i++) {
+                int rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length);
+                result[i] = sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+            }
+            return result;
+        }
+        
+        /**
+         * Formats the request count and the p50, p90, p99 and maximum
+         * latencies in milliseconds as a JSON object.
+         * 
+         * @return The statistics as JSON
+         */
+        public String toJson() {
+            long total = getCount();
+            long[] p = percentiles(50, 90, 99, 100);
+            return String.format(Locale.ROOT,
+                    "{\"count\":%d,\"p50Millis\":%.3f,\"p90Millis\":%.3f,\"p99Millis\":%.3f,\"maxMillis\":%.3f}%n",
+                    total, p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6);
+        }
+    }
+}
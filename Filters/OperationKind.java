@@ -0,0 +1,27 @@
+/**
+ * Describes how the output pixels of a converter depend on its input pixels.
+ * The execution engine uses this to decide how an image may be split into
+ * independent pieces of work, and how many extra input rows each piece needs.
+ */
+public enum OperationKind {
+    
+    /**
+     * Each output pixel depends only on the input pixel at the same position.
+     * Examples are Grayscale, Sepia, Brighten and Invert.
+     */
+    POINT,
+    
+    /**
+     * Each output row depends only on the input rows within a bounded distance
+     * of the same row. A band of output rows needs the converter's halo rows
+     * of input above and below it. Examples are Blur and EdgeDetection, and
+     * FlipHorizontal, which only reads the row it writes (a halo of 0).
+     */
+    NEIGHBORHOOD,
+    
+    /**
+     * Output pixels are moved copies of input pixels at other positions, so an
+     * output band may read from anywhere in the input. An example is Rotate.
+     */
+    GEOMETRIC
+}
@@ -0,0 +1,168 @@
+import java.util.Arrays;
+
+/**
+ * The eight ways of turning and mirroring an image onto a grid of the same
+ * pixels: the identity, three rotations by multiples of 90 degrees, two flips
+ * and the two diagonal reflections.
+ * 
+ * Each orientation is described by where an output pixel is read from. The
+ * output pixel (x, y) comes from input pixel (sx, sy), where sx and sy are x
+ * and y, swapped if the orientation transposes the image, and then mirrored
+ * within the input if the orientation flips that axis. Written as a signed
+ * 2x2 matrix acting on coordinates measured from the image center, applying
+ * one orientation after another is a matrix product, so any chain of
+ * rotations and flips reduces to one of the eight, see {@link #then}.
+ */
+public enum Orientation {
+    
+    /**
+     * Every pixel stays where it is.
+     */
+    IDENTITY(false, false, false),
+    
+    /**
+     * Mirrored along the vertical axis: output (x, y) is input (w - 1 - x, y).
+     */
+    FLIP_HORIZONTAL(false, true, false),
+    
+    /**
+     * Mirrored along the horizontal axis: output (x, y) is input (x, h - 1 - y).
+     */
+    FLIP_VERTICAL(false, false, true),
+    
+    /**
+     * Turned upside down: output (x, y) is input (w - 1 - x, h - 1 - y).
+     */
+    ROTATE_180(false, true, true),
+    
+    /**
+     * Mirrored along the main diagonal: output (x, y) is input (y, x).
+     */
+    TRANSPOSE(true, false, false),
+    
+    /**
+     * Rotated 90 degrees clockwise: output (x, y) is input (y, h - 1 - x).
+     */
+    ROTATE_90(true, false, true),
+    
+    /**
+     * Rotated 90 degrees counterclockwise: output (x, y) is input (w - 1 - y, x).
+     */
+    ROTATE_270(true, true, false),
+    
+    /**
+     * Mirrored along the anti-diagonal: output (x, y) is input
+     * (w - 1 - y, h - 1 - x).
+     */
+    TRANSVERSE(true, true, true);
+    
+    /**
+     * Whether output rows come from input columns.
+     */
+    private final boolean transposed;
+    
+    /**
+     * Whether the input column, or the input row, is counted from the right,
+     * or from the bottom.
+     */
+    private final boolean flipX;
+    private final boolean flipY;
+    
+    Orientation(boolean transposed, boolean flipX, boolean flipY) {
+        this.transposed = transposed;
+        this.flipX = flipX;
+        this.flipY = flipY;
+    }
+    
+    /**
+     * Returns whether the output's rows are the input's columns, so width and
+     * height are swapped.
+     * 
+     * @return True for the rotations by 90 and 270 degrees and the diagonal
+     *         reflections
+     */
+    public boolean isTransposed() {
+        return transposed;
+    }
+    
+    /**
+     * Returns whether the input column of an output pixel is counted from the
+     * right edge of the input.
+     * 
+     * @return True if input columns are read from right to left
+     */
+    public boolean isFlipX() {
+        return flipX;
+    }
+    
+    /**
+     * Returns whether the input row of an output pixel is counted from the
+     * bottom edge of the input.
+     * 
+     * @return True if input rows are read from bottom to top
+     */
+    public boolean isFlipY() {
+        return flipY;
+    }
+    
+    /**
+     * Returns whether every output row is made of the pixels of the input row
+     * at the same position, so the orientation can run in bands or strips
+     * without reading any other rows.
+     * 
+     * @return True for {@link #IDENTITY} and {@link #FLIP_HORIZONTAL}
+     */
+    public boolean isRowLocal() {
+        return !transposed && !flipY;
+    }
+    
+    /**
+     * Returns the orientation that has the same effect as applying this one
+     * and then the given one.
+     * 
+     * @param next The orientation applied second
+     * @return The combined orientation
+     */
+    public Orientation then(Orientation next) {
+        // input = M(this) * M(next) * output, as signed permutation matrices
+        int[] a = matrix();
+        int[] b = next.matrix();
+        int[] product = {
+            a[0] * b[0] + a[1] * b[2], a[0] * b[1] + a[1] * b[3],
+            a[2] * b[0] + a[3] * b[2], a[2] * b[1] + a[3] * b[3],
+        };
+        for (Orientation orientation : values()) {
+            if (Arrays.equals(orientation.matrix(), product)) {
+                return orientation;
+            }
+        }
+        throw new AssertionError("Not an orientation: " + Arrays.toString(product));
+    }
+    
+    /**
+     * Returns the orientation that undoes this one.
+     * 
+     * @return The orientation o with {@code this.then(o) == IDENTITY}
+     */
+    public Orientation inverse() {
+        for (Orientation orientation : values()) {
+            if (then(orientation) == IDENTITY) {
+                return orientation;
+            }
+        }
+        throw new AssertionError("No inverse of " + this);
+    }
+    
+    /**
+     * Returns the matrix mapping centered output coordinates to centered
+     * input coordinates, row by row.
+     */
+    private int[] matrix() {
+        int signX = flipX ? -1 : 1;
+        int signY = flipY ? -1 : 1;
+        if (transposed) {
+            return new int[] {0, signX, signY, 0};
+        }
+        return new int[] {signX, 0, 0, signY};
+    }
+}
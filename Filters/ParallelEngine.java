@@ -0,0 +1,302 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs converter work in parallel on a ForkJoinPool.
+ * The engine splits an image into horizontal row bands or square tiles and
+ * processes them as fork/join tasks. Work is divided recursively in halves
+ * (bands) or quadrants (tiles) until each piece is no larger than the tile
+ * size, so idle worker threads can steal the remaining halves and the load
+ * stays balanced across cores.
+ * 
+ * The shared default engine uses one thread per available processor and a
+ * tile size of 64. Both can be changed with the {@code pixelcraft.threads}
+ * and {@code pixelcraft.tileSize} system properties, or by installing a
+ * different engine with {@link #setDefault(ParallelEngine)}. An engine with a
+ * single thread runs all work on the calling thread.
+ * 
+ * Every band and tile is reported to {@link ConversionEvents}, which records
+ * it in Flight Recorder while a recording asks for it.
+ */
+public final class ParallelEngine {
+    
+    /**
+     * Default tile size used when none is configured.
+     * Bands are this many rows tall and tiles are this many pixels square.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+    
+    /**
+     * The engine used by converters that have not been given their own.
+     */
+    private static volatile ParallelEngine defaultEngine;
+    
+    /**
+     * Processes the output rows in the range [startY, endY).
+     */
+    public interface BandTask {
+        void run(int startY, int endY);
+    }
+    
+    /**
+     * Processes the output pixels in the rectangle [startX, endX) x [startY, endY).
+     */
+    public interface TileTask {
+        void run(int startX, int startY, int endX, int endY);
+    }
+    
+    /**
+     * The pool running the tasks, or null when running on the calling thread.
+     */
+    private final ForkJoinPool pool;
+    
+    /**
+     * The number of worker threads.
+     */
+    private final int threads;
+    
+    /**
+     * The largest band height and tile edge that is not split any further.
+     */
+    private final int tileSize;
+    
+    /**
+     * Creates an engine with its own ForkJoinPool.
+     * 
+     * @param threads The number of worker threads (1 runs work on the caller)
+     * @param tileSize The band height and tile edge in pixels
+     * @throws IllegalArgumentException If either value is less than 1
+     */
+    public ParallelEngine(int threads, int tileSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be at least 1: " + tileSize);
+        }
+        this.threads = threads;
+        this.tileSize = tileSize;
+        this.pool = threads == 1 ? null : new ForkJoinPool(threads);
+    }
+    
+    /**
+     * Returns the shared engine, creating it from the system properties on
+     * first use.
+     * 
+     * @return The default engine
+     */
+    public static ParallelEngine getDefault() {
+        ParallelEngine engine = defaultEngine;
+        if (engine == null) {
+            synchronized (ParallelEngine.class) {
+                engine = defaultEngine;
+                if (engine == null) {
+                    int threads = Integer.getInteger("pixelcraft.threads",
+                            Runtime.getRuntime().availableProcessors());
+                    int tileSize = Integer.getInteger("pixelcraft.tileSize", DEFAULT_TILE_SIZE);
+                    engine = new ParallelEngine(threads, tileSize);
+                    defaultEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+    
+    /**
+     * Replaces the shared engine used by converters without their own engine.
+     * 
+     * @param engine The new default engine
+     */
+    public static void setDefault(ParallelEngine engine) {
+        ParallelEngine previous;
+        synchronized (ParallelEngine.class) {
+            previous = defaultEngine;
+            defaultEngine = engine;
+        }
+        if (previous != null && previous != engine) {
+            previous.shutdown();
+        }
+    }
+    
+    /**
+     * Returns the number of worker threads.
+     * 
+     * @return The thread count
+     */
+    public int getThreads() {
+        return threads;
+    }
+    
+    /**
+     * Returns the band height and tile edge used to split work.
+     * 
+     * @return The tile size in pixels
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+    
+    /**
+     * Runs an action on this engine's pool and waits for it to finish.
+     * When the engine has a single thread the action runs on the caller.
+     * 
+     * @param action The action to run
+     */
+    public void invoke(RecursiveAction action) {
+        if (pool == null || ForkJoinTask.getPool() == pool) {
+            // Already inside this pool (or single-threaded): fork/join in place
+            action.invoke();
+        } else {
+            pool.invoke(action);
+        }
+    }
+    
+    /**
+     * Starts a task on this engine's pool without waiting for it, for work
+     * whose results the caller collects in order, such as the chunks
+     * compressed by {@link PngWriter}. When the engine has a single thread
+     * the task runs on the caller before this method returns.
+     * 
+     * @param task The task to run
+     * @return The pending result of the task
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        if (pool == null) {
+            FutureTask<T> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+        return pool.submit(task);
+    }
+    
+    /**
+     * Splits the rows [0, height) into bands and runs the task on each band.
+     * 
+     * @param height The number of rows to process
+     * @param task The work to run for each band
+     */
+    public void invokeBands(int height, BandTask task) {
+        if (height <= 0) {
+            return;
+        }
+        task = ConversionEvents.getDefault().recordBands(task);
+        if (pool == null || height <= tileSize) {
+            task.run(0, height);
+            return;
+        }
+        invoke(new BandAction(task, 0, height, tileSize));
+    }
+    
+    /**
+     * Splits the rectangle [0, width) x [0, height) into tiles and runs the
+     * task on each tile.
+     * 
+     * @param width The number of columns to process
+     * @param height The number of rows to process
+     * @param task The work to run for each tile
+     */
+    public void invokeTiles(int width, int height, TileTask task) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        task = ConversionEvents.getDefault().recordTiles(task);
+        invoke(new TileAction(task, 0, 0, width, height, tileSize));
+    }
+    
+    /**
+     * Stops the worker threads once the submitted work has finished.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Recursively halves a range of rows until it is at most one band tall.
+     */
+    private static final class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final BandTask task;
+        private final int startY;
+        private final int endY;
+        private final int bandHeight;
+        
+        BandAction(BandTask task, int startY, int endY, int bandHeight) {
+            this.task = task;
+            this.startY = startY;
+            this.endY = endY;
+            this.bandHeight = bandHeight;
+        }
+        
+        @Override
+        protected void compute() {
+            // Base case: the band is small enough to process directly
+            if (endY - startY <= bandHeight) {
+                task.run(startY, endY);
+                return;
+            }
+            
+            // Split into an upper and a lower half and process both
+            int midY = (startY + endY) >>> 1;
+            invokeAll(new BandAction(task, startY, midY, bandHeight),
+                      new BandAction(task, midY, endY, bandHeight));
+        }
+    }
+    
+    /**
+     * Recursively splits a rectangle into quadrants until it fits in one tile.
+     */
+    private static final class TileAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final TileTask task;
+        private final int startX;
+        private final int startY;
+        private final int endX;
+        private final int endY;
+        private final int tileSize;
+        
+        TileAction(TileTask task, int startX, int startY, int endX, int endY, int tileSize) {
+            this.task = task;
+            this.startX = startX;
+            this.startY = startY;
+            this.endX = endX;
+            this.endY = endY;
+            this.tileSize = tileSize;
+        }
+        
+        @Override
+        protected void compute() {
+            int width = endX - startX;
+            int height = endY - startY;
+            
+            // Base case: the block is small enough to process directly
+            if (width <= tileSize && height <= tileSize) {
+                task.run(startX, startY, endX, endY);
+                return;
+            }
+            
+            // Split only along the dimensions that are still too large
+            int midX = width > tileSize ? startX + width / 2 : endX;
+            int midY = height > tileSize ? startY + height / 2 : endY;
+            if (midX == endX) {
+                invokeAll(new TileAction(task, startX, startY, endX, midY, tileSize),
+                          new TileAction(task, startX, midY, endX, endY, tileSize));
+            } else if (midY == endY) {
+                invokeAll(new TileAction(task, startX, startY, midX, endY, tileSize),
+                          new TileAction(task, midX, startY, endX, endY, tileSize));
+            } else {
+                invokeAll(new TileAction(task, startX, startY, midX, midY, tileSize),
+                          new TileAction(task, midX, startY, endX, midY, tileSize),
+                          new TileAction(task, startX, midY, midX, endY, tileSize),
+                          new TileAction(task, midX, midY, endX, endY, tileSize));
+            }
+        }
+    }
+}
@@ -0,0 +1,712 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chains several converters so that an image is decoded once, passed through
+ * every stage, and encoded once.
+ * A pipeline is itself a {@link Converter}, so {@code convert()} reads the input
+ * file, runs all stages and writes a single PNG. On the command line a pipeline
+ * is written as converter names joined with '+', e.g. {@code Grayscale+Brighten+Pixelate}.
+ * 
+ * Stages are executed without materializing a full-frame image between them
+ * wherever possible:
+ * <ul>
+ *   <li>Consecutive {@link ChannelConverter} stages are composed into a single
+ *       lookup table when the pipeline is created.</li>
+ *   <li>Consecutive {@link GeometricTransform} stages, such as
+ *       {@code Rotate+Rotate+FlipHorizontal}, are composed into a single
+ *       transform when the pipeline is created, so each pixel moves once.</li>
+ *   <li>Consecutive {@link PointConverter} stages are fused: each row is run
+ *       through all of them while it is still in the CPU cache, so the whole
+ *       group costs a single pass over memory.</li>
+ *   <li>Point and neighborhood stages are streamed top to bottom in strips.
+ *       Each intermediate stage writes into a rolling line buffer that only
+ *       holds the strip plus the halo rows the next stage needs, instead of a
+ *       full intermediate image.</li>
+ *   <li>Geometric stages such as Rotate may read from anywhere in their input,
+ *       so they run on a complete image and start a new streamed segment.
+ *       Flips and half turns of an intermediate image are applied in place.</li>
+ * </ul>
+ */
+public class Pipeline extends Converter {
+    
+    /**
+     * The separator between converter names in a pipeline specification.
+     */
+    public static final String SEPARATOR = "+";
+    
+    /**
+     * The converters to apply, in order.
+     */
+    private final List<Converter> stages;
+    
+    /**
+     * The stages as they are executed, with every run of consecutive channel
+     * filters composed into one.
+     */
+    private final List<Converter> compiled;
+    
+    /**
+     * The number of output rows streamed through the stages at a time, or 0 to
+     * derive it from the engine.
+     */
+    private int stripHeight;
+    
+    /**
+     * Creates a pipeline applying the given converters in order.
+     * 
+     * @param stages The converters to apply
+     * @throws IllegalArgumentException If no converters are given
+     */
+    public Pipeline(Converter... stages) {
+        this(Arrays.asList(stages));
+    }
+    
+    /**
+     * Creates a pipeline applying the given converters in order.
+     * 
+     * @param stages The converters to apply
+     * @throws IllegalArgumentException If the list is empty
+     */
+    public Pipeline(List<Converter> stages) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("A pipeline needs at least one stage");
+        }
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+        this.compiled = compile(this.stages);
+    }
+    
+    /**
+     * Composes every run of two or more consecutive channel filters into a
+     * single channel filter, and every run of consecutive geometric
+     * transforms into a single transform. A run of transforms that cancels
+     * out is dropped, unless it is all the pipeline does.
+     * 
+     * @param stages The stages to compile
+     * @return The stages to execute, with the same effect
+     */
+    private static List<Converter> compile(List<Converter> stages) {
+        List<Converter> compiled = new ArrayList<>();
+        List<ChannelConverter> run = new ArrayList<>();
+        List<GeometricTransform> transforms = new ArrayList<>();
+        for (Converter stage : stages) {
+            if (stage instanceof ChannelConverter) {
+                addTransforms(compiled, transforms);
+                run.add((ChannelConverter) stage);
+                continue;
+            }
+            if (stage instanceof GeometricTransform) {
+                addRun(compiled, run);
+                transforms.add((GeometricTransform) stage);
+                continue;
+            }
+            addRun(compiled, run);
+            addTransforms(compiled, transforms);
+            compiled.add(stage);
+        }
+        addRun(compiled, run);
+        addTransforms(compiled, transforms);
+        if (compiled.isEmpty()) {
+            compiled.add(new GeometricTransform(Orientation.IDENTITY));
+        }
+        return compiled;
+    }
+    
+    /**
+     * Adds a run of channel filters to the compiled stages, composed if it has
+     * more than one filter, and empties it.
+     */
+    private static void addRun(List<Converter> compiled, List<ChannelConverter> run) {
+        if (run.size() == 1) {
+            compiled.add(run.get(0));
+        } else if (run.size() > 1) {
+            compiled.add(ChannelConverter.compose(run));
+        }
+        run.clear();
+    }
+    
+    /**
+     * Adds a run of geometric transforms to the compiled stages, composed
+     * into one unless it has a single transform or cancels out, and empties it.
+     */
+    private static void addTransforms(List<Converter> compiled, List<GeometricTransform> transforms) {
+        if (transforms.size() == 1) {
+            compiled.add(transforms.get(0));
+        } else if (transforms.size() > 1) {
+            GeometricTransform composed = GeometricTransform.compose(transforms);
+            if (composed.getOrientation() != Orientation.IDENTITY) {
+                compiled.add(composed);
+            }
+        }
+        transforms.clear();
+    }
+    
+    /**
+     * Creates the converter described by a specification such as
+     * {@code Grayscale+Brighten+Pixelate}.
+     * A specification naming a single converter returns that converter itself.
+     * 
+     * @param spec Converter class names separated by '+'
+     * @return The converter or pipeline described by the specification
+     * @throws ReflectiveOperationException If a named converter cannot be created
+     */
+    public static Converter parse(String spec) throws ReflectiveOperationException {
+        String[] names = spec.split("\\" + SEPARATOR);
+        if (names.length == 1) {
+            return createConverter(names[0]);
+        }
+        List<Converter> converters = new ArrayList<>();
+        for (String name : names) {
+            converters.add(createConverter(name));
+        }
+        return new Pipeline(converters);
+    }
+    
+    /**
+     * Creates an object of the converter class with the given name.
+     * Read this link for more info about Java Reflection:
+     * https://www.oracle.com/technical-resources/articles/java/javareflection.html
+     * 
+     * @param name The class name of a Converter subclass
+     * @return A new instance of the converter
+     * @throws ReflectiveOperationException If the class cannot be found or instantiated,
+     *                                      or is not a Converter
+     */
+    public static Converter createConverter(String name) throws ReflectiveOperationException {
+        // The class named 'name' must be a subclass of 'Converter'; check this
+        // before initializing it, since names may come from a network request
+        Class<?> clazz = Class.forName(name, false, Converter.class.getClassLoader());
+        if (!Converter.class.isAssignableFrom(clazz)) {
+            throw new ClassNotFoundException("Not a converter: " + name);
+        }
+        return (Converter) clazz.getDeclaredConstructor().newInstance();
+    }
+    
+    /**
+     * Returns the converters of this pipeline, in order.
+     * 
+     * @return An unmodifiable list of the stages
+     */
+    public List<Converter> getStages() {
+        return stages;
+    }
+    
+    /**
+     * Returns the number of output rows streamed through the stages at a time.
+     * Unless set explicitly, this is one tile per engine thread, so each strip
+     * still keeps all threads busy.
+     * 
+     * @return The strip height in rows
+     */
+    public int getStripHeight() {
+        if (stripHeight > 0) {
+            return stripHeight;
+        }
+        ParallelEngine engine = getEngine();
+        return engine.getTileSize() * engine.getThreads();
+    }
+    
+    /**
+     * Sets the number of output rows streamed through the stages at a time.
+     * 
+     * @param stripHeight The strip height in rows, or 0 to derive it from the engine
+     */
+    public void setStripHeight(int stripHeight) {
+        this.stripHeight = stripHeight;
+    }
+    
+    /**
+     * Runs all stages on the input pixels.
+     * The stages are split into segments at every geometric stage. Each
+     * segment of point and neighborhood stages is streamed in one pass;
+     * geometric stages run on the complete output of the previous segment.
+     * 
+     * @param src The pixels of the input image
+     * @return A new PixelBuffer holding the result of the last stage
+     */
+    @Override
+    protected PixelBuffer processPixels(PixelBuffer src) {
+        PixelBuffer current = src;
+        int start = 0;
+        while (start < compiled.size()) {
+            // Geometric stages need their complete input image; flips and
+            // half turns of an intermediate image are done in place
+            Converter stage = compiled.get(start);
+            if (stage.getOperationKind() == OperationKind.GEOMETRIC) {
+                if (current != src && stage instanceof GeometricTransform
+                        && !((GeometricTransform) stage).getOrientation().isTransposed()) {
+                    ((GeometricTransform) stage).transformInPlace(current);
+                } else {
+                    current = stage.processPixels(current);
+                }
+                start++;
+                continue;
+            }
+            
+            // Collect the following point and neighborhood stages into one segment
+            int end = start;
+            while (end < compiled.size() && compiled.get(end).getOperationKind() != OperationKind.GEOMETRIC) {
+                end++;
+            }
+            current = processSegment(current, compiled.subList(start, end));
+            start = end;
+        }
+        return current;
+    }
+    
+    /**
+     * Runs all stages as {@link #processPixels} does, stopping at the next
+     * strip of rows when the thread is interrupted. Segments of point and
+     * neighborhood stages between geometric stages are streamed strip by
+     * strip, and the thread is checked between the segments and the
+     * geometric stages.
+     * 
+     * @param img The input BufferedImage to be processed
+     * @return A new BufferedImage holding the result of the last stage
+     * @throws InterruptedException If the thread was interrupted before the
+     *         result was complete
+     */
+    @Override
+    protected BufferedImage processImageInterruptibly(BufferedImage img) throws InterruptedException {
+        if (getOperationKind() != OperationKind.GEOMETRIC) {
+            return super.processImageInterruptibly(img);
+        }
+        BufferedImage current = img;
+        int start = 0;
+        while (start < compiled.size()) {
+            Converter stage = compiled.get(start);
+            int end = start + 1;
+            if (stage.getOperationKind() != OperationKind.GEOMETRIC) {
+                while (end < compiled.size() && compiled.get(end).getOperationKind() != OperationKind.GEOMETRIC) {
+                    end++;
+                }
+                Pipeline segment = new Pipeline(compiled.subList(start, end));
+                segment.setEngine(getEngine());
+                segment.setStripHeight(stripHeight);
+                stage = segment;
+            }
+            current = stage.processImageInterruptibly(current);
+            start = end;
+        }
+        return current;
+    }
+    
+    /**
+     * Computes the output rows in the range [startY, endY) by streaming them
+     * through all stages.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param startY The first output row to compute (inclusive)
+     * @param endY The last output row to compute (exclusive)
+     * @throws UnsupportedOperationException If the pipeline has a geometric stage
+     */
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        if (getOperationKind() == OperationKind.GEOMETRIC) {
+            throw new UnsupportedOperationException("A pipeline with geometric stages cannot process row bands");
+        }
+        streamRows(src, dst, buildSteps(compiled), startY, endY);
+    }
+    
+    /**
+     * Streams the output rows in the range [startY, endY) through all stages
+     * at once; {@link #streamRows} already runs every strip in parallel, and
+     * splitting the range into bands first would compute the halo rows
+     * between the bands twice.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param startY The first output row to compute (inclusive)
+     * @param endY The last output row to compute (exclusive)
+     * @throws UnsupportedOperationException If the pipeline has a geometric stage
+     */
+    @Override
+    protected void processRowsInParallel(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        processRows(src, dst, startY, endY);
+    }
+    
+    /**
+     * A pipeline is geometric if any compiled stage is, otherwise a
+     * neighborhood operation if any stage is, otherwise a point operation.
+     * Transforms that cancel out have been compiled away, so
+     * {@code Rotate180+Blur+Rotate180} is still geometric but
+     * {@code Rotate180+Rotate180+Blur} is not.
+     * 
+     * @return The most general operation kind among the compiled stages
+     */
+    @Override
+    public OperationKind getOperationKind() {
+        OperationKind kind = OperationKind.POINT;
+        for (Converter stage : compiled) {
+            if (stage.getOperationKind() == OperationKind.GEOMETRIC) {
+                return OperationKind.GEOMETRIC;
+            }
+            if (stage.getOperationKind() == OperationKind.NEIGHBORHOOD) {
+                kind = OperationKind.NEIGHBORHOOD;
+            }
+        }
+        return kind;
+    }
+    
+    /**
+     * Each stage takes the output size of the one before it.
+     * 
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The width and height of the last stage's output
+     */
+    @Override
+    public Dimension getOutputSize(int width, int height) {
+        Dimension size = new Dimension(width, height);
+        for (Converter stage : compiled) {
+            size = stage.getOutputSize(size.width, size.height);
+        }
+        return size;
+    }
+    
+    /**
+     * The pixels each stage affects are the changed input of the next, as
+     * long as no stage is geometric. A geometric stage needs the whole
+     * result of the stages before it, which a pipeline does not keep, so
+     * then every pixel is computed again.
+     * 
+     * @param dirty The changed input pixels
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The pixels the last stage affects, or null if the pipeline is
+     *         geometric or a stage may affect any pixel
+     */
+    @Override
+    public Rectangle getAffectedRegion(Rectangle dirty, int width, int height) {
+        if (getOperationKind() == OperationKind.GEOMETRIC) {
+            return null;
+        }
+        Rectangle region = dirty;
+        for (Converter stage : compiled) {
+            region = stage.getAffectedRegion(region, width, height);
+            if (region == null) {
+                return null;
+            }
+        }
+        return region;
+    }
+    
+    /**
+     * Previews every stage with its own preview converter. Every stage's
+     * input is reduced by the same factor, since the stages before it see
+     * reduced images too.
+     * 
+     * @param subsampling The factor the input is reduced by
+     * @return A pipeline of the stages' preview converters, or this pipeline
+     *         if no stage changes
+     */
+    @Override
+    protected Converter getPreviewConverter(int subsampling) {
+        List<Converter> previewStages = new ArrayList<>();
+        boolean changed = false;
+        for (Converter stage : stages) {
+            Converter previewStage = stage.getPreviewConverter(subsampling);
+            changed |= previewStage != stage;
+            previewStages.add(previewStage);
+        }
+        if (!changed) {
+            return this;
+        }
+        Pipeline preview = new Pipeline(previewStages);
+        preview.setStripHeight(stripHeight);
+        return preview;
+    }
+    
+    /**
+     * Runs every stage of one image as that stage's own image converter, so
+     * that a stage drawing something once per image, such as an unseeded
+     * Glitch, draws it once for all strips the pipeline streams.
+     * 
+     * @return A pipeline of the stages' image converters, or this pipeline
+     *         if no stage changes
+     */
+    @Override
+    protected Converter getImageConverter() {
+        List<Converter> imageStages = new ArrayList<>();
+        boolean changed = false;
+        for (Converter stage : stages) {
+            Converter imageStage = stage.getImageConverter();
+            changed |= imageStage != stage;
+            imageStages.add(imageStage);
+        }
+        if (!changed) {
+            return this;
+        }
+        Pipeline image = new Pipeline(imageStages);
+        image.setStripHeight(stripHeight);
+        return image;
+    }
+    
+    /**
+     * The halos of chained neighborhood stages add up, since every stage
+     * widens the window of input rows the final output depends on.
+     * 
+     * @return The sum of the halo rows of all stages
+     */
+    @Override
+    public int getHaloRows() {
+        int halo = 0;
+        for (Converter stage : stages) {
+            halo += stage.getHaloRows();
+        }
+        return halo;
+    }
+    
+    /**
+     * A pipeline's output is determined by its input only if every stage's
+     * is, so its key joins the keys of the stages in order.
+     * 
+     * @return The stage keys joined by {@link #SEPARATOR}, or null if any stage has no key
+     */
+    @Override
+    public String getCacheKey() {
+        StringBuilder key = new StringBuilder();
+        for (Converter stage : stages) {
+            String stageKey = stage.getCacheKey();
+            if (stageKey == null) {
+                return null;
+            }
+            if (key.length() > 0) {
+                key.append(SEPARATOR);
+            }
+            key.append(stageKey);
+        }
+        return key.toString();
+    }
+    
+    /**
+     * Runs a segment of point and neighborhood stages over the whole image.
+     * 
+     * @param src The input of the first stage
+     * @param segment The stages to run, none of them geometric
+     * @return The output of the last stage
+     */
+    private PixelBuffer processSegment(PixelBuffer src, List<Converter> segment) {
+        // A single stage runs exactly as it would on its own
+        if (segment.size() == 1) {
+            return segment.get(0).processPixels(src);
+        }
+        
+        PixelBuffer dst = segment.get(segment.size() - 1).createOutput(src);
+        List<Step> steps = buildSteps(segment);
+        if (steps.size() == 1) {
+            // Only fused point stages: one pass straight from input to output
+            Step step = steps.get(0);
+            getEngine().invokeBands(src.getHeight(), (startY, endY) -> step.run(src, dst, startY, endY));
+        } else {
+            streamRows(src, dst, steps, 0, src.getHeight());
+        }
+        return dst;
+    }
+    
+    /**
+     * Groups stages into steps, fusing runs of consecutive point stages.
+     * 
+     * @param segment The stages to group, none of them geometric
+     * @return The steps to execute, in order
+     */
+    private static List<Step> buildSteps(List<Converter> segment) {
+        List<Step> steps = new ArrayList<>();
+        List<PointConverter> points = new ArrayList<>();
+        for (Converter stage : segment) {
+            if (stage instanceof PointConverter) {
+                points.add((PointConverter) stage);
+                continue;
+            }
+            if (!points.isEmpty()) {
+                steps.add(new Step(points));
+                points = new ArrayList<>();
+            }
+            steps.add(new Step(stage));
+        }
+        if (!points.isEmpty()) {
+            steps.add(new Step(points));
+        }
+        return steps;
+    }
+    
+    /**
+     * Streams the output rows [startY, endY) through a chain of steps.
+     * The output is produced strip by strip. For every strip, each step first
+     * discards the rows of its line buffer that no later strip needs, then
+     * computes the rows the next step needs for this strip: the strip itself
+     * widened by the halos of all later steps. Rows computed for one strip are
+     * kept for the next one, so no row is computed twice.
+     * 
+     * @param src The input of the first step
+     * @param dst The output buffer the last step writes into
+     * @param steps The steps to run, in order
+     * @param startY The first output row to compute (inclusive)
+     * @param endY The last output row to compute (exclusive)
+     */
+    private void streamRows(PixelBuffer src, PixelBuffer dst, List<Step> steps, int startY, int endY) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int count = steps.size();
+        int strip = getStripHeight();
+        ParallelEngine engine = getEngine();
+        
+        // haloAfter[i] is the number of extra rows step i must produce on each side
+        int[] haloAfter = new int[count];
+        for (int i = count - 2; i >= 0; i--) {
+            haloAfter[i] = haloAfter[i + 1] + steps.get(i + 1).halo;
+        }
+        
+        // Every step but the last writes into a line buffer sized for one strip plus halos
+        LineBuffer[] buffers = new LineBuffer[count - 1];
+        int[] produced = new int[count];
+        for (int i = 0; i < count; i++) {
+            produced[i] = Math.max(0, startY - haloAfter[i]);
+            if (i < count - 1) {
+                buffers[i] = new LineBuffer(width, height, strip + 2 * haloAfter[i], produced[i]);
+            }
+        }
+        
+        for (int stripStart = startY; stripStart < endY; stripStart += strip) {
+            int stripEnd = Math.min(stripStart + strip, endY);
+            for (int i = 0; i < count; i++) {
+                int needFrom = Math.max(0, stripStart - haloAfter[i]);
+                int needTo = Math.min(height, stripEnd + haloAfter[i]);
+                if (produced[i] >= needTo) {
+                    continue;
+                }
+                
+                // Roll the line buffer forward and clear the rows about to be written
+                PixelBuffer out = dst;
+                if (i < count - 1) {
+                    buffers[i].discardBefore(needFrom);
+                    buffers[i].clear(produced[i], needTo);
+                    out = buffers[i].view();
+                }
+                PixelBuffer in = i == 0 ? src : buffers[i - 1].view();
+                
+                // Compute the new rows of this step in parallel bands
+                Step step = steps.get(i);
+                PixelBuffer target = out;
+                int from = produced[i];
+                engine.invokeBands(needTo - from, (bandStart, bandEnd) ->
+                        step.run(in, target, from + bandStart, from + bandEnd));
+                produced[i] = needTo;
+            }
+        }
+    }
+    
+    /**
+     * One unit of work in a streamed segment: either a single converter or a
+     * group of point converters fused into one pass.
+     */
+    private static final class Step {
+        
+        /**
+         * The converter to run, or null for a fused group.
+         */
+        private final Converter converter;
+        
+        /**
+         * The point converters to apply one after another, or null.
+         */
+        private final PointConverter[] points;
+        
+        /**
+         * The number of input rows above and below an output row this step reads.
+         */
+        private final int halo;
+        
+        Step(Converter converter) {
+            this.converter = converter;
+            this.points = null;
+            this.halo = converter.getHaloRows();
+        }
+        
+        Step(List<PointConverter> points) {
+            this.converter = null;
+            this.points = points.toArray(new PointConverter[0]);
+            this.halo = 0;
+        }
+        
+        /**
+         * Computes the output rows [startY, endY) of this step.
+         */
+        void run(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+            if (converter != null) {
+                converter.processRows(src, dst, startY, endY);
+                return;
+            }
+            
+            // Apply every fused filter to a row before moving to the next row
+            int width = src.getWidth();
+            int[] in = src.getData();
+            int[] out = dst.getData();
+            for (int y = startY; y < endY; y++) {
+                int dstRow = dst.rowOffset(y);
+                points[0].filterRow(in, src.rowOffset(y), out, dstRow, width);
+                for (int k = 1; k < points.length; k++) {
+                    points[k].filterRow(out, dstRow, out, dstRow, width);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A rolling window of consecutive image rows.
+     * Rows are appended at the bottom and discarded from the top; discarding
+     * moves the remaining rows to the start of the array so that appended rows
+     * always fit as long as the window never spans more than its capacity.
+     */
+    private static final class LineBuffer {
+        private final int[] data;
+        private final int width;
+        private final int height;
+        private final int capacity;
+        private int firstRow;
+        
+        LineBuffer(int width, int height, int capacity, int firstRow) {
+            this.capacity = Math.min(capacity, height);
+            this.data = new int[this.capacity * width];
+            this.width = width;
+            this.height = height;
+            this.firstRow = firstRow;
+        }
+        
+        /**
+         * Drops all rows above the given row.
+         */
+        void discardBefore(int row) {
+            int drop = row - firstRow;
+            if (drop <= 0) {
+                return;
+            }
+            if (drop < capacity) {
+                System.arraycopy(data, drop * width, data, 0, (capacity - drop) * width);
+            }
+            firstRow = row;
+        }
+        
+        /**
+         * Zeroes the rows [fromRow, toRow) before they are written, so pixels a
+         * converter leaves untouched read as transparent black as they would in
+         * a newly created image.
+         */
+        void clear(int fromRow, int toRow) {
+            Arrays.fill(data, (fromRow - firstRow) * width, (toRow - firstRow) * width, 0);
+        }
+        
+        /**
+         * Returns a PixelBuffer addressing this window with image row numbers.
+         */
+        PixelBuffer view() {
+            return PixelBuffer.window(data, width, height, firstRow);
+        }
+    }
+}
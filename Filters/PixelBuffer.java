@@ -0,0 +1,309 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Provides direct int[] access to the pixels of an image in packed ARGB form.
+ * Reading and writing through BufferedImage.getRGB/setRGB converts every single
+ * pixel through the image's ColorModel, which is far slower than plain array
+ * access and prevents the JIT from optimizing the inner loops of a filter.
+ * 
+ * A PixelBuffer wraps the backing DataBufferInt of a TYPE_INT_ARGB image
+ * directly, so reads and writes go straight to the image memory. Images of any
+ * other type are normalized once into a packed ARGB copy; {@link #toImage()}
+ * writes such a copy back into the image when processing is done.
+ * 
+ * Pixels are laid out row by row: the pixel at (x, y) is stored at index
+ * {@code rowOffset(y) + x} of {@link #getData()}, and consecutive rows are
+ * {@link #getStride()} elements apart.
+ * 
+ * A buffer can also be a window onto just a few rows of a larger image, see
+ * {@link #window}. Such a buffer keeps the full image's width and height and
+ * is addressed with the full image's row numbers, but only the rows it holds
+ * may be read or written.
+ */
+public final class PixelBuffer {
+    
+    /**
+     * The image this buffer reads from and writes to.
+     */
+    private final BufferedImage image;
+    
+    /**
+     * The packed ARGB pixel array, either the image's own memory or a copy.
+     */
+    private final int[] data;
+    
+    /**
+     * The index of pixel (0, 0) within the data array.
+     */
+    private final int offset;
+    
+    /**
+     * The number of array elements between the start of two consecutive rows.
+     */
+    private final int stride;
+    
+    /**
+     * The width of the image in pixels.
+     */
+    private final int width;
+    
+    /**
+     * The height of the image in pixels.
+     */
+    private final int height;
+    
+    /**
+     * True when the data array is the image's own memory, false for a copy.
+     */
+    private final boolean direct;
+    
+    /**
+     * Creates a buffer over the given pixel array.
+     * 
+     * @param image The image the pixels belong to, or null for a row window
+     * @param data The packed ARGB pixel array
+     * @param offset The index of pixel (0, 0) in the array
+     * @param stride The number of array elements per row
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param direct Whether the array is the image's own memory
+     */
+    private PixelBuffer(BufferedImage image, int[] data, int offset, int stride,
+                        int width, int height, boolean direct) {
+        this.image = image;
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+        this.direct = direct;
+    }
+    
+    /**
+     * Wraps an image for direct pixel access.
+     * TYPE_INT_ARGB images backed by a single int bank are wrapped without any
+     * copying. Every other image is converted to packed ARGB once, with a single
+     * bulk getRGB call, so the conversion cost is paid once per image instead of
+     * once per pixel access.
+     * 
+     * @param img The image to wrap
+     * @return A PixelBuffer giving packed ARGB access to the image's pixels
+     */
+    public static PixelBuffer wrap(BufferedImage img) {
+        // Use the image memory itself when it already holds packed ARGB ints
+        if (img.getType() == BufferedImage.TYPE_INT_ARGB && isPacked(img)) {
+            return wrapPacked(img);
+        }
+        
+        // Otherwise normalize the pixels into a packed ARGB copy once
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] copy = img.getRGB(0, 0, width, height, null, 0, width);
+        return new PixelBuffer(img, copy, 0, width, width, height, false);
+    }
+    
+    /**
+     * Wraps an image that processed pixels are written to.
+     * Besides the images {@link #wrap} accesses directly, this also wraps
+     * TYPE_INT_RGB images without copying: their ints are packed ARGB whose
+     * alpha byte the image ignores, so opaque pixels written through the
+     * buffer are stored exactly. Pixels read back keep the alpha that was
+     * written, and 0 where nothing was, so such a buffer must not be used as
+     * the input of a filter that looks at alpha.
+     * 
+     * @param img The image to wrap, usually a new one
+     * @return A PixelBuffer giving packed ARGB access to the image's pixels
+     */
+    public static PixelBuffer wrapOutput(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB && isPacked(img)) {
+            return wrapPacked(img);
+        }
+        return wrap(img);
+    }
+    
+    /**
+     * Checks whether an image stores each pixel as one int of a single bank.
+     */
+    private static boolean isPacked(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        return buffer instanceof DataBufferInt
+                && buffer.getNumBanks() == 1
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+    
+    /**
+     * Wraps the memory of an image for which {@link #isPacked} holds.
+     */
+    private static PixelBuffer wrapPacked(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int stride = sampleModel.getScanlineStride();
+        int offset = buffer.getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        return new PixelBuffer(img, ((DataBufferInt) buffer).getData(), offset, stride,
+                img.getWidth(), img.getHeight(), true);
+    }
+    
+    /**
+     * Creates a new, fully transparent TYPE_INT_ARGB image and wraps it.
+     * 
+     * @param width The width of the new image
+     * @param height The height of the new image
+     * @return A PixelBuffer backed directly by the new image's memory
+     */
+    public static PixelBuffer create(int width, int height) {
+        return wrap(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+    
+    /**
+     * Creates a window onto a range of rows of a larger image.
+     * The window reports the full image's width and height, and row y of the
+     * image is stored at index {@code (y - firstRow) * width} of the array.
+     * Only the rows the array has room for may be accessed. Windows have no
+     * BufferedImage; they are used for intermediate results that never leave
+     * the processing code, such as the line buffers of a {@link Pipeline}.
+     * 
+     * @param data The array holding the rows, at least one row long
+     * @param width The width of the image in pixels
+     * @param height The height of the full image in pixels
+     * @param firstRow The image row stored at the start of the array
+     * @return A PixelBuffer addressing the array with image row numbers
+     */
+    public static PixelBuffer window(int[] data, int width, int height, int firstRow) {
+        return new PixelBuffer(null, data, -firstRow * width, width, width, height, true);
+    }
+    
+    /**
+     * Returns the width of the image in pixels.
+     * 
+     * @return The image width
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of the image in pixels.
+     * 
+     * @return The image height
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns the number of array elements between the start of two rows.
+     * 
+     * @return The row stride of {@link #getData()}
+     */
+    public int getStride() {
+        return stride;
+    }
+    
+    /**
+     * Returns the packed ARGB pixel array.
+     * Use {@link #rowOffset(int)} to find where a row starts; the array may be
+     * larger than width * height and rows may not start at index 0.
+     * 
+     * @return The pixel array backing this buffer
+     */
+    public int[] getData() {
+        return data;
+    }
+    
+    /**
+     * Returns the index of the first pixel of the given row in the data array.
+     * 
+     * @param y The row index
+     * @return The array index of pixel (0, y)
+     */
+    public int rowOffset(int y) {
+        return offset + y * stride;
+    }
+    
+    /**
+     * Returns the packed ARGB value of a single pixel.
+     * 
+     * @param x The column of the pixel
+     * @param y The row of the pixel
+     * @return The packed ARGB value
+     */
+    public int get(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+    
+    /**
+     * Sets the packed ARGB value of a single pixel.
+     * 
+     * @param x The column of the pixel
+     * @param y The row of the pixel
+     * @param argb The packed ARGB value to store
+     */
+    public void set(int x, int y, int argb) {
+        data[offset + y * stride + x] = argb;
+    }
+    
+    /**
+     * Checks whether every pixel of the buffer is fully opaque.
+     * 
+     * @return True if no pixel has an alpha below 255
+     */
+    public boolean isOpaque() {
+        for (int y = 0; y < height; y++) {
+            int rowStart = offset + y * stride;
+            int alpha = 0xff000000;
+            for (int x = 0; x < width; x++) {
+                alpha &= data[rowStart + x];
+            }
+            if (alpha != 0xff000000) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns whether this buffer writes straight into the image memory.
+     * 
+     * @return True for a direct buffer, false for a normalized copy
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+    
+    /**
+     * Returns the image this buffer was created for.
+     * For a copied buffer the image does not reflect writes made through this
+     * buffer until {@link #toImage()} is called.
+     * 
+     * @return The underlying image, or null for a row window
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+    
+    /**
+     * Returns the image holding this buffer's pixels.
+     * A copied buffer is first written back into the image with a single bulk
+     * setRGB call; a direct buffer needs no work.
+     * 
+     * @return The underlying image with all writes applied
+     * @throws IllegalStateException If this buffer is a row window
+     */
+    public BufferedImage toImage() {
+        if (image == null) {
+            throw new IllegalStateException("A row window has no image");
+        }
+        if (!direct) {
+            image.setRGB(0, 0, width, height, data, offset, stride);
+        }
+        return image;
+    }
+}
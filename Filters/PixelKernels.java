@@ -0,0 +1,234 @@
+/**
+ * The inner loops of the point filters and of EdgeDetection, working on rows
+ * of packed ARGB ints.
+ * This class holds the scalar implementations. When the JVM provides the
+ * incubating Vector API (module {@code jdk.incubator.vector}, Java 16 and
+ * later), the subclass {@code VectorKernels} in the {@code simd} directory
+ * overrides them with SIMD versions that unpack the channels of several
+ * pixels across the lanes of a vector and process them at once.
+ * 
+ * {@link #getDefault()} picks the vector kernels when the class has been
+ * compiled and the module is available at run time, and this scalar class
+ * otherwise; setting the system property {@code pixelcraft.simd} to false
+ * forces the scalar kernels. The vector kernels produce exactly the same
+ * pixels as the scalar ones, except for {@link #sepia}, which computes in
+ * fixed point instead of double precision and may differ by 1 in a channel
+ * when the exact result lies within rounding distance of an integer.
+ */
+public class PixelKernels {
+    
+    /**
+     * The name of the vector implementation, loaded by reflection so that this
+     * class compiles and runs without the Vector API.
+     */
+    private static final String VECTOR_KERNELS = "VectorKernels";
+    
+    /**
+     * The kernels used by the filters.
+     */
+    private static volatile PixelKernels defaultKernels;
+    
+    /**
+     * Creates the scalar kernels.
+     */
+    protected PixelKernels() {
+    }
+    
+    /**
+     * Returns the kernels used by the filters, the vector kernels if they are
+     * available and not disabled, otherwise the scalar kernels.
+     * 
+     * @return The default kernels
+     */
+    public static PixelKernels getDefault() {
+        PixelKernels kernels = defaultKernels;
+        if (kernels == null) {
+            synchronized (PixelKernels.class) {
+                kernels = defaultKernels;
+                if (kernels == null) {
+                    kernels = Boolean.parseBoolean(System.getProperty("pixelcraft.simd", "true"))
+                            ? loadVectorKernels() : new PixelKernels();
+                    defaultKernels = kernels;
+                }
+            }
+        }
+        return kernels;
+    }
+    
+    /**
+     * Replaces the kernels used by the filters, for example to compare the
+     * vector kernels against the scalar ones.
+     * 
+     * @param kernels The new default kernels
+     */
+    public static void setDefault(PixelKernels kernels) {
+        defaultKernels = kernels;
+    }
+    
+    /**
+     * Creates the vector kernels, or the scalar kernels if the vector kernels
+     * were not compiled or the JVM was started without the Vector API module.
+     */
+    private static PixelKernels loadVectorKernels() {
+        try {
+            return (PixelKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return new PixelKernels();
+        }
+    }
+    
+    /**
+     * Returns whether these kernels use SIMD instructions.
+     * 
+     * @return False for the scalar kernels
+     */
+    public boolean isVectorized() {
+        return false;
+    }
+    
+    /**
+     * Returns a short description of these kernels for diagnostics.
+     * 
+     * @return "scalar", or the vector shape of the vector kernels
+     */
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+    
+    /**
+     * Converts a run of pixels to gray by averaging their red, green and blue
+     * channels. The alpha channel is preserved.
+     * 
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to transform
+     */
+    public void grayscale(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int pixel = in[inOffset + i];
+            out[outOffset + i] = Pixels.withGray(pixel, Pixels.luma(pixel));
+        }
+    }
+    
+    /**
+     * Applies the sepia matrix to a run of pixels. The alpha channel is
+     * preserved and the color channels are clamped at 255.
+     * 
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to transform
+     */
+    public void sepia(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int pixel = in[inOffset + i];
+            int red = Pixels.red(pixel);
+            int green = Pixels.green(pixel);
+            int blue = Pixels.blue(pixel);
+            
+            int newRed = Math.min(255, (int) (0.393 * red + 0.769 * green + 0.189 * blue));
+            int newGreen = Math.min(255, (int) (0.349 * red + 0.686 * green + 0.168 * blue));
+            int newBlue = Math.min(255, (int) (0.272 * red + 0.534 * green + 0.131 * blue));
+            
+            out[outOffset + i] = Pixels.withRgb(pixel, newRed, newGreen, newBlue);
+        }
+    }
+    
+    /**
+     * Maps every channel of a run of pixels through a 256-entry lookup table.
+     * 
+     * @param table The tables of the four channels, indexed by channel * 256 +
+     *              value and already shifted into the channel's position, as
+     *              compiled by {@link ChannelConverter}
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to transform
+     */
+    public void lookup(int[] table, int[] in, int inOffset, int[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int pixel = in[inOffset + i];
+            out[outOffset + i] = table[768 + Pixels.alpha(pixel)]
+                    | table[512 + Pixels.red(pixel)]
+                    | table[256 + Pixels.green(pixel)]
+                    | table[Pixels.blue(pixel)];
+        }
+    }
+    
+    /**
+     * Maps every channel c of a run of pixels to
+     * {@code clamp(value * scale[c] + offset[c], 0, 255)}, the form of
+     * brightening, inverting and chains of them.
+     * The scalar kernels look the values up in the equivalent table instead,
+     * which is faster without SIMD.
+     * 
+     * @param scale The factor of each channel, indexed like {@link ChannelConverter#ALPHA} etc.
+     * @param offset The term added to each channel
+     * @param table The equivalent lookup table, as for {@link #lookup}
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to transform
+     */
+    public void affine(int[] scale, int[] offset, int[] table,
+                       int[] in, int inOffset, int[] out, int outOffset, int length) {
+        lookup(table, in, inOffset, out, outOffset, length);
+    }
+    
+    /**
+     * Converts a row of packed ARGB pixels to luma values, the average of the
+     * red, green and blue channels.
+     * 
+     * @param pixels The array holding the row
+     * @param offset The index of the first pixel of the row
+     * @param luma The array receiving one luma value per pixel
+     * @param width The number of pixels in the row
+     */
+    public void luma(int[] pixels, int offset, int[] luma, int width) {
+        for (int x = 0; x < width; x++) {
+            luma[x] = Pixels.luma(pixels[offset + x]);
+        }
+    }
+    
+    /**
+     * Applies the Sobel kernels to the interior pixels [from, to) of one row
+     * and writes the edge pixels.
+     * The horizontal kernel {{-1, 0, 1}, {-2, 0, 2}, {-1, 0, 1}} and the vertical
+     * kernel {{-1, -2, -1}, {0, 0, 0}, {1, 2, 1}} are expanded into additions so
+     * that each gradient costs a handful of integer operations. The magnitude is
+     * constrained to [0, 255] and written as an opaque gray pixel.
+     * 
+     * @param above The luma of the row above
+     * @param row The luma of the row being processed
+     * @param below The luma of the row below
+     * @param out The array receiving the edge pixels
+     * @param outOffset The index of the first pixel of the output row
+     * @param from The first pixel to compute, at least 1
+     * @param to The pixel after the last one to compute, at most the width - 1
+     * @param exact True for the Euclidean magnitude, false for |Gx| + |Gy|
+     */
+    public void sobel(int[] above, int[] row, int[] below, int[] out, int outOffset,
+                      int from, int to, boolean exact) {
+        for (int x = from; x < to; x++) {
+            // Calculate Sobel gradients
+            int gx = (above[x + 1] + 2 * row[x + 1] + below[x + 1])
+                   - (above[x - 1] + 2 * row[x - 1] + below[x - 1]);
+            int gy = (below[x - 1] + 2 * below[x] + below[x + 1])
+                   - (above[x - 1] + 2 * above[x] + above[x + 1]);
+            
+            // Calculate edge magnitude and constrain to [0,255]
+            int edge = exact
+                    ? Math.min(255, (int) Math.sqrt(gx * gx + gy * gy))
+                    : Math.min(255, Math.abs(gx) + Math.abs(gy));
+            
+            // Set output pixel (white edges on black background)
+            out[outOffset + x] = Pixels.withGray(Pixels.ALPHA_MASK, edge);
+        }
+    }
+}
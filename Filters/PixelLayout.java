@@ -0,0 +1,167 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.Hashtable;
+
+/**
+ * Describes how the pixels of a converter's result are stored in memory and
+ * in the PNG file it is written to.
+ * Filters always compute packed ARGB ints, but many results need far fewer
+ * bytes: an edge map or a grayscale image has one gray level per pixel, and a
+ * pixelated image is always opaque. {@link Converter#processImage} allocates
+ * the result in the layout its converter declares, and {@link PngWriter}
+ * writes each layout with the smallest PNG color type that ImageIO reads back
+ * unchanged, so a 48 megapixel grayscale result takes 48 MB instead of 192 MB
+ * and its PNG holds one byte per pixel instead of four.
+ * 
+ * Every layout stores sRGB values, the same values the ARGB ints hold: a gray
+ * level of 128 is the pixel 0xff808080. TYPE_BYTE_GRAY is deliberately not
+ * used for gray results, since Java treats its levels as linear and converts
+ * them on every getRGB call. For the same reason {@link #GRAY} is written as
+ * a palette of grays rather than as a gray PNG, which ImageIO reads as linear
+ * gray and would show lighter.
+ */
+public enum PixelLayout {
+    
+    /**
+     * Four bytes per pixel in a TYPE_INT_ARGB image, written as RGBA or, when
+     * every pixel turns out to be opaque, RGB.
+     */
+    ARGB(PngWriter.ColorType.RGBA),
+    
+    /**
+     * Opaque colors in a TYPE_INT_RGB image, written as RGB.
+     */
+    RGB(PngWriter.ColorType.RGB),
+    
+    /**
+     * One gray level per pixel in a TYPE_BYTE_INDEXED image whose palette maps
+     * every index to the opaque gray of the same level, written as the same
+     * indexes into the same palette.
+     */
+    GRAY(PngWriter.ColorType.GRAY_PALETTE),
+    
+    /**
+     * A gray level and an alpha per pixel, written as RGBA or, when every
+     * pixel turns out to be opaque, RGB. Java has no two-byte image type with
+     * sRGB gray, so these are held in a TYPE_INT_ARGB image that is marked
+     * with this layout.
+     */
+    GRAY_ALPHA(PngWriter.ColorType.RGBA);
+    
+    /**
+     * The name of the image property marking a {@link #GRAY_ALPHA} image.
+     */
+    private static final String PROPERTY = "pixelcraft.layout";
+    
+    /**
+     * The palette of {@link #GRAY} images, shared by all of them.
+     */
+    private static final IndexColorModel GRAY_RAMP = createGrayRamp();
+    
+    /**
+     * The PNG color type this layout is written as.
+     */
+    private final PngWriter.ColorType colorType;
+    
+    PixelLayout(PngWriter.ColorType colorType) {
+        this.colorType = colorType;
+    }
+    
+    /**
+     * Returns the PNG color type this layout is written as.
+     * 
+     * @return The color type of the PNG file
+     */
+    PngWriter.ColorType getColorType() {
+        return colorType;
+    }
+    
+    /**
+     * Returns whether pixels in this layout keep their alpha.
+     * 
+     * @return True for {@link #ARGB} and {@link #GRAY_ALPHA}
+     */
+    public boolean hasAlpha() {
+        return this == ARGB || this == GRAY_ALPHA;
+    }
+    
+    /**
+     * Creates an empty image in this layout.
+     * 
+     * @param width The width of the new image
+     * @param height The height of the new image
+     * @return A new image, fully transparent for the layouts with alpha and
+     *         black otherwise
+     */
+    public BufferedImage createImage(int width, int height) {
+        switch (this) {
+            case RGB:
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            case GRAY:
+                return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, GRAY_RAMP);
+            case GRAY_ALPHA:
+                BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                Hashtable<String, Object> properties = new Hashtable<>();
+                properties.put(PROPERTY, this);
+                return new BufferedImage(img.getColorModel(), img.getRaster(), false, properties);
+            default:
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+    }
+    
+    /**
+     * Returns the layout of an image. Images created by {@link #createImage}
+     * report their own layout; any other TYPE_INT_RGB image is {@link #RGB}
+     * and everything else, including TYPE_BYTE_GRAY, is {@link #ARGB}.
+     * 
+     * @param img The image to inspect
+     * @return The layout the image's pixels are stored in
+     */
+    public static PixelLayout of(BufferedImage img) {
+        if (img.getProperty(PROPERTY) == GRAY_ALPHA) {
+            return GRAY_ALPHA;
+        }
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return RGB;
+        }
+        if (img.getType() == BufferedImage.TYPE_BYTE_INDEXED && isGrayRamp(img.getColorModel())) {
+            return GRAY;
+        }
+        return ARGB;
+    }
+    
+    /**
+     * Checks whether a color model is an opaque palette mapping every index
+     * to the gray of the same level.
+     */
+    private static boolean isGrayRamp(ColorModel model) {
+        if (model == GRAY_RAMP) {
+            return true;
+        }
+        if (!(model instanceof IndexColorModel) || model.getPixelSize() != 8) {
+            return false;
+        }
+        IndexColorModel palette = (IndexColorModel) model;
+        if (palette.getMapSize() != 256) {
+            return false;
+        }
+        for (int level = 0; level < 256; level++) {
+            if (palette.getRGB(level) != (0xff000000 | level * 0x010101)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Builds the palette mapping index i to the opaque gray (i, i, i).
+     */
+    private static IndexColorModel createGrayRamp() {
+        byte[] levels = new byte[256];
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = (byte) level;
+        }
+        return new IndexColorModel(8, levels.length, levels, levels, levels);
+    }
+}
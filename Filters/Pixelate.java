@@ -1,4 +1,8 @@
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Applies a pixelation effect by replacing blocks of pixels with their average color.
@@ -6,73 +10,402 @@ import java.awt.image.BufferedImage;
  * square blocks and replacing all pixels within each block with the average color
  * of that block. This effect is commonly used in retro gaming art, censorship,
  * and creative photo effects.
+ * 
+ * A single mosaic is computed one row of blocks at a time: the pixels of
+ * each column are summed over the block's rows, then the column sums of each
+ * block are added up, with red and blue in the two halves of one long, in
+ * work arrays reused from band to band. Mosaics at several block sizes are
+ * produced from a single {@link SummedAreaTable} by
+ * {@link #pixelate(BufferedImage, int...)}, which gives the sum over any
+ * block with four lookups per channel, so each extra size costs only the
+ * writing of its output.
  */
 public class Pixelate extends Converter {
     
+    /**
+     * The block size used by the no-argument constructor.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 10;
+    
+    /**
+     * The largest supported block size, whose blocks still have exact sums in
+     * a {@link SummedAreaTable}.
+     */
+    public static final int MAX_BLOCK_SIZE = 4096;
+    
     /**
      * The size of the blocks for pixelation.
      * Larger values create more pronounced pixelation (lower resolution).
      * Default block size is 10x10 pixels.
      */
-    private final int blockSize = 10;
+    private final int blockSize;
+    
+    /**
+     * The number of samples per block side below which the block average is
+     * computed from every pixel rather than from a subsampled decode.
+     */
+    private static final int SAMPLES_PER_BLOCK = 8;
+    
+    /**
+     * Creates a pixelation filter with the default block size of 10.
+     */
+    public Pixelate() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+    
+    /**
+     * Creates a pixelation filter with the given block size.
+     * 
+     * @param blockSize The width and height of the blocks in pixels
+     * @throws IllegalArgumentException If the block size is not between 1
+     *         and {@link #MAX_BLOCK_SIZE}
+     */
+    public Pixelate(int blockSize) {
+        this.blockSize = checkBlockSize(blockSize);
+    }
+    
+    /**
+     * Returns the block size of this filter.
+     * 
+     * @return The width and height of the blocks in pixels
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * The cache key includes the block size.
+     * 
+     * @return The class name with the block size
+     */
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + "(blockSize=" + blockSize + ")";
+    }
     
     /**
-     * Pixelates the image by dividing it into blocks.
+     * Pixelates the requested rows by dividing the image into blocks.
      * Each block is replaced with the average color of its pixels. This creates
      * a mosaic-like effect where detail is reduced to uniform-colored squares.
      * Edge blocks that don't fit evenly into the image dimensions are handled
-     * by using the remaining pixels without padding.
+     * by using the remaining pixels without padding. A block cut by the row
+     * range is still averaged over all of its rows, but only the requested
+     * rows are written. Nothing is allocated once the thread has run one band,
+     * see {@link Scratch}.
      * 
-     * @param img The image to be processed
-     * @return A new image with a pixelated effect, where groups of pixels are
-     *         replaced with their average color
+     * @param src The pixels of the image to be processed
+     * @param dst The output buffer to write the pixelated rows to
+     * @param startY The first row to write (inclusive)
+     * @param endY The last row to write (exclusive)
      */
     @Override
-    protected BufferedImage processImage(BufferedImage img) {
-        // Get the width and height of the image
-        int width = img.getWidth();
-        int height = img.getHeight();
-        
-        // Create a new image with the same width and height
-        BufferedImage processedImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        
-        // Process each block of pixels in the image
-        for (int y = 0; y < height; y += blockSize) {
-            for (int x = 0; x < width; x += blockSize) {
-                // Variables to calculate the average color for the block
-                int avgRed = 0, avgGreen = 0, avgBlue = 0;
-                int count = 0;
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        if (startY >= endY) {
+            return;
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        Scratch scratch = Scratch.acquire();
+        try {
+            long[] columnRedBlue = scratch.longs(0, width);
+            int[] columnGreen = scratch.ints(0, width);
+            for (int blockY = startY - startY % blockSize; blockY < endY; blockY += blockSize) {
+                int blockEndY = Math.min(blockY + blockSize, height);
                 
-                // Loop through the block and accumulate the color values
-                for (int by = y; by < Math.min(y + blockSize, height); by++) {
-                    for (int bx = x; bx < Math.min(x + blockSize, width); bx++) {
-                        int pixel = img.getRGB(bx, by);
-                        ARGB argb = new ARGB(pixel);
-                        
-                        // Accumulate the red, green, and blue components of each pixel
-                        avgRed += argb.red;
-                        avgGreen += argb.green;
-                        avgBlue += argb.blue;
-                        count++;
+                // Sum every column over the rows of the blocks; at most 4096
+                // rows of 255 fit easily in each half and in the ints
+                Arrays.fill(columnRedBlue, 0, width, 0);
+                Arrays.fill(columnGreen, 0, width, 0);
+                for (int y = blockY; y < blockEndY; y++) {
+                    int offset = src.rowOffset(y);
+                    for (int x = 0; x < width; x++) {
+                        int pixel = in[offset + x];
+                        columnRedBlue[x] += Pixels.redBlue(pixel);
+                        columnGreen[x] += Pixels.green(pixel);
                     }
                 }
                 
-                // Calculate the average color for the block
-                avgRed /= count;
-                avgGreen /= count;
-                avgBlue /= count;
-                
-                // Set the average color for each pixel in the block
-                for (int by = y; by < Math.min(y + blockSize, height); by++) {
-                    for (int bx = x; bx < Math.min(x + blockSize, width); bx++) {
-                        // Create a new ARGB object with the average color and full opacity
-                        ARGB newArgb = new ARGB(255, avgRed, avgGreen, avgBlue);
-                        processedImg.setRGB(bx, by, newArgb.toInt());
+                // Add up the columns of each block, then copy the first row
+                // to the remaining requested rows of the block
+                int firstRow = dst.rowOffset(Math.max(blockY, startY));
+                for (int x = 0; x < width; x += blockSize) {
+                    int blockEndX = Math.min(x + blockSize, width);
+                    long redBlue = 0;
+                    long green = 0;
+                    for (int bx = x; bx < blockEndX; bx++) {
+                        redBlue += columnRedBlue[bx];
+                        green += columnGreen[bx];
+                    }
+                    long count = (long) (blockEndX - x) * (blockEndY - blockY);
+                    int blockColor = Pixels.packHalves(0xffL << 32 | green / count,
+                            Pixels.divideHalves(redBlue, count));
+                    for (int bx = x; bx < blockEndX; bx++) {
+                        out[firstRow + bx] = blockColor;
                     }
                 }
+                for (int y = Math.max(blockY, startY) + 1; y < Math.min(blockEndY, endY); y++) {
+                    System.arraycopy(out, firstRow, out, dst.rowOffset(y), width);
+                }
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+    
+    /**
+     * Fills the requested rows of one row of blocks with the blocks' averages.
+     * 
+     * @param table The table to take the block averages from
+     * @param dst The output buffer
+     * @param size The block size
+     * @param blockY The first row of the blocks
+     * @param startY The first row to write (inclusive)
+     * @param endY The last row to write (exclusive)
+     */
+    private static void fillBlockRow(SummedAreaTable table, PixelBuffer dst, int size,
+                                     int blockY, int startY, int endY) {
+        int width = dst.getWidth();
+        int blockEndY = Math.min(blockY + size, dst.getHeight());
+        int[] out = dst.getData();
+        
+        // Compute the first row, then copy it to the remaining rows
+        int firstRow = dst.rowOffset(startY);
+        for (int x = 0; x < width; x += size) {
+            int blockEndX = Math.min(x + size, width);
+            int blockColor = table.average(x, blockY, blockEndX, blockEndY);
+            for (int bx = x; bx < blockEndX; bx++) {
+                out[firstRow + bx] = blockColor;
             }
         }
+        for (int y = startY + 1; y < endY; y++) {
+            System.arraycopy(out, firstRow, out, dst.rowOffset(y), width);
+        }
+    }
+    
+    /**
+     * Pixelates an image at several block sizes, all computed from a single
+     * summed-area table. The table keeps the rows at multiples of the
+     * greatest common divisor of the sizes, so sizes that share a large
+     * divisor, such as 4, 8, 16 and 32, share a small table.
+     * 
+     * @param img The image to pixelate
+     * @param blockSizes The block sizes, each between 1 and {@link #MAX_BLOCK_SIZE}
+     * @return One opaque {@link PixelLayout#RGB} image per block size, in the
+     *         same order
+     * @throws IllegalArgumentException If no block size is given or one is
+     *         out of range
+     */
+    public BufferedImage[] pixelate(BufferedImage img, int... blockSizes) {
+        if (blockSizes.length == 0) {
+            throw new IllegalArgumentException("No block sizes given");
+        }
+        int rowStep = 0;
+        for (int size : blockSizes) {
+            rowStep = gcd(rowStep, checkBlockSize(size));
+        }
+        PixelBuffer src = PixelBuffer.wrap(img);
+        int width = src.getWidth();
+        int height = src.getHeight();
+        SummedAreaTable table = SummedAreaTable.build(src, 0, height, rowStep, getEngine());
         
-        return processedImg;
+        BufferedImage[] results = new BufferedImage[blockSizes.length];
+        for (int i = 0; i < blockSizes.length; i++) {
+            int size = blockSizes[i];
+            PixelBuffer dst = PixelBuffer.wrapOutput(PixelLayout.RGB.createImage(width, height));
+            getEngine().invokeBands((height + size - 1) / size, (startBlock, endBlock) -> {
+                for (int by = startBlock; by < endBlock; by++) {
+                    int y = by * size;
+                    fillBlockRow(table, dst, size, y, y, Math.min(y + size, height));
+                }
+            });
+            results[i] = dst.toImage();
+        }
+        return results;
+    }
+    
+    /**
+     * Converts an input image file to one pixelated output file per block
+     * size, decoding the input and building the summed-area table only once.
+     * 
+     * @param inputFileName The path to the input image file
+     * @param blockSizes The block sizes
+     * @param outputFileNames The output path for each block size, PNG or raw
+     *                        as for {@link #convert(String, String)}
+     * @throws IOException If the input cannot be decoded or an output written
+     * @throws IllegalArgumentException If the arrays differ in length
+     */
+    public void convert(String inputFileName, int[] blockSizes, String[] outputFileNames) throws IOException {
+        if (blockSizes.length != outputFileNames.length) {
+            throw new IllegalArgumentException(blockSizes.length + " block sizes for "
+                    + outputFileNames.length + " output files");
+        }
+        BufferedImage img = ImageDecoder.getDefault().read(new File(inputFileName));
+        if (img == null) {
+            throw new IOException("Unsupported image format: " + inputFileName);
+        }
+        BufferedImage[] results = pixelate(img, blockSizes);
+        for (int i = 0; i < results.length; i++) {
+            save(results[i], outputFileNames[i]);
+        }
+    }
+    
+    /**
+     * Large blocks are averaged well enough from a grid of samples, so
+     * convert decodes only every n-th pixel of every n-th row, where n is
+     * the largest divisor of the block size that still leaves
+     * {@link #SAMPLES_PER_BLOCK} samples along each side of a block. Small
+     * blocks, including the default of 10, are averaged exactly.
+     * 
+     * @return The subsampling factor, 1 for small blocks
+     */
+    @Override
+    protected int getDecodeSubsampling() {
+        for (int subsampling = blockSize / SAMPLES_PER_BLOCK; subsampling > 1; subsampling--) {
+            if (blockSize % subsampling == 0) {
+                return subsampling;
+            }
+        }
+        return 1;
+    }
+    
+    /**
+     * Pixelates the full-size image from a subsampled decode. Since the
+     * factor divides the block size, each block corresponds to a whole block
+     * of samples, whose average becomes the block's color.
+     * 
+     * @param img The subsampled image
+     * @param subsampling The factor from {@link #getDecodeSubsampling()}
+     * @param width The width of the full image
+     * @param height The height of the full image
+     * @return The pixelated image at full size
+     */
+    @Override
+    protected BufferedImage processSubsampledImage(BufferedImage img, int subsampling, int width, int height) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer dst = PixelBuffer.wrapOutput(getOutputLayout(src).createImage(width, height));
+        int samples = blockSize / subsampling;
+        SummedAreaTable table = SummedAreaTable.build(src, 0, src.getHeight(), samples, getEngine());
+        int blockRows = (height + blockSize - 1) / blockSize;
+        int[] out = dst.getData();
+        getEngine().invokeBands(blockRows, (startBlock, endBlock) -> {
+            for (int by = startBlock; by < endBlock; by++) {
+                int y = by * blockSize;
+                int sampleY = by * samples;
+                int sampleEndY = Math.min(sampleY + samples, src.getHeight());
+                int firstRow = dst.rowOffset(y);
+                for (int x = 0, sampleX = 0; x < width; x += blockSize, sampleX += samples) {
+                    int blockColor = table.average(sampleX, sampleY,
+                            Math.min(sampleX + samples, src.getWidth()), sampleEndY);
+                    for (int bx = x; bx < Math.min(x + blockSize, width); bx++) {
+                        out[firstRow + bx] = blockColor;
+                    }
+                }
+                for (int row = y + 1; row < Math.min(y + blockSize, height); row++) {
+                    System.arraycopy(out, firstRow, out, dst.rowOffset(row), width);
+                }
+            }
+        });
+        return dst.toImage();
+    }
+    
+    /**
+     * Block averages are always opaque, so the result needs no alpha.
+     * 
+     * @param src The input pixels, which do not affect the layout
+     * @return {@link PixelLayout#RGB}
+     */
+    @Override
+    public PixelLayout getOutputLayout(PixelBuffer src) {
+        return PixelLayout.RGB;
+    }
+    
+    /**
+     * Previews with the block size divided by the subsampling factor. When
+     * the factor divides the block size, each preview block is sampled from
+     * exactly one full-size block.
+     * 
+     * @param subsampling The factor the input is reduced by
+     * @return A pixelation with the reduced block size, at least 1
+     */
+    @Override
+    protected Converter getPreviewConverter(int subsampling) {
+        return new Pixelate(Math.max(1, scaleDown(blockSize, subsampling)));
+    }
+    
+    /**
+     * Each output pixel depends on every pixel of the block containing it.
+     * 
+     * @return {@link OperationKind#NEIGHBORHOOD}
+     */
+    @Override
+    public OperationKind getOperationKind() {
+        return OperationKind.NEIGHBORHOOD;
+    }
+    
+    /**
+     * A changed pixel changes its whole block, so the region is the blocks
+     * the change touches.
+     * 
+     * @param dirty The changed input pixels
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The changed pixels grown to whole blocks
+     */
+    @Override
+    public Rectangle getAffectedRegion(Rectangle dirty, int width, int height) {
+        int startX = dirty.x / blockSize * blockSize;
+        int startY = dirty.y / blockSize * blockSize;
+        int endX = Math.min(width, (dirty.x + dirty.width + blockSize - 1) / blockSize * blockSize);
+        int endY = Math.min(height, (dirty.y + dirty.height + blockSize - 1) / blockSize * blockSize);
+        return new Rectangle(startX, startY, endX - startX, endY - startY);
+    }
+    
+    /**
+     * Averages the blocks of the region from a copy of the region alone,
+     * which starts on a block boundary and holds whole blocks.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param region The output pixels to compute, whole blocks
+     */
+    @Override
+    protected void processRegion(PixelBuffer src, PixelBuffer dst, Rectangle region) {
+        processCrop(src, dst, region, 0);
+    }
+    
+    /**
+     * A block can reach up to one block height minus one row beyond any of
+     * its rows.
+     * 
+     * @return The block size minus one
+     */
+    @Override
+    public int getHaloRows() {
+        return blockSize - 1;
+    }
+    
+    /**
+     * Checks that a block size is in the supported range.
+     */
+    private static int checkBlockSize(int blockSize) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be 1-" + MAX_BLOCK_SIZE + ": " + blockSize);
+        }
+        return blockSize;
+    }
+    
+    /**
+     * Returns the greatest common divisor of two sizes, or the other size if
+     * one is 0.
+     */
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int rest = a % b;
+            a = b;
+            b = rest;
+        }
+        return a;
     }
 }
@@ -0,0 +1,288 @@
+/**
+ * Static arithmetic on packed ARGB pixels, for the inner loops of the filters.
+ * A pixel is an int holding alpha, red, green and blue in its four bytes, from
+ * the highest to the lowest. Every method here takes and returns primitives
+ * and never allocates, so the JIT inlines them into the loops that call them
+ * and those loops create no objects, whatever escape analysis decides. This
+ * class replaces {@link ARGB}, which unpacked every pixel into an object.
+ * 
+ * Besides reading and packing single channels, the class offers SWAR
+ * operations (SIMD within a register), which work on several channels with
+ * one integer operation:
+ * 
+ *   {@link #addSaturating} and {@link #average} combine two pixels in all four
+ *   channels at once, with masks that keep carries from crossing into the
+ *   next channel.
+ * 
+ *   {@link #redBlue} and {@link #alphaGreen} spread two channels into the two
+ *   32-bit halves of a long. Such longs add up two channels per addition, for
+ *   sums of up to {@link #MAX_HALF_SUM_PIXELS} pixels, and {@link #high},
+ *   {@link #low}, {@link #divideHalves} and {@link #packHalves} read them
+ *   back. Blur and Pixelate keep their running sums this way.
+ */
+public final class Pixels {
+    
+    /**
+     * The alpha channel of a packed pixel.
+     */
+    public static final int ALPHA_MASK = 0xff000000;
+    
+    /**
+     * The red channel of a packed pixel.
+     */
+    public static final int RED_MASK = 0x00ff0000;
+    
+    /**
+     * The green channel of a packed pixel.
+     */
+    public static final int GREEN_MASK = 0x0000ff00;
+    
+    /**
+     * The blue channel of a packed pixel.
+     */
+    public static final int BLUE_MASK = 0x000000ff;
+    
+    /**
+     * The red, green and blue channels of a packed pixel.
+     */
+    public static final int RGB_MASK = 0x00ffffff;
+    
+    /**
+     * The red and blue channels of a packed pixel, which are 16 bits apart
+     * and can be added together in one int as long as each sum stays below
+     * 65536.
+     */
+    public static final int RED_BLUE_MASK = 0x00ff00ff;
+    
+    /**
+     * The lower 32-bit half of a long holding two channels.
+     */
+    public static final long LOW_HALF = 0xffffffffL;
+    
+    /**
+     * The most pixels whose channel values can be summed in one 32-bit half
+     * of a long without overflowing it.
+     */
+    public static final long MAX_HALF_SUM_PIXELS = LOW_HALF / 255;
+    
+    /**
+     * Multiplying a channel value by this repeats it in the red, green and
+     * blue bytes.
+     */
+    private static final int GRAY_SPREAD = 0x010101;
+    
+    /**
+     * Every bit of a pixel except the lowest bit of each channel.
+     */
+    private static final int HIGH_SEVEN_BITS = 0xfefefefe;
+    
+    /**
+     * The bit just above each channel of {@link #RED_BLUE_MASK}, set when a
+     * sum of two channels overflows 255.
+     */
+    private static final int RED_BLUE_CARRY = 0x01000100;
+    
+    private Pixels() {
+    }
+    
+    /**
+     * Returns the alpha channel of a pixel.
+     * 
+     * @param pixel The packed pixel
+     * @return The alpha value, 0-255
+     */
+    public static int alpha(int pixel) {
+        return pixel >>> 24;
+    }
+    
+    /**
+     * Returns the red channel of a pixel.
+     * 
+     * @param pixel The packed pixel
+     * @return The red value, 0-255
+     */
+    public static int red(int pixel) {
+        return (pixel >> 16) & 0xff;
+    }
+    
+    /**
+     * Returns the green channel of a pixel.
+     * 
+     * @param pixel The packed pixel
+     * @return The green value, 0-255
+     */
+    public static int green(int pixel) {
+        return (pixel >> 8) & 0xff;
+    }
+    
+    /**
+     * Returns the blue channel of a pixel.
+     * 
+     * @param pixel The packed pixel
+     * @return The blue value, 0-255
+     */
+    public static int blue(int pixel) {
+        return pixel & 0xff;
+    }
+    
+    /**
+     * Packs four channel values into a pixel.
+     * 
+     * @param alpha The alpha value, 0-255
+     * @param red The red value, 0-255
+     * @param green The green value, 0-255
+     * @param blue The blue value, 0-255
+     * @return The packed pixel
+     */
+    public static int pack(int alpha, int red, int green, int blue) {
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+    
+    /**
+     * Replaces the color channels of a pixel, keeping its alpha.
+     * 
+     * @param pixel The pixel whose alpha is kept
+     * @param red The new red value, 0-255
+     * @param green The new green value, 0-255
+     * @param blue The new blue value, 0-255
+     * @return The packed pixel
+     */
+    public static int withRgb(int pixel, int red, int green, int blue) {
+        return (pixel & ALPHA_MASK) | (red << 16) | (green << 8) | blue;
+    }
+    
+    /**
+     * Replaces the color channels of a pixel with one gray level, keeping its
+     * alpha.
+     * 
+     * @param pixel The pixel whose alpha is kept
+     * @param level The gray level, 0-255
+     * @return The packed gray pixel
+     */
+    public static int withGray(int pixel, int level) {
+        return (pixel & ALPHA_MASK) | (level * GRAY_SPREAD);
+    }
+    
+    /**
+     * Returns the brightness of a pixel as the project defines it, the
+     * average of its red, green and blue channels rounded down.
+     * 
+     * @param pixel The packed pixel
+     * @return The luma, 0-255
+     */
+    public static int luma(int pixel) {
+        return (red(pixel) + green(pixel) + blue(pixel)) / 3;
+    }
+    
+    /**
+     * Clamps a computed channel value to 0-255.
+     * 
+     * @param value The value
+     * @return The nearest value between 0 and 255
+     */
+    public static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+    
+    /**
+     * Adds two pixels channel by channel, clamping every sum at 255.
+     * Red and blue are added in one int and alpha and green in another; a
+     * channel that overflows sets the bit above it, which is then spread over
+     * the channel to saturate it.
+     * 
+     * @param a The first pixel
+     * @param b The second pixel
+     * @return The saturated sum in all four channels
+     */
+    public static int addSaturating(int a, int b) {
+        int redBlue = (a & RED_BLUE_MASK) + (b & RED_BLUE_MASK);
+        int alphaGreen = ((a >>> 8) & RED_BLUE_MASK) + ((b >>> 8) & RED_BLUE_MASK);
+        int redBlueCarry = redBlue & RED_BLUE_CARRY;
+        int alphaGreenCarry = alphaGreen & RED_BLUE_CARRY;
+        redBlue |= redBlueCarry - (redBlueCarry >>> 8);
+        alphaGreen |= alphaGreenCarry - (alphaGreenCarry >>> 8);
+        return (redBlue & RED_BLUE_MASK) | ((alphaGreen & RED_BLUE_MASK) << 8);
+    }
+    
+    /**
+     * Averages two pixels channel by channel, rounding down. The bits both
+     * pixels share are kept, and half of the bits they do not share are
+     * added; the lowest bit of each channel is masked off before the halving
+     * so it cannot shift into the channel below.
+     * 
+     * @param a The first pixel
+     * @param b The second pixel
+     * @return The average in all four channels
+     */
+    public static int average(int a, int b) {
+        return (a & b) + (((a ^ b) & HIGH_SEVEN_BITS) >>> 1);
+    }
+    
+    /**
+     * Spreads the red and blue channels of a pixel into the upper and lower
+     * halves of a long.
+     * 
+     * @param pixel The packed pixel
+     * @return Red in the upper and blue in the lower 32 bits
+     */
+    public static long redBlue(int pixel) {
+        return ((long) (pixel & 0xff0000) << 16) | (pixel & 0xff);
+    }
+    
+    /**
+     * Spreads the alpha and green channels of a pixel into the upper and
+     * lower halves of a long.
+     * 
+     * @param pixel The packed pixel
+     * @return Alpha in the upper and green in the lower 32 bits
+     */
+    public static long alphaGreen(int pixel) {
+        return ((long) (pixel >>> 24) << 32) | ((pixel >> 8) & 0xff);
+    }
+    
+    /**
+     * Returns the upper half of a long holding two channels.
+     * 
+     * @param halves Two unsigned 32-bit values
+     * @return The upper value
+     */
+    public static long high(long halves) {
+        return halves >>> 32;
+    }
+    
+    /**
+     * Returns the lower half of a long holding two channels.
+     * 
+     * @param halves Two unsigned 32-bit values
+     * @return The lower value
+     */
+    public static long low(long halves) {
+        return halves & LOW_HALF;
+    }
+    
+    /**
+     * Divides both halves of a long by the same divisor, rounding down, as
+     * when turning two channel sums into averages.
+     * 
+     * @param halves Two unsigned 32-bit values
+     * @param divisor The positive divisor
+     * @return Both quotients, in the same halves
+     */
+    public static long divideHalves(long halves, long divisor) {
+        return ((halves >>> 32) / divisor << 32) | ((halves & LOW_HALF) / divisor);
+    }
+    
+    /**
+     * Packs a pixel from two longs holding channel values of at most 255.
+     * 
+     * @param alphaGreen Alpha in the upper and green in the lower half
+     * @param redBlue Red in the upper and blue in the lower half
+     * @return The packed pixel
+     */
+    public static int packHalves(long alphaGreen, long redBlue) {
+        return (int) (alphaGreen >>> 8) & ALPHA_MASK
+                | (int) (redBlue >>> 16) & 0xff0000
+                | (int) alphaGreen << 8 & 0xff00
+                | (int) redBlue & 0xff;
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the rows of a PNG file one after another, without ever holding the
+ * whole image.
+ * ImageIO's PNG reader can decode a region of rows, but it inflates the image
+ * data from the top of the file on every call, so reading an image in strips
+ * costs time quadratic in its height. This reader inflates the data once, in
+ * order, and hands out rows as packed ARGB ints.
+ * 
+ * Only the common layouts are supported: non-interlaced 8-bit RGB and RGBA,
+ * palette images of any bit depth with or without transparency, and 8-bit
+ * gray and gray with alpha marked as sRGB, as {@link PngWriter} writes the
+ * {@link PixelLayout gray layouts}. For anything else {@link #open} returns
+ * null and the caller falls back to ImageIO, which also takes care of the
+ * exact color conversion of linear grayscale and 16-bit images.
+ */
+public final class PngReader implements Closeable {
+    
+    /**
+     * The eight bytes every PNG file starts with.
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    
+    /**
+     * The PNG color types this reader understands.
+     */
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+    
+    /**
+     * The raw file data.
+     */
+    private final DataInputStream file;
+    
+    /**
+     * The inflated, still filtered image data.
+     */
+    private final DataInputStream pixels;
+    private final Inflater inflater;
+    
+    /**
+     * The image dimensions and layout.
+     */
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bitDepth;
+    
+    /**
+     * The palette as packed ARGB values, or null for images without one.
+     */
+    private final int[] palette;
+    
+    /**
+     * The number of bytes a filter looks back (at least 1) and per row.
+     */
+    private final int bytesPerPixel;
+    private final int rowBytes;
+    
+    /**
+     * The unfiltered bytes of the previous and current row.
+     */
+    private byte[] previous;
+    private byte[] current;
+    
+    /**
+     * The number of rows read so far.
+     */
+    private int rowsRead;
+    
+    private PngReader(DataInputStream file, int firstIdatLength, int width, int height,
+                      int colorType, int bitDepth, int[] palette) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.bitDepth = bitDepth;
+        this.palette = palette;
+        int channels = colorType == COLOR_RGB ? 3 : colorType == COLOR_RGBA ? 4
+                : colorType == COLOR_GRAY_ALPHA ? 2 : 1;
+        this.bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+        this.rowBytes = (width * channels * bitDepth + 7) / 8;
+        this.previous = new byte[rowBytes];
+        this.current = new byte[rowBytes];
+        this.inflater = new Inflater();
+        this.pixels = new DataInputStream(
+                new InflaterInputStream(new IdatInputStream(firstIdatLength), inflater, 64 * 1024));
+    }
+    
+    /**
+     * Opens a PNG file for sequential reading.
+     * The header chunks are read up to the start of the image data.
+     * 
+     * @param input The file to read
+     * @return A reader positioned on the first row, or null if the file is not
+     *         a PNG file in one of the supported layouts
+     * @throws IOException If the file cannot be read
+     */
+    public static PngReader open(File input) throws IOException {
+        DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(input)));
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            if (file.read(signature) != signature.length || !Arrays.equals(signature, SIGNATURE)) {
+                file.close();
+                return null;
+            }
+            
+            int width = 0;
+            int height = 0;
+            int colorType = -1;
+            int bitDepth = 0;
+            int[] palette = null;
+            boolean transparentColor = false;
+            boolean srgb = false;
+            int length;
+            while (true) {
+                length = file.readInt();
+                int type = file.readInt();
+                if (type == chunkType("IDAT")) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                file.readFully(data);
+                file.readInt(); // CRC
+                if (type == chunkType("IHDR")) {
+                    width = readInt(data, 0);
+                    height = readInt(data, 4);
+                    bitDepth = data[8];
+                    colorType = data[9];
+                    int interlace = data[12];
+                    boolean supported = interlace == 0
+                            && (colorType == COLOR_PALETTE
+                                || ((colorType == COLOR_RGB || colorType == COLOR_RGBA
+                                     || colorType == COLOR_GRAY || colorType == COLOR_GRAY_ALPHA) && bitDepth == 8));
+                    if (!supported) {
+                        file.close();
+                        return null;
+                    }
+                } else if (type == chunkType("PLTE")) {
+                    palette = new int[length / 3];
+                    for (int i = 0; i < palette.length; i++) {
+                        palette[i] = 0xff000000 | (data[3 * i] & 0xff) << 16
+                                | (data[3 * i + 1] & 0xff) << 8 | (data[3 * i + 2] & 0xff);
+                    }
+                } else if (type == chunkType("sRGB")) {
+                    srgb = true;
+                } else if (type == chunkType("tRNS")) {
+                    if (palette == null) {
+                        transparentColor = true;
+                    } else {
+                        for (int i = 0; i < Math.min(length, palette.length); i++) {
+                            palette[i] = (data[i] & 0xff) << 24 | (palette[i] & 0xffffff);
+                        }
+                    }
+                }
+            }
+            
+            // A transparent RGB color and linear gray are left to ImageIO
+            boolean gray = colorType == COLOR_GRAY || colorType == COLOR_GRAY_ALPHA;
+            if (transparentColor || (colorType == COLOR_PALETTE && palette == null) || (gray && !srgb)) {
+                file.close();
+                return null;
+            }
+            return new PngReader(file, length, width, height, colorType, bitDepth, palette);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns the width of the image.
+     * 
+     * @return The image width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of the image.
+     * 
+     * @return The image height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Reads the next rows of the image as packed ARGB values.
+     * 
+     * @param dst The array receiving the rows
+     * @param offset The index where the first row is stored
+     * @param stride The number of array elements between two rows
+     * @param rows The number of rows to read
+     * @throws IOException If the image data is truncated or corrupt
+     * @throws IllegalStateException If more rows are read than the image has
+     */
+    public void readRows(int[] dst, int offset, int stride, int rows) throws IOException {
+        if (rowsRead + rows > height) {
+            throw new IllegalStateException("Image has only " + height + " rows");
+        }
+        for (int row = 0; row < rows; row++) {
+            int filter = pixels.readUnsignedByte();
+            pixels.readFully(current);
+            unfilter(filter, current, rowsRead == 0 ? null : previous);
+            toArgb(current, dst, offset + row * stride);
+            
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            rowsRead++;
+        }
+    }
+    
+    /**
+     * Reverses the PNG filter of one row in place.
+     */
+    private void unfilter(int filter, byte[] row, byte[] above) throws IOException {
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < row.length; i++) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                if (above != null) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] += above[i];
+                    }
+                }
+                break;
+            case 3:
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+                    int b = above != null ? above[i] & 0xff : 0;
+                    row[i] += (a + b) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+                    int b = above != null ? above[i] & 0xff : 0;
+                    int c = above != null && i >= bpp ? above[i - bpp] & 0xff : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    row[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter type " + filter + " in row " + rowsRead);
+        }
+    }
+    
+    /**
+     * Converts an unfiltered row to packed ARGB values.
+     */
+    private void toArgb(byte[] row, int[] dst, int offset) {
+        if (colorType == COLOR_RGB) {
+            for (int x = 0, i = 0; x < width; x++, i += 3) {
+                dst[offset + x] = 0xff000000 | (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+            }
+        } else if (colorType == COLOR_RGBA) {
+            for (int x = 0, i = 0; x < width; x++, i += 4) {
+                dst[offset + x] = (row[i + 3] & 0xff) << 24 | (row[i] & 0xff) << 16
+                        | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+            }
+        } else if (colorType == COLOR_GRAY) {
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = 0xff000000 | (row[x] & 0xff) * 0x010101;
+            }
+        } else if (colorType == COLOR_GRAY_ALPHA) {
+            for (int x = 0, i = 0; x < width; x++, i += 2) {
+                dst[offset + x] = (row[i + 1] & 0xff) << 24 | (row[i] & 0xff) * 0x010101;
+            }
+        } else {
+            // Palette indices are packed most significant bits first
+            int perByte = 8 / bitDepth;
+            int mask = (1 << bitDepth) - 1;
+            for (int x = 0; x < width; x++) {
+                int shift = 8 - bitDepth * (x % perByte + 1);
+                int index = (row[x / perByte] >> shift) & mask;
+                dst[offset + x] = index < palette.length ? palette[index] : 0xff000000;
+            }
+        }
+    }
+    
+    /**
+     * Closes the file.
+     * 
+     * @throws IOException If the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+    
+    private static int chunkType(String name) {
+        return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+    }
+    
+    private static int readInt(byte[] data, int index) {
+        return (data[index] & 0xff) << 24 | (data[index + 1] & 0xff) << 16
+                | (data[index + 2] & 0xff) << 8 | (data[index + 3] & 0xff);
+    }
+    
+    /**
+     * Presents the data of consecutive IDAT chunks as one stream.
+     * It starts at the data of the first IDAT chunk, whose length and type
+     * {@link #open} has already read.
+     */
+    private final class IdatInputStream extends InputStream {
+        private int remaining;
+        
+        IdatInputStream(int firstLength) {
+            this.remaining = firstLength;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                file.readInt(); // CRC of the finished chunk
+                int chunkLength = file.readInt();
+                if (file.readInt() != chunkType("IDAT")) {
+                    throw new EOFException("Image data ends before row " + rowsRead);
+                }
+                remaining = chunkLength;
+            }
+            int n = file.read(buffer, offset, Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException("File ends before row " + rowsRead);
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,1012 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG file row by row, without ever holding the whole image.
+ * ImageIO can only encode a complete BufferedImage, so an image that is
+ * produced in strips would have to be assembled in memory first. This writer
+ * accepts packed ARGB rows as they become available and compresses them
+ * straight into the output stream.
+ * 
+ * Compression runs in parallel, the way pigz does for gzip files. The rows are
+ * collected into chunks of about {@link #CHUNK_SIZE} bytes, and each chunk is
+ * filtered and deflated on its own task of a {@link ParallelEngine}. Every
+ * chunk is compressed as a separate piece of one zlib stream: it starts with
+ * the last 32 KB of the data before it as a preset dictionary, so matches
+ * across the boundary are not lost, and ends with a sync flush on a byte
+ * boundary, so the pieces can be concatenated as they are. The Adler-32
+ * checksum of the whole stream is combined from the checksums of the chunks.
+ * The result is an ordinary PNG that any decoder reads; only a few bytes per
+ * chunk are spent on the extra flushes.
+ * 
+ * Rows are written as 8-bit gray, gray with alpha, RGB or RGBA, see
+ * {@link ColorType}. Each row is filtered with one of the five PNG filters,
+ * by default with whichever gives the smallest sum of absolute differences,
+ * the usual heuristic that ImageIO's own PNG writer uses as well. The deflate
+ * level defaults to the one ImageIO uses; both can be changed per writer, or
+ * for every writer with the {@code pixelcraft.png.level} and
+ * {@code pixelcraft.png.filter} system properties.
+ * 
+ * A writer created by {@link #animated} writes an animated PNG (APNG) of
+ * several frames of the same size, one after another. Each frame is its own
+ * zlib stream, compressed in parallel like a still image; the first frame is
+ * stored in IDAT chunks, so decoders without APNG support show it as a still
+ * image, and the others in fdAT chunks.
+ */
+public final class PngWriter implements RowWriter {
+    
+    /**
+     * The layout of the pixels in the file. An image that is fully opaque or
+     * gray wastes a quarter or more of its data on channels that carry no
+     * information, so the writer can drop them.
+     */
+    public enum ColorType {
+        /** One gray sample per pixel, taken from the blue channel. */
+        GRAY(0, 1),
+        /**
+         * One gray sample per pixel, taken from the blue channel, as the index
+         * into a palette of the 256 opaque grays. ImageIO reads these back as
+         * the sRGB grays, where it reads {@link #GRAY} as linear gray.
+         */
+        GRAY_PALETTE(3, 1),
+        /** Red, green and blue; the alpha channel is dropped. */
+        RGB(2, 3),
+        /** A gray sample, taken from the blue channel, and alpha. */
+        GRAY_ALPHA(4, 2),
+        /** All four channels. */
+        RGBA(6, 4);
+        
+        /**
+         * The color type code in the PNG header.
+         */
+        final int code;
+        
+        /**
+         * Bytes per pixel, which is also the distance to the byte on the left
+         * used by the filters.
+         */
+        final int channels;
+        
+        ColorType(int code, int channels) {
+            this.code = code;
+            this.channels = channels;
+        }
+    }
+    
+    /**
+     * How each row is filtered before compression.
+     * The fixed strategies apply the same PNG filter to every row; ADAPTIVE
+     * tries all five and keeps the one whose bytes, read as signed values,
+     * have the smallest sum of absolute values, which tends to compress best.
+     */
+    public enum FilterStrategy {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE;
+        
+        /**
+         * Parses a strategy name, ignoring case.
+         * 
+         * @param name The name, such as "paeth" or "adaptive"
+         * @return The strategy
+         * @throws IllegalArgumentException If no strategy has this name
+         */
+        public static FilterStrategy parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+    
+    /**
+     * Deflate level of ImageIO's PNG writer, a good balance of speed and size.
+     */
+    public static final int DEFAULT_LEVEL = 4;
+    
+    /**
+     * The eight bytes every PNG file starts with.
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    
+    /**
+     * Approximate number of filtered bytes compressed by one task. Large
+     * enough that the flush and dictionary at each boundary cost almost
+     * nothing, small enough that a 1 megapixel image still splits into a
+     * handful of tasks.
+     */
+    private static final int CHUNK_SIZE = 512 * 1024;
+    
+    /**
+     * The deflate window: a match can reach back at most this far, so this is
+     * the useful size of a preset dictionary.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    
+    /**
+     * Largest amount of compressed data written in a single IDAT chunk.
+     */
+    private static final int IDAT_SIZE = 64 * 1024;
+    
+    /**
+     * The size of the sequence number at the start of an fdAT chunk.
+     */
+    private static final int SEQUENCE_SIZE = 4;
+    
+    /**
+     * The longest frame delay of an animation, in milliseconds; APNG stores
+     * the delay as a 16-bit fraction of a second.
+     */
+    public static final int MAX_FRAME_DELAY = 0xffff;
+    
+    /**
+     * Level and filter of writers created without explicit ones.
+     */
+    private static volatile int defaultLevel = Integer.getInteger("pixelcraft.png.level", DEFAULT_LEVEL);
+    private static volatile FilterStrategy defaultFilter =
+            FilterStrategy.parse(System.getProperty("pixelcraft.png.filter", "adaptive"));
+    
+    /**
+     * The stream the PNG file is written to.
+     */
+    private final DataOutputStream out;
+    
+    /**
+     * Collects the compressed chunks into IDAT chunks.
+     */
+    private final IdatOutputStream idat;
+    
+    /**
+     * The image dimensions.
+     */
+    private final int width;
+    private final int height;
+    
+    /**
+     * The encoding parameters.
+     */
+    private final ColorType colorType;
+    private final int level;
+    private final FilterStrategy filter;
+    private final ParallelEngine engine;
+    
+    /**
+     * Bytes in one unfiltered row.
+     */
+    private final int rowBytes;
+    
+    /**
+     * The number of rows compressed by one task.
+     */
+    private final int chunkRows;
+    
+    /**
+     * The number of rows carried over from one chunk into the next: enough
+     * rows to fill the dictionary once filtered, plus the row above them that
+     * the filters read.
+     */
+    private final int carryRows;
+    
+    /**
+     * The chunk being collected: the rows carried over from the previous
+     * chunk, then the new rows, all unfiltered.
+     */
+    private byte[] pending;
+    private int pendingCarried;
+    private int pendingRows;
+    
+    /**
+     * The chunks being compressed, in file order. At most
+     * {@link #maxInFlight} are held at a time.
+     */
+    private final ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+    private final int maxInFlight;
+    
+    /**
+     * The Adler-32 checksum of the chunks written so far.
+     */
+    private long adler = 1;
+    
+    /**
+     * The number of rows of the current frame written so far.
+     */
+    private int rowsWritten;
+    
+    /**
+     * The number of frames, 1 for a still image, and how long each frame of
+     * an animation is shown, in milliseconds.
+     */
+    private final int frames;
+    private final int delayMillis;
+    
+    /**
+     * The frame being written, and the sequence number of the next fcTL or
+     * fdAT chunk of an animation.
+     */
+    private int frame;
+    private int sequence;
+    
+    /**
+     * Starts an RGBA PNG file with the default level and filter by writing
+     * its signature and headers.
+     * 
+     * @param out The stream receiving the file; it is closed by {@link #close()}
+     * @param width The width of the image
+     * @param height The height of the image
+     * @throws IOException If the header cannot be written
+     */
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this(out, width, height, ColorType.RGBA, defaultLevel, defaultFilter, null);
+    }
+    
+    /**
+     * Starts a PNG file by writing its signature, its header and an sRGB
+     * chunk, since packed ARGB pixels are sRGB colors.
+     * 
+     * @param out The stream receiving the file; it is closed by {@link #close()}
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param colorType The layout of the pixels in the file
+     * @param level The deflate level, from 0 (stored) to 9 (smallest)
+     * @param filter How rows are filtered
+     * @param engine The engine compressing the chunks, or null for the
+     *               shared default engine
+     * @throws IOException If the header cannot be written
+     */
+    public PngWriter(OutputStream out, int width, int height, ColorType colorType, int level,
+                     FilterStrategy filter, ParallelEngine engine) throws IOException {
+        this(out, width, height, colorType, level, filter, engine, true);
+    }
+    
+    /**
+     * Starts a PNG file, marked as sRGB or, for levels that are not sRGB
+     * such as those of a TYPE_BYTE_GRAY image, left unmarked.
+     */
+    PngWriter(OutputStream out, int width, int height, ColorType colorType, int level,
+              FilterStrategy filter, ParallelEngine engine, boolean srgb) throws IOException {
+        this(out, width, height, colorType, level, filter, engine, srgb, 1, 0);
+    }
+    
+    /**
+     * Starts a PNG file of one or more frames.
+     */
+    private PngWriter(OutputStream out, int width, int height, ColorType colorType, int level,
+                      FilterStrategy filter, ParallelEngine engine, boolean srgb,
+                      int frames, int delayMillis) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Image must not be empty: " + width + "x" + height);
+        }
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Deflate level must be 0-9: " + level);
+        }
+        this.out = new DataOutputStream(out);
+        this.idat = new IdatOutputStream();
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.level = level;
+        this.filter = filter;
+        this.engine = engine != null ? engine : ParallelEngine.getDefault();
+        this.rowBytes = width * colorType.channels;
+        // A small image, such as a tile, needs no buffer beyond its own rows
+        this.chunkRows = Math.max(1, Math.min(height, CHUNK_SIZE / (rowBytes + 1)));
+        // Stored blocks have no matches, so they need no dictionary
+        int dictionaryRows = level == 0 ? 0 : (DICTIONARY_SIZE + rowBytes) / (rowBytes + 1);
+        this.carryRows = Math.min(dictionaryRows, chunkRows) + 1;
+        this.maxInFlight = 2 * this.engine.getThreads();
+        this.pending = new byte[(carryRows + chunkRows) * rowBytes];
+        this.frames = frames;
+        this.delayMillis = delayMillis;
+        
+        this.out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = (byte) colorType.code;
+        // compression, filter and interlace methods are all 0
+        writeChunk("IHDR", header, 0, header.length);
+        if (srgb) {
+            // Rendering intent 0, perceptual
+            writeChunk("sRGB", new byte[1], 0, 1);
+        }
+        if (colorType == ColorType.GRAY_PALETTE) {
+            // Index i is the gray (i, i, i)
+            byte[] palette = new byte[3 * 256];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = (byte) (i / 3);
+            }
+            writeChunk("PLTE", palette, 0, palette.length);
+        }
+        if (frames > 1) {
+            // The number of frames, and 0 plays, which loops forever
+            byte[] control = new byte[8];
+            putInt(control, 0, frames);
+            writeChunk("acTL", control, 0, control.length);
+        }
+        startFrame();
+    }
+    
+    /**
+     * Starts an animated PNG file in the default level and filter.
+     * Every frame is written like a still image, row by row from the top;
+     * the rows of the next frame follow as soon as a frame is complete. Each
+     * frame replaces the whole previous one, transparent pixels included.
+     * 
+     * @param out The stream receiving the file; it is closed by {@link #close()}
+     * @param width The width of every frame
+     * @param height The height of every frame
+     * @param colorType The layout of the pixels in the file
+     * @param frames The number of frames, at least 1
+     * @param delayMillis How long each frame is shown, 1 to {@link #MAX_FRAME_DELAY}
+     *                    milliseconds
+     * @return A writer expecting the rows of {@code frames} frames
+     * @throws IOException If the header cannot be written
+     */
+    public static PngWriter animated(OutputStream out, int width, int height, ColorType colorType,
+                                     int frames, int delayMillis) throws IOException {
+        if (frames < 1) {
+            throw new IllegalArgumentException("An animation needs at least one frame: " + frames);
+        }
+        if (delayMillis < 1 || delayMillis > MAX_FRAME_DELAY) {
+            throw new IllegalArgumentException("Frame delay must be 1-" + MAX_FRAME_DELAY + " ms: " + delayMillis);
+        }
+        return new PngWriter(out, width, height, colorType, defaultLevel, defaultFilter, null, true,
+                frames, delayMillis);
+    }
+    
+    /**
+     * Writes the frame control chunk of an animation frame, then starts the
+     * frame's zlib stream.
+     */
+    private void startFrame() throws IOException {
+        if (frames > 1) {
+            // The frame covers the whole canvas and is shown for delay / 1000
+            // seconds; dispose op 0 keeps it, blend op 0 replaces what was there
+            byte[] control = new byte[26];
+            putInt(control, 0, sequence++);
+            putInt(control, 4, width);
+            putInt(control, 8, height);
+            control[20] = (byte) (delayMillis >>> 8);
+            control[21] = (byte) delayMillis;
+            control[22] = (byte) (1000 >>> 8);
+            control[23] = (byte) 1000;
+            writeChunk("fcTL", control, 0, control.length);
+        }
+        
+        // The zlib header: deflate with a 32 KB window, and the level class
+        // that decoders may show; the check bits make it a multiple of 31
+        int levelClass = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = levelClass << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        idat.write(cmf);
+        idat.write(flg);
+    }
+    
+    /**
+     * Writes the remaining chunks and the zlib trailer of the frame whose
+     * last row has just been submitted, and starts the next frame if there is
+     * one.
+     */
+    private void finishFrame() throws IOException {
+        while (!inFlight.isEmpty()) {
+            writeNextChunk();
+        }
+        // The zlib trailer: the Adler-32 checksum of all filtered rows
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler);
+        idat.write(trailer, 0, trailer.length);
+        idat.flush();
+        frame++;
+        if (frame < frames) {
+            // The next frame is a new zlib stream, with nothing carried over
+            adler = 1;
+            rowsWritten = 0;
+            pendingCarried = 0;
+            startFrame();
+        }
+    }
+    
+    /**
+     * Returns the deflate level used by writers created without one.
+     * 
+     * @return The default level
+     */
+    public static int getDefaultLevel() {
+        return defaultLevel;
+    }
+    
+    /**
+     * Changes the deflate level used by writers created without one.
+     * 
+     * @param level The new default level, from 0 to 9
+     */
+    public static void setDefaultLevel(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Deflate level must be 0-9: " + level);
+        }
+        defaultLevel = level;
+    }
+    
+    /**
+     * Returns the filter strategy used by writers created without one.
+     * 
+     * @return The default strategy
+     */
+    public static FilterStrategy getDefaultFilter() {
+        return defaultFilter;
+    }
+    
+    /**
+     * Changes the filter strategy used by writers created without one.
+     * 
+     * @param filter The new default strategy
+     */
+    public static void setDefaultFilter(FilterStrategy filter) {
+        defaultFilter = filter;
+    }
+    
+    /**
+     * Writes a whole image as a PNG file in the color type of its
+     * {@link PixelLayout}: a palette of grays for {@link PixelLayout#GRAY},
+     * gray for TYPE_BYTE_GRAY images, RGB for {@link PixelLayout#RGB} and
+     * fully opaque ARGB and {@link PixelLayout#GRAY_ALPHA} images, and RGBA
+     * otherwise. The default level, filter and engine are used.
+     * 
+     * ImageIO reads 8-bit gray PNGs as linear gray, so sRGB levels written as
+     * gray would come back lighter from ImageIO. {@link PixelLayout#GRAY}
+     * images are therefore written as indexes into a palette of the sRGB
+     * grays, still one byte per pixel, and the gray levels of ARGB images keep
+     * their color channels. TYPE_BYTE_GRAY images hold ImageIO's linear
+     * levels and are written as gray without an sRGB chunk, so they read back
+     * unchanged.
+     * 
+     * @param img The image to write
+     * @param file The file to write, replaced if it exists
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(BufferedImage img, File file) throws IOException {
+        write(img, new BufferedOutputStream(new FileOutputStream(file)));
+    }
+    
+    /**
+     * Writes a whole image as a PNG stream, like {@link #write(BufferedImage, File)}.
+     * 
+     * @param img The image to write
+     * @param out The stream receiving the PNG data; it is closed afterwards
+     * @throws IOException If the stream cannot be written
+     */
+    public static void write(BufferedImage img, OutputStream out) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        PixelLayout layout = PixelLayout.of(img);
+        boolean linearGray = img.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        if (linearGray || layout == PixelLayout.GRAY) {
+            // Take the stored gray levels a strip at a time, so that no
+            // full-size int copy of a one-byte-per-pixel image is made;
+            // getRGB would also convert TYPE_BYTE_GRAY from linear gray
+            try (PngWriter writer = new PngWriter(out, width, height,
+                    linearGray ? ColorType.GRAY : ColorType.GRAY_PALETTE, defaultLevel, defaultFilter, null,
+                    !linearGray)) {
+                Raster raster = img.getRaster();
+                int stripRows = Math.max(1, Math.min(height, CHUNK_SIZE / width));
+                int[] samples = new int[stripRows * width];
+                for (int y = 0; y < height; y += stripRows) {
+                    int rows = Math.min(stripRows, height - y);
+                    raster.getSamples(0, y, width, rows, 0, samples);
+                    writer.writeRows(samples, 0, width, rows);
+                }
+            }
+            return;
+        }
+        
+        PixelBuffer src = PixelBuffer.wrapOutput(img);
+        try (PngWriter writer = new PngWriter(out, width, height, colorTypeOf(img, src),
+                defaultLevel, defaultFilter, null)) {
+            writer.writeRows(src.getData(), src.rowOffset(0), src.getStride(), height);
+        }
+    }
+    
+    /**
+     * Chooses the color type {@link #write(BufferedImage, OutputStream)}
+     * stores an image in that is not {@link PixelLayout#GRAY}: RGB for
+     * {@link PixelLayout#RGB}, otherwise RGB when every pixel is opaque and
+     * RGBA when not.
+     * 
+     * @param img The image to write
+     * @param src The pixels of the image, as wrapped by
+     *            {@link PixelBuffer#wrapOutput}
+     * @return The smallest color type holding the image exactly
+     */
+    static ColorType colorTypeOf(BufferedImage img, PixelBuffer src) {
+        PixelLayout layout = PixelLayout.of(img);
+        if (layout == PixelLayout.RGB) {
+            return ColorType.RGB;
+        }
+        boolean opaque = !img.getColorModel().hasAlpha() || src.isOpaque();
+        return opaque ? ColorType.RGB : ColorType.RGBA;
+    }
+    
+    /**
+     * Returns the number of rows of the current frame written so far.
+     * 
+     * @return The next row to be written
+     */
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+    
+    /**
+     * Writes the next rows of the image, or of the current frame of an
+     * animation.
+     * Rows are compressed in the background once a chunk is full; this
+     * method only waits when too many chunks are still being compressed, and
+     * at the end of each frame.
+     * 
+     * @param pixels The array holding the packed ARGB rows
+     * @param offset The index of the first pixel of the first row
+     * @param stride The number of array elements between two rows
+     * @param rows The number of rows to write
+     * @throws IOException If the rows cannot be written
+     * @throws IllegalStateException If more rows are written than the image
+     *         or the current frame has
+     */
+    @Override
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("Image has only " + height + " rows");
+        }
+        for (int row = 0; row < rows; row++) {
+            unpackRow(pixels, offset + row * stride, pending, (pendingCarried + pendingRows) * rowBytes);
+            pendingRows++;
+            rowsWritten++;
+            if (pendingRows == chunkRows || rowsWritten == height) {
+                submitChunk();
+            }
+        }
+        if (rows > 0 && rowsWritten == height) {
+            finishFrame();
+        }
+    }
+    
+    /**
+     * Converts one row of packed ARGB pixels to the bytes of the color type.
+     */
+    private void unpackRow(int[] pixels, int index, byte[] target, int start) {
+        switch (colorType) {
+            case GRAY:
+            case GRAY_PALETTE:
+                for (int x = 0; x < width; x++) {
+                    target[start + x] = (byte) pixels[index + x];
+                }
+                break;
+            case GRAY_ALPHA:
+                for (int x = 0, i = start; x < width; x++, i += 2) {
+                    int pixel = pixels[index + x];
+                    target[i] = (byte) pixel;
+                    target[i + 1] = (byte) (pixel >>> 24);
+                }
+                break;
+            case RGB:
+                for (int x = 0, i = start; x < width; x++, i += 3) {
+                    int pixel = pixels[index + x];
+                    target[i] = (byte) (pixel >> 16);
+                    target[i + 1] = (byte) (pixel >> 8);
+                    target[i + 2] = (byte) pixel;
+                }
+                break;
+            default:
+                for (int x = 0, i = start; x < width; x++, i += 4) {
+                    int pixel = pixels[index + x];
+                    target[i] = (byte) (pixel >> 16);
+                    target[i + 1] = (byte) (pixel >> 8);
+                    target[i + 2] = (byte) pixel;
+                    target[i + 3] = (byte) (pixel >>> 24);
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Hands the pending chunk to the engine and starts the next one with the
+     * rows it carries over.
+     */
+    private void submitChunk() throws IOException {
+        Chunk chunk = new Chunk(pending, pendingCarried, pendingRows, rowsWritten == height);
+        while (inFlight.size() >= maxInFlight) {
+            writeNextChunk();
+        }
+        inFlight.add(engine.submit(chunk));
+        if (rowsWritten == height && frame == frames - 1) {
+            // The last chunk of the file; no rows follow to carry over
+            pending = null;
+            return;
+        }
+        
+        int total = pendingCarried + pendingRows;
+        int carried = Math.min(carryRows, total);
+        byte[] next = new byte[pending.length];
+        System.arraycopy(pending, (total - carried) * rowBytes, next, 0, carried * rowBytes);
+        pending = next;
+        pendingCarried = carried;
+        pendingRows = 0;
+    }
+    
+    /**
+     * Waits for the oldest chunk in flight and writes its compressed data.
+     */
+    private void writeNextChunk() throws IOException {
+        Chunk chunk;
+        try {
+            chunk = inFlight.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        idat.write(chunk.compressed, 0, chunk.compressedLength);
+        adler = combineAdler(adler, chunk.adler, chunk.length);
+    }
+    
+    /**
+     * Combines the Adler-32 checksums of two pieces of data into the checksum
+     * of their concatenation, as zlib's adler32_combine does.
+     * 
+     * @param adler1 The checksum of the first piece
+     * @param adler2 The checksum of the second piece
+     * @param length2 The length of the second piece
+     * @return The checksum of both pieces
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = remainder * sum1 % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        sum1 %= base;
+        sum2 %= base;
+        return (sum2 << 16) | sum1;
+    }
+    
+    /**
+     * Filters a row with the given strategy.
+     * 
+     * @param row The array holding the unfiltered row
+     * @param rowOffset The index of the row's first byte
+     * @param above The array holding the unfiltered row above, or null for the
+     *              first row
+     * @param aboveOffset The index of the first byte of the row above
+     * @param length The number of bytes in a row
+     * @param bpp The number of bytes per pixel
+     * @param strategy The filter strategy
+     * @param filtered Space for the row filtered with each of the five filters
+     * @return The chosen entry of {@code filtered}, starting with its filter type
+     */
+    static byte[] filterRow(byte[] row, int rowOffset, byte[] above, int aboveOffset, int length, int bpp,
+                            FilterStrategy strategy, byte[][] filtered) {
+        if (strategy != FilterStrategy.ADAPTIVE) {
+            int type = strategy.ordinal();
+            applyFilter(type, row, rowOffset, above, aboveOffset, length, bpp, filtered[type]);
+            return filtered[type];
+        }
+        long bestSum = Long.MAX_VALUE;
+        byte[] best = null;
+        for (int type = 0; type < 5; type++) {
+            // Filters that read the row above are pointless on the first row
+            if (above == null && type >= 2) {
+                break;
+            }
+            long sum = applyFilter(type, row, rowOffset, above, aboveOffset, length, bpp, filtered[type]);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = filtered[type];
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Applies one PNG filter to a row.
+     * Each filter has its own loop, and the first pixel, which has nothing on
+     * its left, is handled before it, so the inner loops carry no branches
+     * besides the Paeth predictor's.
+     * 
+     * @return The sum of absolute values of the filtered bytes read as signed
+     */
+    private static long applyFilter(int type, byte[] row, int rowOffset, byte[] above, int aboveOffset,
+                                    int length, int bpp, byte[] target) {
+        target[0] = (byte) type;
+        if (above == null) {
+            // The first row: the row above counts as zeros, so Up is None,
+            // Average is half of Sub and Paeth is Sub
+            above = new byte[length];
+            aboveOffset = 0;
+        }
+        int first = Math.min(bpp, length);
+        long sum = 0;
+        switch (type) {
+            case 0:
+                for (int i = 0; i < length; i++) {
+                    byte value = row[rowOffset + i];
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            case 1:
+                for (int i = 0; i < first; i++) {
+                    byte value = row[rowOffset + i];
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                for (int i = first; i < length; i++) {
+                    byte value = (byte) (row[rowOffset + i] - row[rowOffset + i - bpp]);
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    byte value = (byte) (row[rowOffset + i] - above[aboveOffset + i]);
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < first; i++) {
+                    byte value = (byte) (row[rowOffset + i] - ((above[aboveOffset + i] & 0xff) >> 1));
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                for (int i = first; i < length; i++) {
+                    int a = row[rowOffset + i - bpp] & 0xff;
+                    int b = above[aboveOffset + i] & 0xff;
+                    byte value = (byte) (row[rowOffset + i] - ((a + b) >> 1));
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            default:
+                for (int i = 0; i < first; i++) {
+                    // With a and c zero, the predictor is always b
+                    byte value = (byte) (row[rowOffset + i] - above[aboveOffset + i]);
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                for (int i = first; i < length; i++) {
+                    int a = row[rowOffset + i - bpp] & 0xff;
+                    int b = above[aboveOffset + i] & 0xff;
+                    int c = above[aboveOffset + i - bpp] & 0xff;
+                    byte value = (byte) (row[rowOffset + i] - paeth(a, b, c));
+                    target[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+        }
+        return sum;
+    }
+    
+    /**
+     * The Paeth predictor: whichever of left, above and upper-left is closest
+     * to left + above - upper-left.
+     */
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+    
+    /**
+     * Finishes the image data, writes the end chunk and closes the stream.
+     * 
+     * @throws IOException If the file cannot be completed
+     * @throws IllegalStateException If not every row has been written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (frame != frames) {
+                throw new IllegalStateException(frames > 1
+                        ? frame + " of " + frames + " frames have been written"
+                        : rowsWritten + " of " + height + " rows have been written");
+            }
+            writeChunk("IEND", new byte[0], 0, 0);
+            out.flush();
+        } finally {
+            for (Future<Chunk> chunk : inFlight) {
+                chunk.cancel(false);
+            }
+            out.close();
+        }
+    }
+    
+    /**
+     * Writes one chunk: length, type, data and CRC.
+     */
+    private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+    
+    /**
+     * Stores a big-endian int, the byte order of all PNG fields.
+     */
+    private static void putInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) (value >>> 24);
+        bytes[index + 1] = (byte) (value >>> 16);
+        bytes[index + 2] = (byte) (value >>> 8);
+        bytes[index + 3] = (byte) value;
+    }
+    
+    /**
+     * One chunk of rows, filtered and compressed on a worker thread.
+     * The rows carried over from the previous chunk are filtered again to
+     * rebuild the end of the previous chunk's data, which becomes this
+     * chunk's dictionary; filtering is cheap next to waiting for the previous
+     * task to finish.
+     */
+    private final class Chunk implements Callable<Chunk> {
+        private final byte[] raw;
+        private final int carried;
+        private final int rows;
+        private final boolean last;
+        
+        /**
+         * The results: the compressed data, and the length and Adler-32
+         * checksum of the filtered data it holds.
+         */
+        byte[] compressed;
+        int compressedLength;
+        long adler;
+        long length;
+        
+        Chunk(byte[] raw, int carried, int rows, boolean last) {
+            this.raw = raw;
+            this.carried = carried;
+            this.rows = rows;
+            this.last = last;
+        }
+        
+        @Override
+        public Chunk call() {
+            // Filter every row that has a row above it in the chunk, or all
+            // rows in the first chunk; the carried rows form the dictionary
+            int first = carried > 0 ? 1 : 0;
+            int total = carried + rows;
+            int filteredBytes = rowBytes + 1;
+            byte[] stream = new byte[(total - first) * filteredBytes];
+            byte[][] filtered = new byte[5][filteredBytes];
+            for (int row = first; row < total; row++) {
+                byte[] chosen = filterRow(raw, row * rowBytes, row > 0 ? raw : null, (row - 1) * rowBytes,
+                        rowBytes, colorType.channels, filter, filtered);
+                System.arraycopy(chosen, 0, stream, (row - first) * filteredBytes, filteredBytes);
+            }
+            int start = (carried - first) * filteredBytes;
+            length = stream.length - start;
+            
+            Adler32 checksum = new Adler32();
+            checksum.update(stream, start, (int) length);
+            adler = checksum.getValue();
+            
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (start > 0) {
+                    int dictionary = Math.min(start, DICTIONARY_SIZE);
+                    deflater.setDictionary(stream, start - dictionary, dictionary);
+                }
+                deflater.setInput(stream, start, (int) length);
+                compressed = new byte[(int) length / 2 + 64];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflateMore(deflater, Deflater.NO_FLUSH);
+                    }
+                } else {
+                    // A sync flush ends on a byte boundary with an empty
+                    // stored block, so the next chunk can follow directly;
+                    // a full output buffer means there may be more to flush
+                    do {
+                        deflateMore(deflater, Deflater.SYNC_FLUSH);
+                    } while (compressedLength == compressed.length);
+                }
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+        
+        /**
+         * Runs the deflater once into the free end of the output, growing it
+         * first if it is full.
+         */
+        private void deflateMore(Deflater deflater, int flush) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength,
+                    compressed.length - compressedLength, flush);
+        }
+    }
+    
+    /**
+     * Collects compressed data into IDAT chunks, or into fdAT chunks for the
+     * frames of an animation after the first. The buffer keeps room for the
+     * sequence number an fdAT chunk starts with.
+     */
+    private final class IdatOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[SEQUENCE_SIZE + IDAT_SIZE];
+        private int count = SEQUENCE_SIZE;
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (count > SEQUENCE_SIZE) {
+                if (frame == 0) {
+                    writeChunk("IDAT", buffer, SEQUENCE_SIZE, count - SEQUENCE_SIZE);
+                } else {
+                    putInt(buffer, 0, sequence++);
+                    writeChunk("fdAT", buffer, 0, count);
+                }
+                count = SEQUENCE_SIZE;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
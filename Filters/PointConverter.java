@@ -0,0 +1,72 @@
+import java.awt.Rectangle;
+
+/**
+ * Base class for converters whose output pixel depends only on the input pixel
+ * at the same position, such as Grayscale, Sepia, Brighten and Invert.
+ * Subclasses transform one row of packed ARGB pixels at a time in
+ * {@link #filterRow}. Because a point filter never looks at neighboring
+ * pixels, several of them can be applied one after another to the same row
+ * while it is still in the CPU cache, which is how {@link Pipeline} fuses
+ * consecutive point stages into a single pass over memory.
+ */
+public abstract class PointConverter extends Converter {
+    
+    /**
+     * Applies the point filter to the requested rows.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param startY The first row to process (inclusive)
+     * @param endY The last row to process (exclusive)
+     */
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        int width = src.getWidth();
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        for (int y = startY; y < endY; y++) {
+            filterRow(in, src.rowOffset(y), out, dst.rowOffset(y), width);
+        }
+    }
+    
+    /**
+     * Filters just the pixels of the region, each row of it as one run.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer to write into
+     * @param region The output pixels to compute
+     */
+    @Override
+    protected void processRegion(PixelBuffer src, PixelBuffer dst, Rectangle region) {
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        getEngine().invokeBands(region.height, (startY, endY) -> {
+            for (int y = region.y + startY; y < region.y + endY; y++) {
+                filterRow(in, src.rowOffset(y) + region.x, out, dst.rowOffset(y) + region.x, region.width);
+            }
+        });
+    }
+    
+    /**
+     * Transforms a run of packed ARGB pixels.
+     * Implementations must support {@code in == out} with equal offsets, so
+     * that a row can be filtered in place.
+     * 
+     * @param in The array to read pixels from
+     * @param inOffset The index of the first pixel to read
+     * @param out The array to write pixels to
+     * @param outOffset The index of the first pixel to write
+     * @param length The number of pixels to transform
+     */
+    protected abstract void filterRow(int[] in, int inOffset, int[] out, int outOffset, int length);
+    
+    /**
+     * Point filters read only the pixel being transformed.
+     * 
+     * @return {@link OperationKind#POINT}
+     */
+    @Override
+    public final OperationKind getOperationKind() {
+        return OperationKind.POINT;
+    }
+}
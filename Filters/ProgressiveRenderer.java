@@ -0,0 +1,240 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders the results of converters progressively, for interactive use where
+ * something must be shown right away even when the full filter takes seconds.
+ * 
+ * {@link #render} first computes a {@link Converter#preview preview} on the
+ * calling thread: the input is subsampled to at most a fixed number of
+ * pixels, one million by default, and filtered with the converter's size
+ * parameters scaled down to match. Its cost depends on the preview size and
+ * not on the input size, so it is ready in a few tens of milliseconds. The
+ * full-resolution result is then computed on a background thread and
+ * delivered through the {@link Preview#getResult() future} of the preview.
+ * 
+ * A new render supersedes the previous one: the previous result is
+ * cancelled, and if it is being computed, the computation stops at the next
+ * strip of rows, see {@link Converter#processImageInterruptibly}. Only one
+ * full-resolution result is computed at a time, on the converter's
+ * {@link ParallelEngine}.
+ */
+public class ProgressiveRenderer implements AutoCloseable {
+    
+    /**
+     * Default largest number of pixels of a preview, about one megapixel.
+     */
+    public static final int DEFAULT_PREVIEW_PIXELS = 1 << 20;
+    
+    /**
+     * The largest number of pixels of the input a preview is computed from.
+     */
+    private final int previewPixels;
+    
+    /**
+     * The thread computing full-resolution results.
+     */
+    private final ExecutorService refiner;
+    
+    /**
+     * The latest render, whose result may still be computed.
+     */
+    private Preview pending;
+    
+    /**
+     * Creates a renderer with previews of at most {@link #DEFAULT_PREVIEW_PIXELS}.
+     */
+    public ProgressiveRenderer() {
+        this(DEFAULT_PREVIEW_PIXELS);
+    }
+    
+    /**
+     * Creates a renderer with previews of at most the given number of pixels.
+     * 
+     * @param previewPixels The largest number of input pixels a preview is
+     *                      computed from
+     * @throws IllegalArgumentException If the number is not positive
+     */
+    public ProgressiveRenderer(int previewPixels) {
+        if (previewPixels < 1) {
+            throw new IllegalArgumentException("previewPixels must be positive: " + previewPixels);
+        }
+        this.previewPixels = previewPixels;
+        this.refiner = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "pixelcraft-refine");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Returns the factor an image of the given size is subsampled by for its
+     * preview: the smallest n for which every n-th pixel of every n-th row
+     * are no more than the preview pixels.
+     * 
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The subsampling factor, 1 if the input is small enough
+     */
+    public int getSubsampling(int width, int height) {
+        // No smaller factor can be enough, since each kept pixel stands for n * n
+        int subsampling = Math.max(1, (int) Math.sqrt((double) width * height / previewPixels));
+        while ((long) ((width + subsampling - 1) / subsampling)
+                * ((height + subsampling - 1) / subsampling) > previewPixels) {
+            subsampling++;
+        }
+        return subsampling;
+    }
+    
+    /**
+     * Computes a preview of a converter's result and starts computing the
+     * full result in the background. The previous render's result is
+     * cancelled first, so that its computation frees the engine for the
+     * preview. An input no larger than a preview is converted in full right
+     * away, and the returned preview's result is already complete.
+     * 
+     * @param converter The converter to apply
+     * @param img The input image, which must not change until the result is
+     *            complete or cancelled
+     * @return The preview, with the future of the full result
+     */
+    public Preview render(Converter converter, BufferedImage img) {
+        cancelPending();
+        int subsampling = getSubsampling(img.getWidth(), img.getHeight());
+        Preview preview = new Preview(converter.preview(img, subsampling), subsampling);
+        if (subsampling == 1) {
+            preview.result.complete(preview.image);
+            return preview;
+        }
+        synchronized (this) {
+            // Another thread may have rendered while this preview was computed
+            if (pending != null) {
+                pending.cancel();
+            }
+            preview.task = refiner.submit(() -> preview.refine(converter, img));
+            pending = preview;
+        }
+        return preview;
+    }
+    
+    /**
+     * Cancels the result of the latest render, if it is still being computed.
+     */
+    public synchronized void cancelPending() {
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+    }
+    
+    /**
+     * Cancels the pending result and stops the background thread.
+     */
+    @Override
+    public void close() {
+        cancelPending();
+        refiner.shutdownNow();
+    }
+    
+    /**
+     * A quickly computed approximation of a converter's result, together with
+     * the full result that is computed after it.
+     */
+    public static final class Preview {
+        
+        /**
+         * The result of the converter for the subsampled input.
+         */
+        private final BufferedImage image;
+        
+        /**
+         * The factor the input was subsampled by.
+         */
+        private final int subsampling;
+        
+        /**
+         * The full-resolution result, completed by the background thread.
+         */
+        private final CompletableFuture<BufferedImage> result = new CompletableFuture<>();
+        
+        /**
+         * The background computation of the result, interrupted on cancel.
+         */
+        private volatile Future<?> task;
+        
+        private Preview(BufferedImage image, int subsampling) {
+            this.image = image;
+            this.subsampling = subsampling;
+        }
+        
+        /**
+         * Returns the preview image. Its size is the size of the full result
+         * divided by the subsampling factor, rounded up.
+         * 
+         * @return The result for the subsampled input
+         */
+        public BufferedImage getImage() {
+            return image;
+        }
+        
+        /**
+         * Returns the factor the input was subsampled by for the preview.
+         * 
+         * @return The subsampling factor, 1 if the preview is the full result
+         */
+        public int getSubsampling() {
+            return subsampling;
+        }
+        
+        /**
+         * Returns the future of the full-resolution result. It completes on
+         * the background thread, so callbacks such as thenAccept run there
+         * unless given an executor, and it is cancelled when a newer render
+         * supersedes this one.
+         * 
+         * @return The future of the full result
+         */
+        public CompletableFuture<BufferedImage> getResult() {
+            return result;
+        }
+        
+        /**
+         * Cancels the full result. A computation that has started stops at
+         * the next strip of rows.
+         * 
+         * @return True if the result was cancelled, false if it was already
+         *         complete
+         */
+        public boolean cancel() {
+            boolean cancelled = result.cancel(false);
+            Future<?> running = task;
+            if (running != null) {
+                running.cancel(true);
+            }
+            return cancelled;
+        }
+        
+        /**
+         * Computes the full result on the background thread, unless it was
+         * cancelled before the computation started.
+         * 
+         * @param converter The converter to apply
+         * @param img The input image
+         */
+        private void refine(Converter converter, BufferedImage img) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(converter.processImageInterruptibly(img));
+            } catch (InterruptedException e) {
+                result.cancel(false);
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Reads and writes images in PixelCraft's uncompressed raw ARGB format.
+ * Passing an image from one converter to the next through PNG spends most of
+ * the time in deflate compression and decompression, which is wasted when the
+ * file is only an intermediate result. A raw file holds the packed ARGB ints
+ * exactly as a {@link PixelBuffer} does, so reading and writing one is a
+ * bulk memory copy through a memory-mapped FileChannel, with no decoding at
+ * all. Filters work on int[] arrays, so the pixels are copied once between
+ * the mapping and the array rather than processed in place.
+ * 
+ * The file layout, all little-endian (the native order of common CPUs, so the
+ * bulk copies need no byte swapping):
+ * 
+ *   offset  0  4 bytes  magic "PXCR"
+ *   offset  4  int      format version, currently 1
+ *   offset  8  int      width in pixels
+ *   offset 12  int      height in pixels
+ *   offset 16  int      stride: ints between the starts of two rows (>= width)
+ *   offset 20  int      offset of the first pixel in bytes
+ *   then height rows of stride packed ARGB ints
+ * 
+ * Files with the {@link #EXTENSION} extension are written in this format;
+ * files are recognized as raw on input by their magic, whatever their name.
+ */
+public final class RawImage {
+    
+    /**
+     * The file name extension of raw images.
+     */
+    public static final String EXTENSION = ".argb";
+    
+    /**
+     * The first four bytes of every raw image.
+     */
+    private static final int MAGIC = 'P' | 'X' << 8 | 'C' << 16 | 'R' << 24;
+    
+    /**
+     * The format version written by this class.
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * The size of the header written by this class, in bytes.
+     */
+    private static final int HEADER_SIZE = 24;
+    
+    private RawImage() {
+    }
+    
+    /**
+     * Returns whether a file name has the raw image extension.
+     * 
+     * @param fileName The file name to check
+     * @return True if images written under this name should be raw
+     */
+    public static boolean isRawName(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+    
+    /**
+     * Returns whether a file starts with the raw image magic.
+     * 
+     * @param file The file to check
+     * @return True if the file is a raw image
+     * @throws IOException If the file cannot be read
+     */
+    public static boolean isRaw(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return in.length() >= HEADER_SIZE && Integer.reverseBytes(in.readInt()) == MAGIC;
+        }
+    }
+    
+    /**
+     * Reads a raw image into a new TYPE_INT_ARGB image.
+     * The pixels are copied from the mapped file with one bulk copy per image,
+     * or per row when the file's stride is wider than the image.
+     * 
+     * @param file The raw image file
+     * @return The image
+     * @throws IOException If the file cannot be read or is not a valid raw image
+     */
+    public static BufferedImage read(File file) throws IOException {
+        try (Reader reader = new Reader(file)) {
+            PixelBuffer dst = PixelBuffer.create(reader.getWidth(), reader.getHeight());
+            reader.readRows(dst.getData(), dst.rowOffset(0), dst.getStride(), 0, reader.getHeight());
+            return dst.toImage();
+        }
+    }
+    
+    /**
+     * Writes an image as a raw image.
+     * The pixels of a TYPE_INT_ARGB image are copied straight from its own
+     * memory into the mapped file.
+     * 
+     * @param img The image to write
+     * @param file The file to write, replaced if it exists
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(BufferedImage img, File file) throws IOException {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        try (Writer writer = new Writer(file, src.getWidth(), src.getHeight())) {
+            writer.writeRows(src.getData(), src.rowOffset(0), src.getStride(), src.getHeight());
+        }
+    }
+    
+    /**
+     * Copies rows between a mapped region of a file and a pixel array, in one
+     * bulk copy when both sides store their rows without gaps.
+     */
+    private static void copyRows(MappedByteBuffer mapped, int fileStride, int[] array, int arrayOffset,
+                                 int arrayStride, int width, int rows, boolean toArray) {
+        IntBuffer file = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (fileStride == width && arrayStride == width) {
+            if (toArray) {
+                file.get(array, arrayOffset, width * rows);
+            } else {
+                file.put(array, arrayOffset, width * rows);
+            }
+            return;
+        }
+        for (int y = 0; y < rows; y++) {
+            file.position(y * fileStride);
+            if (toArray) {
+                file.get(array, arrayOffset + y * arrayStride, width);
+            } else {
+                file.put(array, arrayOffset + y * arrayStride, width);
+            }
+        }
+    }
+    
+    /**
+     * Reads rows of a raw image in any order.
+     * Each call maps just the requested rows, so images larger than the 2 GB
+     * limit of a single mapping can be read in strips.
+     */
+    public static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final int width;
+        private final int height;
+        private final int stride;
+        private final int dataOffset;
+        
+        /**
+         * Opens a raw image and reads its header.
+         * 
+         * @param file The raw image file
+         * @throws IOException If the file cannot be read or is not a valid raw image
+         */
+        public Reader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                    // Keep reading until the header is complete or the file ends
+                }
+                if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a raw ARGB image: " + file);
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported raw ARGB version " + header.getInt(4) + ": " + file);
+                }
+                width = header.getInt(8);
+                height = header.getInt(12);
+                stride = header.getInt(16);
+                dataOffset = header.getInt(20);
+                if (width < 1 || height < 1 || stride < width || dataOffset < HEADER_SIZE
+                        || dataOffset + 4L * stride * height > channel.size()) {
+                    throw new IOException("Corrupt raw ARGB header: " + file);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        
+        /**
+         * Returns the width of the image.
+         * 
+         * @return The image width in pixels
+         */
+        public int getWidth() {
+            return width;
+        }
+        
+        /**
+         * Returns the height of the image.
+         * 
+         * @return The image height in pixels
+         */
+        public int getHeight() {
+            return height;
+        }
+        
+        /**
+         * Copies rows [firstRow, firstRow + rows) into a pixel array.
+         * 
+         * @param dst The array receiving the packed ARGB rows
+         * @param offset The index where the first row is stored
+         * @param dstStride The number of array elements between two rows
+         * @param firstRow The first row to read
+         * @param rows The number of rows to read
+         * @throws IOException If the rows cannot be mapped
+         */
+        public void readRows(int[] dst, int offset, int dstStride, int firstRow, int rows) throws IOException {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataOffset + 4L * stride * firstRow, 4L * stride * rows);
+            copyRows(mapped, stride, dst, offset, dstStride, width, rows, true);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Writes the rows of a raw image from top to bottom.
+     * The file is created at its full size up front and each call maps just
+     * the rows being written.
+     */
+    public static final class Writer implements RowWriter {
+        private final FileChannel channel;
+        private final int width;
+        private final int height;
+        private int rowsWritten;
+        
+        /**
+         * Creates a raw image file and writes its header.
+         * 
+         * @param file The file to write, replaced if it exists
+         * @param width The width of the image
+         * @param height The height of the image
+         * @throws IOException If the file cannot be created
+         */
+        public Writer(File file, int width, int height) throws IOException {
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("Image must not be empty: " + width + "x" + height);
+            }
+            this.width = width;
+            this.height = height;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, width);
+                header.putInt(12, height);
+                header.putInt(16, width);
+                header.putInt(20, HEADER_SIZE);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        
+        /**
+         * Writes the next rows of the image.
+         * 
+         * @param src The array holding the packed ARGB rows
+         * @param offset The index of the first pixel of the first row
+         * @param srcStride The number of array elements between two rows
+         * @param rows The number of rows to write
+         * @throws IOException If the rows cannot be mapped
+         * @throws IllegalStateException If more rows are written than the image has
+         */
+        @Override
+        public void writeRows(int[] src, int offset, int srcStride, int rows) throws IOException {
+            if (rowsWritten + rows > height) {
+                throw new IllegalStateException("Image has only " + height + " rows");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + 4L * width * rowsWritten, 4L * width * rows);
+            copyRows(mapped, width, src, offset, srcStride, width, rows, false);
+            rowsWritten += rows;
+        }
+        
+        /**
+         * Closes the file.
+         * 
+         * @throws IOException If the file cannot be closed
+         * @throws IllegalStateException If not every row has been written
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (rowsWritten != height) {
+                throw new IllegalStateException(rowsWritten + " of " + height + " rows have been written");
+            }
+        }
+    }
+}
@@ -0,0 +1,514 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Scales images to a new size: by area averaging where the image shrinks,
+ * and by bilinear interpolation where it grows.
+ * Area averaging gives every output pixel the average of the input area it
+ * covers, weighting input pixels that are only partly covered by the part
+ * that is, so shrinking by any factor keeps every input pixel's contribution
+ * and does not alias. Bilinear interpolation places the output pixel
+ * centers between the input pixel centers and blends the two nearest input
+ * pixels on each axis. The two axes are scaled independently, so an image
+ * may shrink in one and grow in the other. All four channels are resampled.
+ * 
+ * The scaling is separable: every input row needed is first scaled to the
+ * output width, and the scaled rows are then combined for each output row.
+ * The weights of both axes are 14-bit fixed point numbers adding up to
+ * exactly 1, so a uniform image stays exactly uniform. Red and blue, and
+ * alpha and green, are weighted together in the two halves of a long (see
+ * {@link Pixels#redBlue}). Bands run in parallel on the
+ * {@link ParallelEngine}, and each keeps its weight tables and scaled rows in
+ * its thread's {@link Scratch} space, so a band allocates nothing once the
+ * thread has run one.
+ * 
+ * Several output sizes are produced from one input by
+ * {@link #resize(BufferedImage, int...)}, which halves the input repeatedly
+ * and scales each size from the smallest level that is still at least
+ * twice as large, so each level is read once and no size is scaled down
+ * from the full image. A level pixel spreads its weight evenly over the 2x2
+ * pixels it averages, so sizes scaled from a level are slightly softer than
+ * the same sizes scaled directly.
+ */
+public class Resize extends Converter {
+    
+    /**
+     * The number of fraction bits of the weights.
+     */
+    private static final int WEIGHT_BITS = 14;
+    
+    /**
+     * The weight of a whole input pixel.
+     */
+    private static final int ONE = 1 << WEIGHT_BITS;
+    
+    /**
+     * The fraction bits kept from a horizontal pass, few enough that the
+     * vertical pass sums at most 255 << 21 in each half of a long.
+     */
+    private static final int ROW_BITS = 7;
+    
+    /**
+     * Rounds both halves of a long before dropping the horizontal fraction
+     * bits that are not kept.
+     */
+    private static final long ROW_ROUNDING = (1L << (WEIGHT_BITS - ROW_BITS - 1)) * 0x100000001L;
+    
+    /**
+     * The bits of each half of a scaled row value.
+     */
+    private static final long ROW_MASK = ((1L << (8 + ROW_BITS)) - 1) * 0x100000001L;
+    
+    /**
+     * Rounds both halves of a long before the vertical pass drops all
+     * fraction bits.
+     */
+    private static final long PIXEL_ROUNDING = (1L << (WEIGHT_BITS + ROW_BITS - 1)) * 0x100000001L;
+    
+    /**
+     * The channel value in each half of a long.
+     */
+    private static final long CHANNEL_MASK = 0xffL * 0x100000001L;
+    
+    /**
+     * The width of the output, or 0 to halve the input.
+     */
+    private final int width;
+    
+    /**
+     * The height of the output, or 0 to keep the input's aspect ratio.
+     */
+    private final int height;
+    
+    /**
+     * Creates a resize to half the input's width and height, rounded up.
+     */
+    public Resize() {
+        this.width = 0;
+        this.height = 0;
+    }
+    
+    /**
+     * Creates a resize to the given width, with the height that keeps the
+     * input's aspect ratio.
+     * 
+     * @param width The width of the output in pixels
+     * @throws IllegalArgumentException If the width is not positive
+     */
+    public Resize(int width) {
+        this.width = checkSize(width);
+        this.height = 0;
+    }
+    
+    /**
+     * Creates a resize to the given size.
+     * 
+     * @param width The width of the output in pixels
+     * @param height The height of the output in pixels
+     * @throws IllegalArgumentException If the width or height is not positive
+     */
+    public Resize(int width, int height) {
+        this.width = checkSize(width);
+        this.height = checkSize(height);
+    }
+    
+    /**
+     * The cache key includes the output size.
+     * 
+     * @return The class name with the size, 0 where it follows the input
+     */
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + "(width=" + width + ",height=" + height + ")";
+    }
+    
+    /**
+     * Returns the requested size, or half the input's size, rounded up.
+     * 
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The width and height of the output
+     */
+    @Override
+    public Dimension getOutputSize(int width, int height) {
+        if (this.width == 0) {
+            return new Dimension((width + 1) / 2, (height + 1) / 2);
+        }
+        return new Dimension(this.width, this.height != 0 ? this.height
+                : scaledHeight(width, height, this.width));
+    }
+    
+    /**
+     * Previews a resize to a given size with that size divided by the
+     * subsampling factor; halving needs no change.
+     * 
+     * @param subsampling The factor the input is reduced by
+     * @return A resize to the reduced size, at least 1 pixel
+     */
+    @Override
+    protected Converter getPreviewConverter(int subsampling) {
+        if (width == 0) {
+            return this;
+        }
+        int previewWidth = Math.max(1, scaleDown(width, subsampling));
+        return height == 0 ? new Resize(previewWidth)
+                : new Resize(previewWidth, Math.max(1, scaleDown(height, subsampling)));
+    }
+    
+    /**
+     * A changed input pixel affects the output pixels whose weights reach
+     * it: those whose area it lies in when shrinking, and those centered
+     * within one input pixel of it when enlarging.
+     * 
+     * @param dirty The changed input pixels
+     * @param width The width of the input
+     * @param height The height of the input
+     * @return The output pixels that read a changed pixel
+     */
+    @Override
+    public Rectangle getAffectedRegion(Rectangle dirty, int width, int height) {
+        Dimension size = getOutputSize(width, height);
+        int startX = affectedStart(dirty.x, width, size.width);
+        int startY = affectedStart(dirty.y, height, size.height);
+        return new Rectangle(startX, startY,
+                affectedEnd(dirty.x + dirty.width, width, size.width) - startX,
+                affectedEnd(dirty.y + dirty.height, height, size.height) - startY);
+    }
+    
+    /**
+     * Returns the first output pixel along an axis that can read input
+     * pixel {@code from} or a later one. An output pixel reads no input
+     * pixel more than one input pixel before its area, or its center when
+     * enlarging.
+     */
+    private static int affectedStart(int start, int from, int to) {
+        return (int) Math.max(0, ((long) start - 1) * to / from - 1);
+    }
+    
+    /**
+     * Returns the output pixel after the last one along an axis that can
+     * read an input pixel before {@code end}.
+     */
+    private static int affectedEnd(int end, int from, int to) {
+        return (int) Math.min(to, ((long) end + 1) * to / from + 2);
+    }
+    
+    /**
+     * Scales the input into the requested output rows.
+     * The input rows each output row needs are scaled to the output width and
+     * kept in a ring, so an input row shared by neighboring output rows, as
+     * when enlarging, is scaled only once per band.
+     * 
+     * @param src The pixels of the input image
+     * @param dst The output buffer, of the size from {@link #getOutputSize}
+     * @param startY The first output row to compute (inclusive)
+     * @param endY The last output row to compute (exclusive)
+     */
+    @Override
+    protected void processRows(PixelBuffer src, PixelBuffer dst, int startY, int endY) {
+        if (startY >= endY) {
+            return;
+        }
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int dstWidth = dst.getWidth();
+        int rows = endY - startY;
+        int xTaps = taps(srcWidth, dstWidth);
+        int yTaps = taps(srcHeight, dst.getHeight());
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        
+        Scratch scratch = Scratch.acquire();
+        try {
+            int[] xFirst = scratch.ints(0, dstWidth);
+            int[] xWeights = scratch.ints(1, dstWidth * xTaps);
+            int[] yFirst = scratch.ints(2, rows);
+            int[] yWeights = scratch.ints(3, rows * yTaps);
+            int[] ringRow = scratch.ints(4, yTaps);
+            int[] tapOffsets = scratch.ints(5, yTaps);
+            long[] ring = scratch.longs(0, 2 * yTaps * dstWidth);
+            weights(srcWidth, dstWidth, xTaps, 0, dstWidth, xFirst, xWeights);
+            weights(srcHeight, dst.getHeight(), yTaps, startY, endY, yFirst, yWeights);
+            Arrays.fill(ringRow, 0, yTaps, -1);
+            
+            for (int y = startY; y < endY; y++) {
+                // Scale the input rows of this output row that are not in the ring yet
+                int first = yFirst[y - startY];
+                int base = (y - startY) * yTaps;
+                for (int t = 0; t < yTaps; t++) {
+                    int row = first + t;
+                    int slot = row % yTaps;
+                    tapOffsets[t] = 2 * slot * dstWidth;
+                    if (yWeights[base + t] != 0 && ringRow[slot] != row) {
+                        scaleRow(in, src.rowOffset(row), dstWidth, xTaps, xFirst, xWeights, ring, tapOffsets[t]);
+                        ringRow[slot] = row;
+                    }
+                }
+                
+                // Combine them into the output row
+                int dstRow = dst.rowOffset(y);
+                for (int x = 0; x < dstWidth; x++) {
+                    long redBlue = PIXEL_ROUNDING;
+                    long alphaGreen = PIXEL_ROUNDING;
+                    for (int t = 0; t < yTaps; t++) {
+                        long weight = yWeights[base + t];
+                        redBlue += weight * ring[tapOffsets[t] + x];
+                        alphaGreen += weight * ring[tapOffsets[t] + dstWidth + x];
+                    }
+                    out[dstRow + x] = Pixels.packHalves(alphaGreen >>> (WEIGHT_BITS + ROW_BITS) & CHANNEL_MASK,
+                            redBlue >>> (WEIGHT_BITS + ROW_BITS) & CHANNEL_MASK);
+                }
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+    
+    /**
+     * Scales one input row to the output width, into {@code width} longs of
+     * red and blue followed by {@code width} longs of alpha and green, with
+     * {@link #ROW_BITS} fraction bits.
+     */
+    private static void scaleRow(int[] in, int srcRow, int width, int taps, int[] first, int[] weights,
+                                 long[] ring, int offset) {
+        for (int x = 0; x < width; x++) {
+            int source = srcRow + first[x];
+            int base = x * taps;
+            long redBlue = ROW_ROUNDING;
+            long alphaGreen = ROW_ROUNDING;
+            for (int t = 0; t < taps; t++) {
+                long weight = weights[base + t];
+                int pixel = in[source + t];
+                redBlue += weight * Pixels.redBlue(pixel);
+                alphaGreen += weight * Pixels.alphaGreen(pixel);
+            }
+            ring[offset + x] = redBlue >>> (WEIGHT_BITS - ROW_BITS) & ROW_MASK;
+            ring[offset + width + x] = alphaGreen >>> (WEIGHT_BITS - ROW_BITS) & ROW_MASK;
+        }
+    }
+    
+    /**
+     * Returns the number of input pixels along an axis any output pixel
+     * reads: those an output pixel's area can overlap when shrinking, two
+     * when enlarging, and one when the size stays.
+     * 
+     * @param from The input size along the axis
+     * @param to The output size along the axis
+     * @return The number of weights per output pixel
+     */
+    private static int taps(int from, int to) {
+        if (from == to) {
+            return 1;
+        }
+        // An area of from / to pixels that does not start on a pixel boundary
+        // reaches into one more pixel than its whole length covers
+        int taps = from < to ? 2 : (from % to == 0 ? from / to : from / to + 2);
+        return Math.min(taps, from);
+    }
+    
+    /**
+     * Computes the weights of the output pixels [start, end) along an axis.
+     * Output pixel o reads the input pixels {@code first[o - start]} to
+     * {@code first[o - start] + taps - 1}, weighted by
+     * {@code weights[(o - start) * taps + t]}, which add up to {@link #ONE}.
+     * The first pixel is moved back where needed so that all taps lie inside
+     * the input; the taps it gains have weight 0.
+     * 
+     * Shrinking, output pixel o covers the input interval [o * from / to,
+     * (o + 1) * from / to), and each input pixel is weighted by the length it
+     * shares with that interval. Enlarging, the center of output pixel o lies
+     * at input position (o + 0.5) * from / to - 0.5, clamped to the input,
+     * and the two input pixels around it are weighted by their closeness.
+     */
+    private static void weights(int from, int to, int taps, int start, int end, int[] first, int[] weights) {
+        Arrays.fill(weights, 0, (end - start) * taps, 0);
+        for (int o = start; o < end; o++) {
+            int base = (o - start) * taps;
+            int lowest;
+            if (from == to) {
+                lowest = o;
+                weights[base] = ONE;
+            } else if (from > to) {
+                // Lengths in units of 1 / to input pixels
+                long areaStart = (long) o * from;
+                long areaEnd = areaStart + from;
+                lowest = (int) (areaStart / to);
+                int highest = (int) ((areaEnd - 1) / to);
+                int offset = Math.max(0, lowest + taps - from);
+                int total = 0;
+                int largest = base + offset;
+                for (int i = lowest; i <= highest; i++) {
+                    long overlap = Math.min(areaEnd, (long) (i + 1) * to) - Math.max(areaStart, (long) i * to);
+                    int weight = (int) ((overlap * ONE + from / 2) / from);
+                    int index = base + offset + i - lowest;
+                    weights[index] = weight;
+                    total += weight;
+                    if (weight > weights[largest]) {
+                        largest = index;
+                    }
+                }
+                // Rounding errors go to the largest weight, so the sum is exact
+                weights[largest] += ONE - total;
+                lowest -= offset;
+            } else {
+                // Positions in units of 1 / (2 * to) input pixels
+                long position = (2L * o + 1) * from - to;
+                int pixel = position <= 0 ? 0 : (int) (position / (2L * to));
+                long fraction = position <= 0 ? 0 : position % (2L * to);
+                if (pixel >= from - 1) {
+                    pixel = from - 1;
+                    fraction = 0;
+                }
+                int next = (int) ((fraction * ONE + to) / (2L * to));
+                int offset = Math.max(0, pixel + taps - from);
+                weights[base + offset] = ONE - next;
+                if (next != 0) {
+                    weights[base + offset + 1] = next;
+                }
+                lowest = pixel - offset;
+            }
+            first[o - start] = lowest;
+        }
+    }
+    
+    /**
+     * Resizes an image to several widths, each with the height that keeps the
+     * image's aspect ratio.
+     * The widths are produced from the largest down. Before each one, the
+     * current level is halved, averaging blocks of 2x2 pixels, for as long as
+     * the half is still at least as large as the width; the width is then
+     * scaled from that level. Each level serves all smaller widths after it,
+     * so the full image is read by the first halving or scaling only.
+     * 
+     * @param img The image to resize
+     * @param widths The widths of the results, each at least 1
+     * @return One image per width, in the same order
+     * @throws IllegalArgumentException If no width is given or one is not positive
+     */
+    public BufferedImage[] resize(BufferedImage img, int... widths) {
+        if (widths.length == 0) {
+            throw new IllegalArgumentException("No widths given");
+        }
+        for (int width : widths) {
+            checkSize(width);
+        }
+        Integer[] order = new Integer[widths.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(widths[b], widths[a]));
+        
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer level = src;
+        BufferedImage[] results = new BufferedImage[widths.length];
+        for (int i : order) {
+            int width = widths[i];
+            int height = scaledHeight(src.getWidth(), src.getHeight(), width);
+            while (level.getWidth() >= 2 * width && level.getHeight() >= 2 * height) {
+                level = halve(level);
+            }
+            Resize step = new Resize(width, height);
+            step.setEngine(getEngine());
+            results[i] = step.processPixels(level).toImage();
+        }
+        return results;
+    }
+    
+    /**
+     * Converts an input image file to one resized output file per width,
+     * decoding the input only once.
+     * 
+     * @param inputFileName The path to the input image file
+     * @param widths The widths of the outputs
+     * @param outputFileNames The output path for each width, PNG or raw as
+     *                        for {@link #convert(String, String)}
+     * @throws IOException If the input cannot be decoded or an output written
+     * @throws IllegalArgumentException If the arrays differ in length
+     */
+    public void convert(String inputFileName, int[] widths, String[] outputFileNames) throws IOException {
+        if (widths.length != outputFileNames.length) {
+            throw new IllegalArgumentException(widths.length + " widths for "
+                    + outputFileNames.length + " output files");
+        }
+        BufferedImage img = ImageDecoder.getDefault().read(new File(inputFileName));
+        if (img == null) {
+            throw new IOException("Unsupported image format: " + inputFileName);
+        }
+        BufferedImage[] results = resize(img, widths);
+        for (int i = 0; i < results.length; i++) {
+            save(results[i], outputFileNames[i]);
+        }
+    }
+    
+    /**
+     * Halves an image, rounding the size up, by averaging every block of 2x2
+     * pixels with rounding. At an odd right or bottom edge the last column or
+     * row is averaged with itself.
+     * 
+     * @param src The image to halve
+     * @return The new level
+     */
+    private PixelBuffer halve(PixelBuffer src) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        PixelBuffer dst = PixelBuffer.create((srcWidth + 1) / 2, (srcHeight + 1) / 2);
+        int[] in = src.getData();
+        int[] out = dst.getData();
+        getEngine().invokeBands(dst.getHeight(), (startY, endY) -> {
+            for (int y = startY; y < endY; y++) {
+                halveRow(in, src.rowOffset(2 * y), src.rowOffset(Math.min(2 * y + 1, srcHeight - 1)),
+                        srcWidth, out, dst.rowOffset(y));
+            }
+        });
+        return dst;
+    }
+    
+    /**
+     * Averages the blocks of 2x2 pixels of two rows, with rounding, into one
+     * row of half the width, rounded up; at an odd right edge the last column
+     * is averaged with itself. Also builds the levels of a {@link TilePyramid}.
+     * 
+     * @param pixels The array holding both rows
+     * @param top The index of the first pixel of the upper row
+     * @param bottom The index of the first pixel of the lower row, which may
+     *               be the upper row itself
+     * @param width The width of the rows
+     * @param out The array receiving the halved row
+     * @param outOffset The index of the first pixel of the halved row
+     */
+    static void halveRow(int[] pixels, int top, int bottom, int width, int[] out, int outOffset) {
+        for (int x = 0, halfWidth = (width + 1) / 2; x < halfWidth; x++) {
+            int left = 2 * x;
+            int right = Math.min(left + 1, width - 1);
+            long redBlue = 2 * 0x100000001L + Pixels.redBlue(pixels[top + left])
+                    + Pixels.redBlue(pixels[top + right])
+                    + Pixels.redBlue(pixels[bottom + left]) + Pixels.redBlue(pixels[bottom + right]);
+            long alphaGreen = 2 * 0x100000001L + Pixels.alphaGreen(pixels[top + left])
+                    + Pixels.alphaGreen(pixels[top + right])
+                    + Pixels.alphaGreen(pixels[bottom + left]) + Pixels.alphaGreen(pixels[bottom + right]);
+            out[outOffset + x] = Pixels.packHalves(alphaGreen >>> 2 & CHANNEL_MASK, redBlue >>> 2 & CHANNEL_MASK);
+        }
+    }
+    
+    /**
+     * Returns the height that keeps an image's aspect ratio at a new width,
+     * rounded to the nearest pixel and at least 1.
+     */
+    private static int scaledHeight(int srcWidth, int srcHeight, int width) {
+        return (int) Math.max(1, ((long) srcHeight * width * 2 + srcWidth) / (2L * srcWidth));
+    }
+    
+    /**
+     * Checks that an output size is positive.
+     */
+    private static int checkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be positive: " + size);
+        }
+        return size;
+    }
+}
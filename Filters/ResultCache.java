@@ -0,0 +1,433 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the encoded results of conversions, so that converting the same input
+ * with the same converter again costs a hash and a lookup instead of a decode,
+ * a conversion and an encode.
+ * 
+ * Entries are content-addressed: the key is a SHA-256 hash of the input file's
+ * bytes, the converter's {@link Converter#getCacheKey() cache key} (its class
+ * and parameters) and the output format. Renaming or copying an input does not
+ * miss the cache, and changing a single byte of it does.
+ * 
+ * There are two tiers, each bounded by a total size in bytes and evicting the
+ * least recently used entries first:
+ * 
+ *   memory  Encoded results held on the heap. A hit writes the bytes straight
+ *           to the output file.
+ *   disk    One file per entry in a cache directory, which survives restarts.
+ *           A hit is copied to the output file and promoted to the memory tier.
+ * 
+ * Hit, miss and eviction counts are kept for sizing the tiers. The cache is
+ * safe to share between threads.
+ */
+public class ResultCache {
+    
+    /**
+     * Default size limit of the memory tier, 64 MB.
+     */
+    public static final long DEFAULT_MEMORY_LIMIT = 64L << 20;
+    
+    /**
+     * Default size limit of the disk tier, 1 GB.
+     */
+    public static final long DEFAULT_DISK_LIMIT = 1L << 30;
+    
+    /**
+     * The memory tier, in least to most recently used order.
+     */
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /**
+     * The sizes of the entries of the disk tier, in least to most recently
+     * used order.
+     */
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /**
+     * The directory holding the disk tier, or null without a disk tier.
+     */
+    private final File directory;
+    
+    /**
+     * The size limits of the tiers in bytes.
+     */
+    private final long memoryLimit;
+    private final long diskLimit;
+    
+    /**
+     * The current total sizes of the tiers in bytes.
+     */
+    private long memorySize;
+    private long diskSize;
+    
+    /**
+     * Counters for sizing the cache.
+     */
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    
+    /**
+     * Creates a cache.
+     * Entries already in the directory from an earlier run become the disk
+     * tier, ordered by when they were last used.
+     * 
+     * @param memoryLimit The largest total size of the memory tier in bytes, or
+     *                    0 for no memory tier
+     * @param directory The directory of the disk tier, created if needed, or
+     *                  null for no disk tier
+     * @param diskLimit The largest total size of the disk tier in bytes
+     * @throws IOException If the directory cannot be created or listed
+     */
+    public ResultCache(long memoryLimit, File directory, long diskLimit) throws IOException {
+        if (memoryLimit < 0 || diskLimit < 0) {
+            throw new IllegalArgumentException("Cache limits must not be negative");
+        }
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+        this.diskLimit = directory != null ? diskLimit : 0;
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create cache directory " + directory);
+            }
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(".cache"));
+            if (files == null) {
+                throw new IOException("Cannot list cache directory " + directory);
+            }
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                String name = file.getName();
+                disk.put(name.substring(0, name.length() - ".cache".length()), file.length());
+                diskSize += file.length();
+            }
+            synchronized (this) {
+                evict();
+            }
+        }
+    }
+    
+    /**
+     * Computes the cache key of a conversion.
+     * 
+     * @param input The input image file
+     * @param converterKey The converter's cache key
+     * @param format The output format, such as "png" or "argb"
+     * @return The key as a hexadecimal SHA-256 hash
+     * @throws IOException If the input cannot be read
+     */
+    public static String key(File input, String converterKey, String format) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(input.toPath()), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) >= 0) {
+                // The digest sees every byte read
+            }
+        }
+        return finish(digest, converterKey, format);
+    }
+    
+    /**
+     * Computes the cache key of a conversion of an image held in memory.
+     * 
+     * @param input The encoded input image
+     * @param converterKey The converter's cache key
+     * @param format The output format, such as "png" or "argb"
+     * @return The key as a hexadecimal SHA-256 hash
+     */
+    public static String key(byte[] input, String converterKey, String format) {
+        MessageDigest digest = sha256();
+        digest.update(input);
+        return finish(digest, converterKey, format);
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String finish(MessageDigest digest, String converterKey, String format) {
+        // A separator that cannot occur in class names keeps the parts apart
+        digest.update(("\u0000" + converterKey + "\u0000" + format).getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Converts an image file, or copies the cached result of an identical
+     * earlier conversion to the output file.
+     * On a hit the input is only hashed, never decoded. Converters without a
+     * cache key, such as the random Glitch, always run, and so does every
+     * conversion to a {@link TilePyramid}, which is a directory of files.
+     * 
+     * @param converter The converter to apply
+     * @param inputFileName The path to the input image file
+     * @param outputFileName The path where the processed image will be saved
+     * @return True if the result came from the cache
+     * @throws IOException If an error occurs during file I/O operations
+     */
+    public boolean convert(Converter converter, String inputFileName, String outputFileName) throws IOException {
+        return convert(converter, inputFileName, outputFileName,
+                new ConversionMetrics(converter.getClass().getSimpleName()));
+    }
+    
+    /**
+     * Converts an image file or copies a cached result as
+     * {@link #convert(Converter, String, String)} does, and adds the time and
+     * allocations to the given metrics: a conversion records its decode,
+     * process and encode stages, and hashing the input, looking up the result
+     * and storing or copying it are recorded as the
+     * {@link ConversionMetrics.Stage#CACHE cache} stage.
+     * 
+     * @param converter The converter to apply
+     * @param inputFileName The path to the input image file
+     * @param outputFileName The path where the processed image will be saved
+     * @param metrics The metrics receiving the stages
+     * @return True if the result came from the cache
+     * @throws IOException If an error occurs during file I/O operations
+     */
+    @SuppressWarnings("try")
+    public boolean convert(Converter converter, String inputFileName, String outputFileName,
+                           ConversionMetrics metrics) throws IOException {
+        String converterKey = converter.getCacheKey();
+        if (converterKey == null || TilePyramid.isPyramidName(outputFileName)) {
+            converter.convert(inputFileName, outputFileName, metrics);
+            return false;
+        }
+        String format = RawImage.isRawName(outputFileName) ? "argb" : "png";
+        File outputFile = new File(outputFileName);
+        String key;
+        try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.CACHE)) {
+            key = key(new File(inputFileName), converterKey, format);
+            if (get(key, outputFile)) {
+                return true;
+            }
+        }
+        converter.convert(inputFileName, outputFileName, metrics);
+        try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.CACHE)) {
+            put(key, Files.readAllBytes(outputFile.toPath()));
+        }
+        return false;
+    }
+    
+    /**
+     * Looks up a result, first in memory and then on disk. A disk hit is
+     * promoted to the memory tier.
+     * 
+     * @param key The key of the conversion
+     * @return The encoded result, or null on a miss
+     * @throws IOException If a disk entry cannot be read
+     */
+    public byte[] get(String key) throws IOException {
+        synchronized (this) {
+            byte[] result = memory.get(key);
+            if (result != null) {
+                memoryHits.incrementAndGet();
+                return result;
+            }
+            if (!disk.containsKey(key)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            disk.get(key); // marks the entry as recently used
+        }
+        
+        byte[] result;
+        try {
+            result = Files.readAllBytes(entryFile(key).toPath());
+        } catch (java.nio.file.NoSuchFileException e) {
+            // Evicted by another thread in the meantime
+            misses.incrementAndGet();
+            return null;
+        }
+        entryFile(key).setLastModified(System.currentTimeMillis());
+        diskHits.incrementAndGet();
+        putInMemory(key, result);
+        return result;
+    }
+    
+    /**
+     * Looks up a result and writes it to a file.
+     * 
+     * @param key The key of the conversion
+     * @param outputFile The file receiving the result on a hit
+     * @return True on a hit
+     * @throws IOException If the result cannot be read or written
+     */
+    private boolean get(String key, File outputFile) throws IOException {
+        byte[] result = get(key);
+        if (result == null) {
+            return false;
+        }
+        Files.write(outputFile.toPath(), result);
+        return true;
+    }
+    
+    /**
+     * Stores a result in both tiers, evicting least recently used entries to
+     * stay within the limits. A result larger than a tier's limit is not
+     * stored in that tier.
+     * 
+     * @param key The key of the conversion
+     * @param result The encoded result
+     * @throws IOException If the disk entry cannot be written
+     */
+    public void put(String key, byte[] result) throws IOException {
+        putInMemory(key, result);
+        if (directory == null || result.length > diskLimit) {
+            return;
+        }
+        
+        // Write to a temporary file first so readers never see a partial entry
+        File temp = File.createTempFile("entry", ".tmp", directory);
+        try {
+            Files.write(temp.toPath(), result);
+            Files.move(temp.toPath(), entryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        synchronized (this) {
+            Long previous = disk.put(key, (long) result.length);
+            diskSize += result.length - (previous != null ? previous : 0);
+            evict();
+        }
+    }
+    
+    private void putInMemory(String key, byte[] result) {
+        if (result.length > memoryLimit) {
+            return;
+        }
+        synchronized (this) {
+            byte[] previous = memory.put(key, result);
+            memorySize += result.length - (previous != null ? previous.length : 0);
+            evict();
+        }
+    }
+    
+    /**
+     * Removes least recently used entries until both tiers are within their
+     * limits. Must be called while holding the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, byte[]>> memoryEntries = memory.entrySet().iterator();
+        while (memorySize > memoryLimit && memoryEntries.hasNext()) {
+            memorySize -= memoryEntries.next().getValue().length;
+            memoryEntries.remove();
+            memoryEvictions.incrementAndGet();
+        }
+        List<String> removed = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> diskEntries = disk.entrySet().iterator();
+        while (diskSize > diskLimit && diskEntries.hasNext()) {
+            Map.Entry<String, Long> entry = diskEntries.next();
+            diskSize -= entry.getValue();
+            removed.add(entry.getKey());
+            diskEntries.remove();
+            diskEvictions.incrementAndGet();
+        }
+        for (String key : removed) {
+            entryFile(key).delete();
+        }
+    }
+    
+    private File entryFile(String key) {
+        return new File(directory, key + ".cache");
+    }
+    
+    /**
+     * Returns the number of lookups answered from the memory tier.
+     * 
+     * @return The memory hit count
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+    
+    /**
+     * Returns the number of lookups answered from the disk tier.
+     * 
+     * @return The disk hit count
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+    
+    /**
+     * Returns the number of lookups found in neither tier.
+     * 
+     * @return The miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Returns the number of entries evicted from the memory tier.
+     * 
+     * @return The memory eviction count
+     */
+    public long getMemoryEvictions() {
+        return memoryEvictions.get();
+    }
+    
+    /**
+     * Returns the number of entries evicted from the disk tier.
+     * 
+     * @return The disk eviction count
+     */
+    public long getDiskEvictions() {
+        return diskEvictions.get();
+    }
+    
+    /**
+     * Summarizes the counters and the current size of both tiers.
+     * 
+     * @return A one-line summary
+     */
+    @Override
+    public synchronized String toString() {
+        return "memory " + memory.size() + " entries / " + memorySize + " bytes, "
+                + "disk " + disk.size() + " entries / " + diskSize + " bytes, "
+                + "hits " + memoryHits + " memory + " + diskHits + " disk, "
+                + "misses " + misses + ", "
+                + "evictions " + memoryEvictions + " memory + " + diskEvictions + " disk";
+    }
+    
+    /**
+     * Formats the counters and tier sizes as a JSON object.
+     * 
+     * @return The statistics as JSON
+     */
+    public synchronized String toJson() {
+        return "{\"memoryEntries\":" + memory.size() + ",\"memoryBytes\":" + memorySize
+                + ",\"diskEntries\":" + disk.size() + ",\"diskBytes\":" + diskSize
+                + ",\"memoryHits\":" + memoryHits + ",\"diskHits\":" + diskHits
+                + ",\"misses\":" + misses
+                + ",\"memoryEvictions\":" + memoryEvictions + ",\"diskEvictions\":" + diskEvictions + "}";
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Rotates images by 180 degrees, turning them upside down.
+ * The output has the input's dimensions, so inside a {@link Pipeline} the
+ * rotation is applied in place to the previous stage's result, by swapping
+ * each pixel with its opposite.
+ */
+public class Rotate180 extends GeometricTransform {
+    
+    /**
+     * Creates a rotation by 180 degrees.
+     */
+    public Rotate180() {
+        super(Orientation.ROTATE_180);
+    }
+}
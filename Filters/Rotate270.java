@@ -0,0 +1,14 @@
+/**
+ * Rotates images 90 degrees counterclockwise.
+ * The output image dimensions are swapped, and output row y is input column
+ * width - 1 - y read from top to bottom.
+ */
+public class Rotate270 extends GeometricTransform {
+    
+    /**
+     * Creates a counterclockwise rotation by 90 degrees.
+     */
+    public Rotate270() {
+        super(Orientation.ROTATE_270);
+    }
+}
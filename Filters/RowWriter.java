@@ -0,0 +1,22 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes an image file one group of rows at a time, from the top of the image
+ * to the bottom, so that the whole image never has to be held in memory.
+ * Implemented by {@link PngWriter} and {@link RawImage.Writer}.
+ */
+public interface RowWriter extends Closeable {
+    
+    /**
+     * Writes the next rows of the image.
+     * 
+     * @param pixels The array holding the packed ARGB rows
+     * @param offset The index of the first pixel of the first row
+     * @param stride The number of array elements between two rows
+     * @param rows The number of rows to write
+     * @throws IOException If the rows cannot be written
+     * @throws IllegalStateException If more rows are written than the image has
+     */
+    void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException;
+}
@@ -0,0 +1,144 @@
+/**
+ * Work arrays for the inner loops of the filters, reused from band to band on
+ * each thread.
+ * Filters such as Blur need row buffers whose size depends on the image.
+ * Allocating them for every band would cost an allocation, and the zeroing
+ * of the memory, for each band of every image. Instead a band acquires the
+ * scratch space of its thread, takes its arrays from numbered slots and
+ * releases it when done, and the next band on the same thread gets the same
+ * arrays back. Once every thread has run one band, the filters allocate
+ * nothing more:
+ * 
+ *   Scratch scratch = Scratch.acquire();
+ *   try {
+ *       int[] luma = scratch.ints(0, width);
+ *       ...
+ *   } finally {
+ *       scratch.release();
+ *   }
+ * 
+ * Arrays are grown but never shrunk, and their contents are whatever the
+ * previous user left in them. Space beyond {@link #MAX_RETAINED_BYTES} is
+ * dropped on release, so one huge image does not pin its buffers for the
+ * life of the thread. A thread that acquires scratch space while it still
+ * holds its own, as a fork/join worker does when it runs another band while
+ * waiting, gets a fresh set.
+ */
+public final class Scratch {
+    
+    /**
+     * The number of int and of long slots.
+     */
+    public static final int SLOTS = 8;
+    
+    /**
+     * The most bytes of arrays kept for a thread between uses.
+     */
+    public static final long MAX_RETAINED_BYTES = 32L << 20;
+    
+    /**
+     * The scratch space of each thread while nobody uses it, or null while
+     * it is acquired.
+     */
+    private static final ThreadLocal<Scratch> IDLE = new ThreadLocal<>();
+    
+    /**
+     * The arrays of the slots, null until first used.
+     */
+    private final int[][] ints = new int[SLOTS][];
+    private final long[][] longs = new long[SLOTS][];
+    
+    /**
+     * The thread holding this scratch space.
+     */
+    private final Thread owner = Thread.currentThread();
+    
+    private Scratch() {
+    }
+    
+    /**
+     * Takes the scratch space of the calling thread, or a new one if it is
+     * already taken.
+     * 
+     * @return The scratch space, to be released on the same thread
+     */
+    public static Scratch acquire() {
+        Scratch scratch = IDLE.get();
+        if (scratch == null) {
+            return new Scratch();
+        }
+        IDLE.set(null);
+        return scratch;
+    }
+    
+    /**
+     * Returns an int array of at least the given length from a slot.
+     * 
+     * @param slot The slot, 0 to {@link #SLOTS} - 1
+     * @param length The number of ints needed
+     * @return The array of the slot, with unspecified contents
+     */
+    public int[] ints(int slot, int length) {
+        int[] array = ints[slot];
+        if (array == null || array.length < length) {
+            array = new int[length];
+            ints[slot] = array;
+        }
+        return array;
+    }
+    
+    /**
+     * Returns a long array of at least the given length from a slot.
+     * 
+     * @param slot The slot, 0 to {@link #SLOTS} - 1
+     * @param length The number of longs needed
+     * @return The array of the slot, with unspecified contents
+     */
+    public long[] longs(int slot, int length) {
+        long[] array = longs[slot];
+        if (array == null || array.length < length) {
+            array = new long[length];
+            longs[slot] = array;
+        }
+        return array;
+    }
+    
+    /**
+     * Gives the scratch space back to its thread for the next band. The
+     * arrays taken from it must not be used afterwards. Slots are emptied
+     * from the last one until at most {@link #MAX_RETAINED_BYTES} remain.
+     * If the thread already got another scratch space back in the meantime,
+     * the larger one is kept.
+     */
+    public void release() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("Scratch space released by another thread");
+        }
+        long retained = trim();
+        Scratch idle = IDLE.get();
+        if (idle == null || idle.trim() < retained) {
+            IDLE.set(this);
+        }
+    }
+    
+    /**
+     * Drops slots from the last one until the rest fit in
+     * {@link #MAX_RETAINED_BYTES}.
+     * 
+     * @return The bytes retained
+     */
+    private long trim() {
+        long bytes = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            bytes += (ints[slot] != null ? 4L * ints[slot].length : 0)
+                    + (longs[slot] != null ? 8L * longs[slot].length : 0);
+        }
+        for (int slot = SLOTS - 1; slot >= 0 && bytes > MAX_RETAINED_BYTES; slot--) {
+            bytes -= (ints[slot] != null ? 4L * ints[slot].length : 0)
+                    + (longs[slot] != null ? 8L * longs[slot].length : 0);
+            ints[slot] = null;
+            longs[slot] = null;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,266 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Converts images that are too large to hold in memory, one horizontal strip
+ * at a time.
+ * {@link Converter#convert} decodes the whole input and allocates a whole
+ * output image, so a 20000x20000 scan needs several gigabytes of heap. This
+ * class instead reads the input one strip of rows at a time,
+ * runs the converter on that strip and appends the result to the output PNG
+ * through a {@link PngWriter}. Peak memory is proportional to the strip
+ * height, not to the image height.
+ * 
+ * Each strip is read together with the converter's halo rows above and below
+ * it, since neighborhood filters such as Blur and EdgeDetection read them.
+ * Input rows shared by consecutive strips are kept rather than decoded again.
+ * Point filters and row-local filters such as Glitch and FlipHorizontal need
+ * no halo. Geometric converters such as Rotate can read from anywhere in the
+ * image and cannot be processed in strips.
+ * 
+ * PNG files in the common layouts are decoded in a single sequential pass by
+ * a {@link PngReader}. Other decoders that can only read sequentially start
+ * again from the top of the file for every strip; for those, taller strips
+ * trade memory for fewer restarts.
+ */
+public class StripProcessor {
+    
+    /**
+     * Default number of output rows per strip.
+     */
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    
+    /**
+     * The converter applied to every strip.
+     */
+    private final Converter converter;
+    
+    /**
+     * The number of output rows produced per strip.
+     */
+    private final int stripHeight;
+    
+    /**
+     * Creates a strip processor.
+     * 
+     * @param converter The converter to apply, which must not be geometric
+     * @param stripHeight The number of output rows per strip
+     * @throws IllegalArgumentException If the strip height is less than 1
+     * @throws UnsupportedOperationException If the converter is geometric
+     */
+    public StripProcessor(Converter converter, int stripHeight) {
+        if (stripHeight < 1) {
+            throw new IllegalArgumentException("stripHeight must be at least 1: " + stripHeight);
+        }
+        if (converter.getOperationKind() == OperationKind.GEOMETRIC) {
+            throw new UnsupportedOperationException(converter.getClass().getName()
+                    + " needs the whole image and cannot be processed in strips");
+        }
+        this.converter = converter;
+        this.stripHeight = stripHeight;
+    }
+    
+    /**
+     * Returns the number of output rows produced per strip.
+     * 
+     * @return The strip height
+     */
+    public int getStripHeight() {
+        return stripHeight;
+    }
+    
+    /**
+     * Converts an input image file to a PNG file strip by strip, to a
+     * {@link RawImage} when the output name ends in ".argb", or to a
+     * {@link TilePyramid} when it ends in ".dzi". A pyramid takes the tiles of
+     * strips whose height is a multiple of its tile size straight from the
+     * strip; other strips are collected into rows of tiles first.
+     * Raw images are read through a mapping of each strip's rows, and common
+     * PNG layouts are decoded sequentially with a {@link PngReader}; every
+     * other input is read with ImageReader source regions.
+     * 
+     * @param inputFileName The path to the input image file
+     * @param outputFileName The path where the processed PNG will be saved
+     * @throws IOException If the input cannot be decoded or the output written
+     */
+    public void convert(String inputFileName, String outputFileName) throws IOException {
+        convert(inputFileName, outputFileName, new ConversionMetrics(converter.getClass().getSimpleName()));
+    }
+    
+    /**
+     * Converts an input image file strip by strip as
+     * {@link #convert(String, String)} does, and adds the time and
+     * allocations of reading, converting and writing every strip to the given
+     * metrics.
+     * 
+     * @param inputFileName The path to the input image file
+     * @param outputFileName The path where the processed PNG will be saved
+     * @param metrics The metrics receiving the stages and the image size
+     * @throws IOException If the input cannot be decoded or the output written
+     */
+    public void convert(String inputFileName, String outputFileName, ConversionMetrics metrics)
+            throws IOException {
+        File inputFile = new File(inputFileName);
+        if (RawImage.isRaw(inputFile)) {
+            try (RawImage.Reader raw = new RawImage.Reader(inputFile)) {
+                int width = raw.getWidth();
+                process(width, raw.getHeight(),
+                        (data, offset, firstRow, rows) -> raw.readRows(data, offset, width, firstRow, rows),
+                        outputFileName, metrics);
+                return;
+            }
+        }
+        try (PngReader png = PngReader.open(inputFile)) {
+            if (png != null) {
+                int width = png.getWidth();
+                process(width, png.getHeight(),
+                        (data, offset, firstRow, rows) -> png.readRows(data, offset, width, rows),
+                        outputFileName, metrics);
+                return;
+            }
+        }
+        
+        try (ImageInputStream input = ImageIO.createImageInputStream(inputFile)) {
+            if (input == null) {
+                throw new IOException("Cannot open " + inputFileName);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + inputFileName);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                int width = reader.getWidth(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                process(width, reader.getHeight(0), (data, offset, firstRow, rows) -> {
+                    // Decode just these rows, converted to packed ARGB in one call
+                    param.setSourceRegion(new Rectangle(0, firstRow, width, rows));
+                    BufferedImage region = reader.read(0, param);
+                    region.getRGB(0, 0, width, rows, data, offset, width);
+                }, outputFileName, metrics);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    /**
+     * Reads, converts and writes every strip of an image.
+     * 
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param source The source of the input rows
+     * @param outputFileName The path where the processed PNG will be saved
+     * @param metrics The metrics receiving the stages of every strip
+     * @throws IOException If a strip cannot be read or written
+     */
+    @SuppressWarnings("try")
+    private void process(int width, int height, RowSource source, String outputFileName,
+                         ConversionMetrics metrics) throws IOException {
+        int halo = converter.getHaloRows();
+        metrics.recordImage(width, height);
+        
+        // Every strip is computed by the same converter for this image
+        Converter image = converter.getImageConverter();
+        if (image != converter) {
+            image.setEngine(converter.getEngine());
+        }
+        
+        // Input rows [inFrom, inTo) are held in a window with room for a strip plus halos
+        int inCapacity = Math.min(height, stripHeight + 2 * halo);
+        int[] inData = new int[inCapacity * width];
+        int inFrom = 0;
+        int inTo = 0;
+        int[] outData = new int[Math.min(height, stripHeight) * width];
+        
+        RowWriter writer = openOutput(outputFileName, width, height);
+        try {
+            for (int startY = 0; startY < height; startY += stripHeight) {
+                int endY = Math.min(startY + stripHeight, height);
+                int needFrom = Math.max(0, startY - halo);
+                int needTo = Math.min(height, endY + halo);
+                
+                // Keep the rows this strip shares with the previous one
+                int keepFrom = Math.max(inFrom, needFrom);
+                int kept = Math.max(0, inTo - keepFrom);
+                if (kept > 0 && keepFrom > inFrom) {
+                    System.arraycopy(inData, (keepFrom - inFrom) * width, inData, 0, kept * width);
+                }
+                inFrom = needFrom;
+                inTo = needFrom + kept;
+                
+                // Decode only the rows not held yet
+                if (inTo < needTo) {
+                    try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.DECODE)) {
+                        source.read(inData, (inTo - inFrom) * width, inTo, needTo - inTo);
+                    }
+                    inTo = needTo;
+                }
+                
+                // Run the converter on the strip, addressed with image row numbers
+                try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.PROCESS)) {
+                    PixelBuffer src = PixelBuffer.window(inData, width, height, inFrom);
+                    Arrays.fill(outData, 0);
+                    PixelBuffer dst = PixelBuffer.window(outData, width, height, startY);
+                    image.processRowsInParallel(src, dst, startY, endY);
+                }
+                
+                try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.ENCODE)) {
+                    writer.writeRows(outData, 0, width, endY - startY);
+                }
+            }
+        } finally {
+            // Closing compresses and writes the rows still pending, so it is part of encoding
+            try (ConversionMetrics.Timer ignored = metrics.start(ConversionMetrics.Stage.ENCODE)) {
+                writer.close();
+            }
+        }
+    }
+    
+    /**
+     * Opens the writer for the output file, raw, pyramid or PNG depending on
+     * its name. A PNG or the tiles of a pyramid are written in the color type
+     * of the converter's {@link Converter#getOutputLayout output layout} for
+     * an unknown input.
+     * 
+     * @param outputFileName The path of the output file
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return A writer accepting the output rows from top to bottom
+     * @throws IOException If the output file cannot be created
+     */
+    private RowWriter openOutput(String outputFileName, int width, int height) throws IOException {
+        if (RawImage.isRawName(outputFileName)) {
+            return new RawImage.Writer(new File(outputFileName), width, height);
+        }
+        PixelLayout layout = converter.getOutputLayout(null);
+        if (TilePyramid.isPyramidName(outputFileName)) {
+            return new TilePyramid(new File(outputFileName), width, height, TilePyramid.DEFAULT_TILE_SIZE,
+                    layout.getColorType(), converter.getEngine());
+        }
+        return new PngWriter(new BufferedOutputStream(new FileOutputStream(outputFileName)), width, height,
+                layout.getColorType(), PngWriter.getDefaultLevel(), PngWriter.getDefaultFilter(), null);
+    }
+    
+    /**
+     * Supplies consecutive input rows, in order from the top of the image.
+     */
+    private interface RowSource {
+        
+        /**
+         * Reads the rows [firstRow, firstRow + rows) as packed ARGB values.
+         */
+        void read(int[] data, int offset, int firstRow, int rows) throws IOException;
+    }
+}
@@ -0,0 +1,427 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes an image as a Deep Zoom tile pyramid, for viewers such as
+ * OpenSeadragon that load only the tiles of the region and zoom level on
+ * screen instead of one huge PNG.
+ * The pyramid "image.dzi" consists of that XML descriptor and a directory
+ * "image_files" with one subdirectory per level, numbered from 0, a single
+ * pixel, up to the full image. Each level is the one above it halved,
+ * rounding up, by averaging blocks of 2x2 pixels, and is cut into PNG tiles
+ * of {@link #DEFAULT_TILE_SIZE} pixels square, named "column_row.png"; the
+ * tiles at the right and bottom edges are smaller.
+ * 
+ * The pyramid is built as the rows of the full image arrive, from top to
+ * bottom, so it is a {@link RowWriter} like a PNG file: a
+ * {@link StripProcessor} streams an image too large for memory straight into
+ * it. Every level holds only the one row of tiles being filled. Once a row
+ * of tiles is complete, its tiles are compressed in parallel on the
+ * {@link ParallelEngine}, each on one task, while its rows are halved into
+ * the level below; tiles of rows passed in whole by the caller are written
+ * from the caller's array without any copy. The descriptor is written last,
+ * by {@link #close()}, so a pyramid with a descriptor is complete.
+ */
+public class TilePyramid implements RowWriter {
+    
+    /**
+     * The default edge length of the tiles, in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    
+    /**
+     * The extension of the descriptor, which names the pyramid.
+     */
+    public static final String EXTENSION = ".dzi";
+    
+    /**
+     * Compresses each tile on the task writing it; the tiles already run in
+     * parallel and are too small to split further.
+     */
+    private static final ParallelEngine TILE_ENGINE = new ParallelEngine(1, ParallelEngine.DEFAULT_TILE_SIZE);
+    
+    /**
+     * The XML descriptor, written when the pyramid is complete.
+     */
+    private final File descriptor;
+    
+    /**
+     * The width and height of the full image.
+     */
+    private final int width;
+    private final int height;
+    
+    /**
+     * The edge length of the tiles.
+     */
+    private final int tileSize;
+    
+    /**
+     * The layout the tiles are stored in.
+     */
+    private final PngWriter.ColorType colorType;
+    
+    /**
+     * The engine writing the tiles and halving the levels.
+     */
+    private final ParallelEngine engine;
+    
+    /**
+     * The full-size level, which passes its rows on to the smaller ones.
+     */
+    private final Level top;
+    
+    /**
+     * The number of rows of the full image written so far.
+     */
+    private int rowsWritten;
+    
+    /**
+     * Starts an RGBA pyramid with the default tile size.
+     * 
+     * @param descriptor The descriptor file, ending in {@link #EXTENSION}
+     * @param width The width of the image
+     * @param height The height of the image
+     * @throws IOException If the tile directories cannot be created
+     */
+    public TilePyramid(File descriptor, int width, int height) throws IOException {
+        this(descriptor, width, height, DEFAULT_TILE_SIZE, PngWriter.ColorType.RGBA, null);
+    }
+    
+    /**
+     * Starts a pyramid by creating the directory of every level.
+     * 
+     * @param descriptor The descriptor file, ending in {@link #EXTENSION};
+     *                   the tiles go into a directory next to it
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param tileSize The edge length of the tiles, even, so that each row
+     *                 of tiles but the last halves into whole rows
+     * @param colorType The layout the tiles are stored in
+     * @param engine The engine writing the tiles, or null for the shared
+     *               default engine
+     * @throws IOException If the tile directories cannot be created
+     * @throws IllegalArgumentException If the image is empty or the tile
+     *         size is odd or less than 2
+     */
+    public TilePyramid(File descriptor, int width, int height, int tileSize,
+                       PngWriter.ColorType colorType, ParallelEngine engine) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Image must not be empty: " + width + "x" + height);
+        }
+        if (tileSize < 2 || tileSize % 2 != 0) {
+            throw new IllegalArgumentException("Tile size must be even and at least 2: " + tileSize);
+        }
+        this.descriptor = descriptor;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.colorType = colorType;
+        this.engine = engine != null ? engine : ParallelEngine.getDefault();
+        
+        // Level n is the image halved until neither side exceeds 2^n pixels
+        int levels = 1;
+        for (int size = Math.max(width, height); size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        File tiles = getTileDirectory(descriptor);
+        Level level = null;
+        for (int index = 0; index < levels; index++) {
+            int shift = levels - 1 - index;
+            File directory = new File(tiles, Integer.toString(index));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            level = new Level(directory, (int) (((long) width + (1L << shift) - 1) >> shift),
+                    (int) (((long) height + (1L << shift) - 1) >> shift), level);
+        }
+        this.top = level;
+    }
+    
+    /**
+     * Returns whether a file name names a pyramid, by its extension.
+     * 
+     * @param fileName The name to check
+     * @return True if the name ends in {@link #EXTENSION}, ignoring case
+     */
+    public static boolean isPyramidName(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+    
+    /**
+     * Returns the directory holding the tiles of a pyramid: the descriptor's
+     * name without the extension, followed by "_files".
+     * 
+     * @param descriptor The descriptor file
+     * @return The tile directory next to it
+     */
+    public static File getTileDirectory(File descriptor) {
+        String name = descriptor.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(descriptor.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + "_files");
+    }
+    
+    /**
+     * Writes a whole image as a pyramid, with the default tile size, in the
+     * color type {@link PngWriter#write(BufferedImage, File)} would choose.
+     * The tiles of the full-size level are written straight from the image's
+     * memory when it is packed ARGB or RGB.
+     * 
+     * @param img The image to write
+     * @param descriptor The descriptor file, ending in {@link #EXTENSION}
+     * @throws IOException If a tile or the descriptor cannot be written
+     */
+    public static void write(BufferedImage img, File descriptor) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        if (PixelLayout.of(img) == PixelLayout.GRAY) {
+            // Take the stored gray levels a row of tiles at a time; the
+            // tiles keep only the blue channel, which holds the level
+            try (TilePyramid pyramid = new TilePyramid(descriptor, width, height, DEFAULT_TILE_SIZE,
+                    PngWriter.ColorType.GRAY_PALETTE, null)) {
+                Raster raster = img.getRaster();
+                int stripRows = Math.min(height, DEFAULT_TILE_SIZE);
+                int[] samples = new int[stripRows * width];
+                for (int y = 0; y < height; y += stripRows) {
+                    int rows = Math.min(stripRows, height - y);
+                    raster.getSamples(0, y, width, rows, 0, samples);
+                    pyramid.writeRows(samples, 0, width, rows);
+                }
+            }
+            return;
+        }
+        PixelBuffer src = PixelBuffer.wrapOutput(img);
+        try (TilePyramid pyramid = new TilePyramid(descriptor, width, height, DEFAULT_TILE_SIZE,
+                PngWriter.colorTypeOf(img, src), null)) {
+            pyramid.writeRows(src.getData(), src.rowOffset(0), src.getStride(), height);
+        }
+    }
+    
+    /**
+     * Returns the number of levels, from the single pixel to the full image.
+     * 
+     * @return The number of levels
+     */
+    public int getLevels() {
+        return top.index + 1;
+    }
+    
+    /**
+     * Adds the next rows of the full image. Every row of tiles they complete,
+     * on any level, is written before this method returns.
+     * 
+     * @param pixels The array holding the packed ARGB rows
+     * @param offset The index of the first pixel of the first row
+     * @param stride The number of array elements between two rows
+     * @param rows The number of rows to write
+     * @throws IOException If a tile cannot be written
+     * @throws IllegalStateException If more rows are written than the image has
+     */
+    @Override
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("Image has only " + height + " rows");
+        }
+        rowsWritten += rows;
+        top.writeRows(pixels, offset, stride, rows);
+    }
+    
+    /**
+     * Completes the pyramid by writing its descriptor.
+     * 
+     * @throws IOException If the descriptor cannot be written
+     * @throws IllegalStateException If not every row has been written
+     */
+    @Override
+    public void close() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException(rowsWritten + " of " + height + " rows have been written");
+        }
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"png\" Overlap=\"0\""
+                + " TileSize=\"" + tileSize + "\">\n"
+                + "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+                + "</Image>\n";
+        Files.write(descriptor.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * One level of the pyramid, collecting its rows one row of tiles at a time.
+     */
+    private final class Level {
+        
+        /**
+         * The number of the level, 0 for the single pixel.
+         */
+        final int index;
+        
+        /**
+         * The directory of the level's tiles.
+         */
+        final File directory;
+        
+        /**
+         * The size of the level.
+         */
+        final int width;
+        final int height;
+        
+        /**
+         * The level half this size, or null for level 0.
+         */
+        final Level next;
+        
+        /**
+         * The rows of the row of tiles being filled, allocated when rows
+         * first have to be collected rather than written straight away.
+         */
+        int[] strip;
+        
+        /**
+         * The number of rows in the strip, and the level row of its first.
+         */
+        int stripRows;
+        int firstRow;
+        
+        Level(File directory, int width, int height, Level next) {
+            this.index = next != null ? next.index + 1 : 0;
+            this.directory = directory;
+            this.width = width;
+            this.height = height;
+            this.next = next;
+        }
+        
+        /**
+         * Returns the number of rows in the row of tiles being filled.
+         */
+        int stripHeight() {
+            return Math.min(tileSize, height - firstRow);
+        }
+        
+        /**
+         * Returns the strip, allocating it on first use.
+         */
+        int[] strip() {
+            if (strip == null) {
+                strip = new int[Math.min(tileSize, height) * width];
+            }
+            return strip;
+        }
+        
+        /**
+         * Adds the next rows of this level, writing every row of tiles they
+         * complete. Whole rows of tiles are taken straight from the caller's
+         * array; partial ones are collected in the strip.
+         */
+        void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+            while (rows > 0) {
+                int needed = stripHeight() - stripRows;
+                if (stripRows == 0 && rows >= needed) {
+                    writeStrip(pixels, offset, stride, needed);
+                } else {
+                    needed = Math.min(needed, rows);
+                    int[] strip = strip();
+                    for (int row = 0; row < needed; row++) {
+                        System.arraycopy(pixels, offset + row * stride, strip, (stripRows + row) * width, width);
+                    }
+                    stripRows += needed;
+                    if (stripRows == stripHeight()) {
+                        stripRows = 0;
+                        writeStrip(strip, 0, width, stripHeight());
+                    }
+                }
+                offset += needed * stride;
+                rows -= needed;
+            }
+        }
+        
+        /**
+         * Writes a complete row of tiles, and halves it into the strip of the
+         * next level while the tiles are being compressed.
+         */
+        void writeStrip(int[] pixels, int offset, int stride, int rows) throws IOException {
+            int tileRow = firstRow / tileSize;
+            List<Future<Void>> tiles = new ArrayList<>();
+            for (int x = 0, column = 0; x < width; x += tileSize, column++) {
+                int tileWidth = Math.min(tileSize, width - x);
+                File file = new File(directory, column + "_" + tileRow + ".png");
+                int tileOffset = offset + x;
+                tiles.add(engine.submit(() -> {
+                    try (PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(file)),
+                            tileWidth, rows, colorType, PngWriter.getDefaultLevel(),
+                            PngWriter.getDefaultFilter(), TILE_ENGINE)) {
+                        writer.writeRows(pixels, tileOffset, stride, rows);
+                    }
+                    return null;
+                }));
+            }
+            try {
+                if (next != null) {
+                    // Each row of tiles but the last has an even number of rows,
+                    // and fills exactly one half of the next level's strip
+                    int halfRows = (rows + 1) / 2;
+                    int[] half = next.strip();
+                    int halfOffset = next.stripRows * next.width;
+                    engine.invokeBands(halfRows, (startY, endY) -> {
+                        for (int y = startY; y < endY; y++) {
+                            Resize.halveRow(pixels, offset + 2 * y * stride,
+                                    offset + Math.min(2 * y + 1, rows - 1) * stride,
+                                    width, half, halfOffset + y * next.width);
+                        }
+                    });
+                    next.stripRows += halfRows;
+                    if (next.stripRows == next.stripHeight()) {
+                        next.stripRows = 0;
+                        next.writeStrip(half, 0, next.width, next.stripHeight());
+                    }
+                }
+            } finally {
+                // The rows may be overwritten once this returns
+                finish(tiles);
+            }
+            firstRow += rows;
+        }
+    }
+    
+    /**
+     * Waits for tiles being written and rethrows the first failure.
+     */
+    private static void finish(List<Future<Void>> tiles) throws IOException {
+        IOException failure = null;
+        for (Future<Void> tile : tiles) {
+            try {
+                tile.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing tiles");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                if (failure == null) {
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
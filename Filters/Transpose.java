@@ -0,0 +1,15 @@
+/**
+ * Mirrors images along their main diagonal, from the top left corner to the
+ * bottom right one.
+ * Output row y is input column y, so the dimensions are swapped. The result
+ * is the same as a clockwise rotation followed by a horizontal flip.
+ */
+public class Transpose extends GeometricTransform {
+    
+    /**
+     * Creates a transposition.
+     */
+    public Transpose() {
+        super(Orientation.TRANSPOSE);
+    }
+}
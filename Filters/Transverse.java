@@ -0,0 +1,16 @@
+/**
+ * Mirrors images along their anti-diagonal, from the top right corner to the
+ * bottom left one.
+ * Output row y is input column width - 1 - y read from the bottom up, so the
+ * dimensions are swapped. The result is the same as a clockwise rotation
+ * followed by a vertical flip.
+ */
+public class Transverse extends GeometricTransform {
+    
+    /**
+     * Creates a transverse reflection.
+     */
+    public Transverse() {
+        super(Orientation.TRANSVERSE);
+    }
+}
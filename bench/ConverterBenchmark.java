@@ -0,0 +1,486 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Measures how fast every converter runs, so that changes to a filter can be
+ * compared against a committed baseline.
+ * 
+ * These benchmarks are run:
+ * 
+ *   processImage  Each converter's processImage on in-memory images of every
+ *                 requested size (1, 12 and 48 megapixels) and input type
+ *                 (TYPE_INT_ARGB, TYPE_3BYTE_BGR and TYPE_BYTE_GRAY).
+ * 
+ *   allocation    Each converter's processRows on the calling thread, band by
+ *                 band as a parallel engine would run it, with the bytes the
+ *                 thread allocates in steady state counted by the HotSpot
+ *                 ThreadMXBean and reported per pixel. The filters keep their
+ *                 work arrays in {@link Scratch} space and do their pixel
+ *                 arithmetic with {@link Pixels}, so this should be zero, or
+ *                 a few bytes per band; --max-bytes-per-pixel makes the run
+ *                 fail when a converter allocates more.
+ * 
+ *   convert       The whole convert() path for each converter and size, with
+ *                 PNG decoding, processing and PNG encoding timed separately.
+ * 
+ *   decode        Decoding a PNG and a JPEG file of each size into packed ARGB
+ *                 pixels, with ImageIO.read followed by PixelBuffer.wrap and
+ *                 with PixelCraft's {@link ImageDecoder}.
+ * 
+ *   encode        PNG encoding of each size with ImageIO and with PixelCraft's
+ *                 parallel {@link PngWriter}, with the file sizes, so the two
+ *                 encoders can be compared on the same machine.
+ * 
+ * Every measurement is preceded by warmup iterations so the JIT has compiled
+ * the hot loops, and each result is folded into a checksum so the work
+ * cannot be optimized away. Results are written as JSON, one benchmark per
+ * line in a fixed order, so two result files can be compared with diff or
+ * with the --baseline option.
+ * 
+ * Usage:
+ *   java -cp classes:bench ConverterBenchmark [--sizes 1,12,48]
+ *       [--types INT_ARGB,3BYTE_BGR,BYTE_GRAY] [--converters Blur,Sepia,...]
+ *       [--warmup N] [--iterations N] [--output results.json]
+ *       [--baseline baseline.json] [--max-bytes-per-pixel 0.05]
+ * 
+ * The 48 megapixel images need a heap of about 2 GB (-Xmx2g).
+ */
+public class ConverterBenchmark {
+    
+    /**
+     * Every converter in the project.
+     */
+    private static final String[] ALL_CONVERTERS = {
+        "Blur", "Brighten", "EdgeDetection", "FlipHorizontal", "Glitch",
+        "Grayscale", "Invert", "Pixelate", "Resize", "Rotate", "Sepia"
+    };
+    
+    /**
+     * The input image types, by the names used on the command line.
+     */
+    private static final Map<String, Integer> IMAGE_TYPES = new LinkedHashMap<>();
+    static {
+        IMAGE_TYPES.put("INT_ARGB", BufferedImage.TYPE_INT_ARGB);
+        IMAGE_TYPES.put("3BYTE_BGR", BufferedImage.TYPE_3BYTE_BGR);
+        IMAGE_TYPES.put("BYTE_GRAY", BufferedImage.TYPE_BYTE_GRAY);
+    }
+    
+    /**
+     * Matches the fields of a result line written by {@link Result#toJson()}.
+     */
+    private static final Pattern RESULT_LINE = Pattern.compile(
+            "\"name\":\"([^\"]+)\".*\"meanMillis\":([0-9.]+)");
+    
+    /**
+     * The JVM's thread counters, for the allocation benchmark.
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    
+    /**
+     * Sink for checksums of the results, so the JIT cannot drop the work.
+     */
+    private static volatile long blackhole;
+    
+    /**
+     * One measured benchmark.
+     */
+    private static final class Result {
+        final String name;
+        final int iterations;
+        final double meanMillis;
+        final double minMillis;
+        final double megapixelsPerSecond;
+        final String extra;
+        
+        Result(String name, long[] nanos, long pixels, String extra) {
+            this.name = name;
+            this.iterations = nanos.length;
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            for (long time : nanos) {
+                total += time;
+                min = Math.min(min, time);
+            }
+            this.meanMillis = total / 1e6 / nanos.length;
+            this.minMillis = min / 1e6;
+            this.megapixelsPerSecond = pixels / 1e6 / (meanMillis / 1e3);
+            this.extra = extra;
+        }
+        
+        String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"name\":\"%s\",\"iterations\":%d,\"meanMillis\":%.3f,\"minMillis\":%.3f,\"megapixelsPerSecond\":%.2f%s}",
+                    name, iterations, meanMillis, minMillis, megapixelsPerSecond, extra);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = Arrays.asList(1, 12, 48);
+        List<String> types = new ArrayList<>(IMAGE_TYPES.keySet());
+        List<String> converters = Arrays.asList(ALL_CONVERTERS);
+        int warmup = 3;
+        int iterations = 5;
+        String output = "benchmark-results.json";
+        String baseline = null;
+        double maxBytesPerPixel = -1;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = new ArrayList<>();
+                    for (String size : value.split(",")) {
+                        sizes.add(Integer.parseInt(size));
+                    }
+                    break;
+                case "--types":
+                    types = Arrays.asList(value.split(","));
+                    break;
+                case "--converters":
+                    converters = Arrays.asList(value.split(","));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--output":
+                    output = value;
+                    break;
+                case "--baseline":
+                    baseline = value;
+                    break;
+                case "--max-bytes-per-pixel":
+                    maxBytesPerPixel = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        
+        List<Result> results = new ArrayList<>();
+        Map<String, Double> bytesPerPixel = new LinkedHashMap<>();
+        for (int megapixels : sizes) {
+            // 4:3 frames of roughly the requested number of pixels
+            int height = (int) Math.round(Math.sqrt(megapixels * 1e6 * 3 / 4));
+            int width = height * 4 / 3;
+            BufferedImage argb = createTestImage(width, height);
+            
+            for (String typeName : types) {
+                Integer type = IMAGE_TYPES.get(typeName);
+                if (type == null) {
+                    throw new IllegalArgumentException("Unknown image type: " + typeName);
+                }
+                BufferedImage input = convertType(argb, type);
+                for (String converterName : converters) {
+                    Converter converter = Pipeline.parse(converterName);
+                    String name = "processImage/" + converterName + "/" + megapixels + "MP/" + typeName;
+                    long[] nanos = new long[iterations];
+                    for (int i = -warmup; i < iterations; i++) {
+                        long start = System.nanoTime();
+                        BufferedImage result = converter.processImage(input);
+                        long time = System.nanoTime() - start;
+                        blackhole += result.getRGB(result.getWidth() / 2, result.getHeight() / 2);
+                        if (i >= 0) {
+                            nanos[i] = time;
+                        }
+                    }
+                    report(results, new Result(name, nanos, (long) width * height, ""));
+                }
+            }
+            
+            // Steady-state allocations of the row loops
+            for (String converterName : converters) {
+                report(results, benchmarkAllocation(Pipeline.parse(converterName), converterName, megapixels,
+                        argb, warmup, iterations, bytesPerPixel));
+            }
+            
+            // The two decoders on the same PNG and JPEG files
+            for (String format : new String[] {"png", "jpeg"}) {
+                File encoded = File.createTempFile("pixelcraft-bench", "." + format);
+                try {
+                    ImageIO.write(convertType(argb, BufferedImage.TYPE_3BYTE_BGR), format, encoded);
+                    report(results, benchmarkDecode("ImageIO", encoded, format, megapixels, warmup, iterations));
+                    report(results, benchmarkDecode("ImageDecoder", encoded, format, megapixels, warmup, iterations));
+                } finally {
+                    encoded.delete();
+                }
+            }
+            
+            // The two PNG encoders on the same opaque image
+            report(results, benchmarkEncode("ImageIO", argb, megapixels, warmup, iterations));
+            report(results, benchmarkEncode("PngWriter", argb, megapixels, warmup, iterations));
+            
+            // End-to-end conversion of a PNG file, stage by stage
+            File inputFile = File.createTempFile("pixelcraft-bench", ".png");
+            File outputFile = File.createTempFile("pixelcraft-bench-out", ".png");
+            try {
+                ImageIO.write(convertType(argb, BufferedImage.TYPE_3BYTE_BGR), "PNG", inputFile);
+                for (String converterName : converters) {
+                    report(results, benchmarkConvert(Pipeline.parse(converterName), converterName, megapixels,
+                            inputFile, outputFile, warmup, iterations));
+                }
+            } finally {
+                inputFile.delete();
+                outputFile.delete();
+            }
+        }
+        
+        // One result per line keeps the file easy to diff
+        try (PrintWriter out = new PrintWriter(output, "UTF-8")) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                out.println("  " + results.get(i).toJson() + (i < results.size() - 1 ? "," : ""));
+            }
+            out.println("]");
+        }
+        System.out.println("Wrote " + results.size() + " results to " + output);
+        
+        if (baseline != null) {
+            compare(results, baseline);
+        }
+        if (maxBytesPerPixel >= 0 && !checkAllocations(bytesPerPixel, maxBytesPerPixel)) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Runs a converter's processRows over an image in bands of the engine's
+     * tile size, all on the calling thread, and measures the time and the
+     * bytes allocated per pixel once warmed up. The output buffer is created
+     * once and reused, so only what the filter itself allocates is counted.
+     */
+    private static Result benchmarkAllocation(Converter converter, String converterName, int megapixels,
+                                              BufferedImage img, int warmup, int iterations,
+                                              Map<String, Double> bytesPerPixel) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer dst = converter.createOutput(src);
+        int height = dst.getHeight();
+        int band = converter.getEngine().getTileSize();
+        long pixels = (long) dst.getWidth() * height;
+        long[] nanos = new long[iterations];
+        long allocated = 0;
+        for (int i = -warmup; i < iterations; i++) {
+            long startBytes = currentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int y = 0; y < height; y += band) {
+                converter.processRows(src, dst, y, Math.min(y + band, height));
+            }
+            long time = System.nanoTime() - start;
+            long bytes = currentThreadAllocatedBytes() - startBytes;
+            blackhole += dst.getData()[dst.rowOffset(height / 2)];
+            if (i >= 0) {
+                nanos[i] = time;
+                allocated += bytes;
+            }
+        }
+        String name = "allocation/" + converterName + "/" + megapixels + "MP";
+        double perPixel = isAllocationCounted() ? (double) allocated / iterations / pixels : -1;
+        bytesPerPixel.put(name, perPixel);
+        return new Result(name, nanos, pixels, String.format(Locale.ROOT, ",\"bytesPerPixel\":%.4f", perPixel));
+    }
+    
+    /**
+     * Returns whether the JVM counts the bytes allocated by each thread.
+     */
+    private static boolean isAllocationCounted() {
+        return THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+    }
+    
+    /**
+     * Returns the bytes allocated by the calling thread so far, or 0 if the
+     * JVM does not count them.
+     */
+    private static long currentThreadAllocatedBytes() {
+        if (!isAllocationCounted()) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Prints the converters that allocated more than the limit per pixel.
+     * 
+     * @return True if none did
+     */
+    private static boolean checkAllocations(Map<String, Double> bytesPerPixel, double limit) {
+        boolean passed = true;
+        for (Map.Entry<String, Double> entry : bytesPerPixel.entrySet()) {
+            if (entry.getValue() < 0) {
+                System.out.println("Allocations are not counted by this JVM");
+                return false;
+            }
+            if (entry.getValue() > limit) {
+                System.out.printf(Locale.ROOT, "%-45s allocates %.4f bytes per pixel, more than %s%n",
+                        entry.getKey(), entry.getValue(), limit);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+    
+    /**
+     * Times the three stages of convert(): decoding the input file, processing
+     * the image and encoding the output file.
+     */
+    private static Result benchmarkConvert(Converter converter, String converterName, int megapixels,
+                                           File inputFile, File outputFile, int warmup, int iterations)
+            throws IOException {
+        long[] total = new long[iterations];
+        long decode = 0;
+        long process = 0;
+        long encode = 0;
+        long pixels = 0;
+        for (int i = -warmup; i < iterations; i++) {
+            long start = System.nanoTime();
+            BufferedImage img = ImageDecoder.getDefault().read(inputFile);
+            long decoded = System.nanoTime();
+            BufferedImage result = converter.processImage(img);
+            long processed = System.nanoTime();
+            PngWriter.write(result, outputFile);
+            long encoded = System.nanoTime();
+            pixels = (long) img.getWidth() * img.getHeight();
+            if (i >= 0) {
+                total[i] = encoded - start;
+                decode += decoded - start;
+                process += processed - decoded;
+                encode += encoded - processed;
+            }
+        }
+        String stages = String.format(Locale.ROOT,
+                ",\"decodeMillis\":%.3f,\"processMillis\":%.3f,\"encodeMillis\":%.3f",
+                decode / 1e6 / iterations, process / 1e6 / iterations, encode / 1e6 / iterations);
+        return new Result("convert/" + converterName + "/" + megapixels + "MP", total, pixels, stages);
+    }
+    
+    /**
+     * Times decoding an image file into a packed ARGB PixelBuffer with
+     * ImageIO or ImageDecoder.
+     */
+    private static Result benchmarkDecode(String decoder, File file, String format, int megapixels,
+                                          int warmup, int iterations) throws IOException {
+        long[] nanos = new long[iterations];
+        long pixels = 0;
+        for (int i = -warmup; i < iterations; i++) {
+            long start = System.nanoTime();
+            BufferedImage img = decoder.equals("ImageIO")
+                    ? ImageIO.read(file) : ImageDecoder.getDefault().read(file);
+            PixelBuffer pixelBuffer = PixelBuffer.wrap(img);
+            long time = System.nanoTime() - start;
+            blackhole += pixelBuffer.getData()[pixelBuffer.rowOffset(0)];
+            pixels = (long) img.getWidth() * img.getHeight();
+            if (i >= 0) {
+                nanos[i] = time;
+            }
+        }
+        return new Result("decode/" + decoder + "/" + format + "/" + megapixels + "MP", nanos, pixels, "");
+    }
+    
+    /**
+     * Times encoding an image as PNG into memory with ImageIO or PngWriter.
+     */
+    private static Result benchmarkEncode(String encoder, BufferedImage img, int megapixels,
+                                          int warmup, int iterations) throws IOException {
+        long[] nanos = new long[iterations];
+        int size = 0;
+        for (int i = -warmup; i < iterations; i++) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            if (encoder.equals("ImageIO")) {
+                ImageIO.write(img, "PNG", buffer);
+            } else {
+                PngWriter.write(img, buffer);
+            }
+            long time = System.nanoTime() - start;
+            size = buffer.size();
+            if (i >= 0) {
+                nanos[i] = time;
+            }
+        }
+        return new Result("encode/" + encoder + "/" + megapixels + "MP", nanos,
+                (long) img.getWidth() * img.getHeight(), ",\"bytes\":" + size);
+    }
+    
+    /**
+     * Adds a result and prints it, so progress is visible on long runs.
+     */
+    private static void report(List<Result> results, Result result) {
+        results.add(result);
+        System.out.printf(Locale.ROOT, "%-45s %10.3f ms %10.2f MP/s%n",
+                result.name, result.meanMillis, result.megapixelsPerSecond);
+    }
+    
+    /**
+     * Prints the change in mean time of every result relative to a baseline
+     * file written by an earlier run.
+     */
+    private static void compare(List<Result> results, String baseline) throws IOException {
+        Map<String, Double> before = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(new File(baseline).toPath(), StandardCharsets.UTF_8)) {
+            Matcher matcher = RESULT_LINE.matcher(line);
+            if (matcher.find()) {
+                before.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+            }
+        }
+        System.out.println("Change in mean time against " + baseline + " (negative is faster):");
+        for (Result result : results) {
+            Double previous = before.get(result.name);
+            if (previous != null && previous > 0) {
+                System.out.printf(Locale.ROOT, "%-45s %+8.1f%%%n",
+                        result.name, (result.meanMillis / previous - 1) * 100);
+            }
+        }
+    }
+    
+    /**
+     * Creates a deterministic test image with smooth gradients, hard edges and
+     * noise, so that no filter hits an unrealistically easy case.
+     */
+    private static BufferedImage createTestImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[width];
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = ((x / 64 + y / 64) & 1) * 160 + random.nextInt(96);
+                row[x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return img;
+    }
+    
+    /**
+     * Returns a copy of an image with a different BufferedImage type.
+     */
+    private static BufferedImage convertType(BufferedImage img, int type) {
+        BufferedImage copy = new BufferedImage(img.getWidth(), img.getHeight(), type);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage(img, 0, 0, null);
+        graphics.dispose();
+        return copy;
+    }
+}
@@ -0,0 +1,165 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * {@link ConversionEvents} that emit JDK Flight Recorder events: one
+ * {@code pixelcraft.Stage} event for every timed stage of a conversion, and
+ * one {@code pixelcraft.Band} or {@code pixelcraft.Tile} event for every band
+ * or tile a {@link ParallelEngine} runs. All are listed under "PixelCraft" in
+ * JDK Mission Control, and are enabled by the default recording settings.
+ * 
+ * This class is kept out of the main source directory because it needs the
+ * {@code jdk.jfr} module of Java 11 and later:
+ * 
+ *   javac -cp classes -d classes jfr/FlightRecorderEvents.java
+ *   java -XX:StartFlightRecording=filename=pixelcraft.jfr -cp classes PixelCraft Blur image.png
+ * 
+ * {@link ConversionEvents#getDefault()} loads it by name and falls back to
+ * reporting nothing if it is missing.
+ */
+public class FlightRecorderEvents extends ConversionEvents {
+    
+    /**
+     * One stage of one conversion.
+     */
+    @Name("pixelcraft.Stage")
+    @Label("Conversion Stage")
+    @Category("PixelCraft")
+    @Description("Decoding, processing or encoding of one image")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("Converter")
+        String converter;
+        
+        @Label("Stage")
+        String stage;
+        
+        @Label("Pixels")
+        long pixels;
+    }
+    
+    /**
+     * One band of rows run by a parallel engine.
+     */
+    @Name("pixelcraft.Band")
+    @Label("Band")
+    @Category("PixelCraft")
+    @Description("The rows [startY, endY) processed by one task")
+    @StackTrace(false)
+    static class BandEvent extends Event {
+        @Label("Start Row")
+        int startY;
+        
+        @Label("End Row")
+        int endY;
+    }
+    
+    /**
+     * One tile run by a parallel engine.
+     */
+    @Name("pixelcraft.Tile")
+    @Label("Tile")
+    @Category("PixelCraft")
+    @Description("The pixels [startX, endX) x [startY, endY) processed by one task")
+    @StackTrace(false)
+    static class TileEvent extends Event {
+        @Label("Start Column")
+        int startX;
+        
+        @Label("Start Row")
+        int startY;
+        
+        @Label("End Column")
+        int endX;
+        
+        @Label("End Row")
+        int endY;
+    }
+    
+    /**
+     * The band and tile event types, asked whether a recording enables them
+     * before a task is wrapped.
+     */
+    private static final EventType BANDS = EventType.getEventType(BandEvent.class);
+    private static final EventType TILES = EventType.getEventType(TileEvent.class);
+    
+    /**
+     * Creates the Flight Recorder events.
+     */
+    public FlightRecorderEvents() {
+    }
+    
+    @Override
+    public String toString() {
+        return "Flight Recorder events";
+    }
+    
+    @Override
+    public Object beginStage(ConversionMetrics.Stage stage) {
+        StageEvent event = new StageEvent();
+        event.begin();
+        return event;
+    }
+    
+    @Override
+    public void endStage(Object handle, ConversionMetrics.Stage stage, String converter, long pixels) {
+        StageEvent event = (StageEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.converter = converter;
+            event.stage = stage.toString();
+            event.pixels = pixels;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Bands are wrapped only while a recording enables their events, so
+     * engines run the plain task the rest of the time.
+     */
+    @Override
+    public ParallelEngine.BandTask recordBands(ParallelEngine.BandTask task) {
+        if (!BANDS.isEnabled()) {
+            return task;
+        }
+        return (startY, endY) -> {
+            BandEvent event = new BandEvent();
+            event.begin();
+            task.run(startY, endY);
+            event.end();
+            if (event.shouldCommit()) {
+                event.startY = startY;
+                event.endY = endY;
+                event.commit();
+            }
+        };
+    }
+    
+    /**
+     * Tiles are wrapped only while a recording enables their events.
+     */
+    @Override
+    public ParallelEngine.TileTask recordTiles(ParallelEngine.TileTask task) {
+        if (!TILES.isEnabled()) {
+            return task;
+        }
+        return (startX, startY, endX, endY) -> {
+            TileEvent event = new TileEvent();
+            event.begin();
+            task.run(startX, startY, endX, endY);
+            event.end();
+            if (event.shouldCommit()) {
+                event.startX = startX;
+                event.startY = startY;
+                event.endX = endX;
+                event.endY = endY;
+                event.commit();
+            }
+        };
+    }
+}
@@ -1,5 +1,7 @@
+ import java.io.File;
  import java.io.IOException;
- import java.lang.reflect.InvocationTargetException;
+ import java.util.List;
+ import java.util.Map;
 
  public class PixelCraft {
      /**
@@ -12,27 +14,266 @@
          return inputFileName.substring(0, dotIndex) + "_" + converterName + inputFileName.substring(dotIndex);
      }
      public static void main(String[] args) {
+         // Consume leading options such as "--threads 8" or "--tile-size 128"
+         int argIndex = 0;
+         int threads = -1;
+         int tileSize = -1;
+         boolean batch = false;
+         int decodeThreads = BatchProcessor.DEFAULT_DECODE_THREADS;
+         int processThreads = BatchProcessor.DEFAULT_PROCESS_THREADS;
+         int encodeThreads = BatchProcessor.DEFAULT_ENCODE_THREADS;
+         int maxInFlight = 0;
+         int stripHeight = 0;
+         String format = null;
+         boolean serve = false;
+         boolean printMetrics = false;
+         int port = ImageServer.DEFAULT_PORT;
+         int maxConcurrent = Runtime.getRuntime().availableProcessors();
+         File cacheDir = null;
+         long cacheMemory = -1;
+         long cacheDisk = ResultCache.DEFAULT_DISK_LIMIT;
+         int[] blockSizes = null;
+         int[] widths = null;
+         Long seed = null;
+         int frames = 0;
+         int frameDelay = AnimationWriter.DEFAULT_FRAME_DELAY;
+         while (argIndex < args.length && args[argIndex].startsWith("--")) {
+             String option = args[argIndex];
+             // Flags without a value
+             if (option.equals("--batch") || option.equals("--serve") || option.equals("--metrics")) {
+                 batch |= option.equals("--batch");
+                 serve |= option.equals("--serve");
+                 // Print the time and allocations of every stage as JSON
+                 printMetrics |= option.equals("--metrics");
+                 argIndex++;
+                 continue;
+             }
+             if (argIndex == args.length - 1) {
+                 System.out.println("Missing value for option: " + option);
+                 System.exit(1);
+             }
+             String value = args[argIndex + 1];
+             if (option.equals("--threads")) {
+                 threads = Integer.parseInt(value);
+             } else if (option.equals("--tile-size")) {
+                 tileSize = Integer.parseInt(value);
+             } else if (option.equals("--decode-threads")) {
+                 decodeThreads = Integer.parseInt(value);
+             } else if (option.equals("--process-threads")) {
+                 processThreads = Integer.parseInt(value);
+             } else if (option.equals("--encode-threads")) {
+                 encodeThreads = Integer.parseInt(value);
+             } else if (option.equals("--max-in-flight")) {
+                 maxInFlight = Integer.parseInt(value);
+             } else if (option.equals("--format")) {
+                 // "png", "argb" for the uncompressed raw format or "dzi" for a tile pyramid
+                 format = value;
+             } else if (option.equals("--strip-height")) {
+                 stripHeight = Integer.parseInt(value);
+             } else if (option.equals("--port")) {
+                 port = Integer.parseInt(value);
+             } else if (option.equals("--max-concurrent")) {
+                 maxConcurrent = Integer.parseInt(value);
+             } else if (option.equals("--png-level")) {
+                 // Deflate level of PNG output, 0 (fastest) to 9 (smallest)
+                 PngWriter.setDefaultLevel(Integer.parseInt(value));
+             } else if (option.equals("--png-filter")) {
+                 // none, sub, up, average, paeth or adaptive
+                 PngWriter.setDefaultFilter(PngWriter.FilterStrategy.parse(value));
+             } else if (option.equals("--block-size")) {
+                 // Pixelate block sizes; several, e.g. "4,8,16,32", write one file each
+                 String[] sizes = value.split(",");
+                 blockSizes = new int[sizes.length];
+                 for (int i = 0; i < sizes.length; i++) {
+                     blockSizes[i] = Integer.parseInt(sizes[i].trim());
+                 }
+             } else if (option.equals("--width")) {
+                 // Resize widths; several, e.g. "1600,800,400", write one file each
+                 String[] sizes = value.split(",");
+                 widths = new int[sizes.length];
+                 for (int i = 0; i < sizes.length; i++) {
+                     widths[i] = Integer.parseInt(sizes[i].trim());
+                 }
+             } else if (option.equals("--seed")) {
+                 // Glitch seed, for reproducible output
+                 seed = Long.parseLong(value);
+             } else if (option.equals("--frames")) {
+                 // Glitch animation frames, written as APNG or, with "--format gif", GIF
+                 frames = Integer.parseInt(value);
+             } else if (option.equals("--frame-delay")) {
+                 // Milliseconds each animation frame is shown
+                 frameDelay = Integer.parseInt(value);
+             } else if (option.equals("--cache-dir")) {
+                 cacheDir = new File(value);
+             } else if (option.equals("--cache-memory")) {
+                 // Sizes are given in megabytes
+                 cacheMemory = Long.parseLong(value) << 20;
+             } else if (option.equals("--cache-disk")) {
+                 cacheDisk = Long.parseLong(value) << 20;
+             } else {
+                 System.out.println("Unknown option: " + option);
+                 System.exit(1);
+             }
+             argIndex += 2;
+         }
+         if (threads > 0 || tileSize > 0) {
+             // Options override the defaults taken from the system properties
+             ParallelEngine defaults = ParallelEngine.getDefault();
+             ParallelEngine.setDefault(new ParallelEngine(
+                     threads > 0 ? threads : defaults.getThreads(),
+                     tileSize > 0 ? tileSize : defaults.getTileSize()));
+         }
+         ResultCache cache = null;
+         if (cacheDir != null || cacheMemory > 0) {
+             try {
+                 cache = new ResultCache(cacheMemory >= 0 ? cacheMemory : ResultCache.DEFAULT_MEMORY_LIMIT,
+                         cacheDir, cacheDisk);
+             } catch (IOException e) {
+                 System.out.println("Error: " + e.getMessage());
+                 System.exit(1);
+             }
+         }
+         if (serve) {
+             runServer(port, maxConcurrent, cache);
+             return;
+         }
+         if (batch) {
+             runBatch(args, argIndex, decodeThreads, processThreads, encodeThreads, maxInFlight, printMetrics);
+             return;
+         }
          // Ensure that a converter name and a filename has been provided
-         if (args.length < 2) {
-             System.out.println("Usage: java -cp \"path/to/classes\" PixelCraft <ConverterName/GrayScale/Warmer/etc> <image_file.png>");
+         if (args.length - argIndex < 2) {
+             System.out.println("Usage: java -cp \"path/to/classes\" PixelCraft [--threads N] [--tile-size N] [--strip-height N] [--format png/argb/dzi] [--png-level 0-9] [--png-filter NAME] [--block-size N[,N...]] [--width N[,N...]] [--seed N] [--frames N] [--frame-delay MS] [--cache-dir DIR] [--cache-disk MB] [--metrics] <ConverterName/GrayScale/Warmer/etc>[+<ConverterName>...] <image_file.png>");
+             System.out.println("       java -cp \"path/to/classes\" PixelCraft --serve [--port N] [--max-concurrent N] [--cache-memory MB] [--cache-dir DIR] [--cache-disk MB]");
              System.exit(1);
          }
-         String converterName = args[0];
-         String inputFileName = args[1];
+         String converterName = args[argIndex];
+         String inputFileName = args[argIndex + 1];
          String outputFileName = getOutputFilename(inputFileName, converterName);
+         if (format != null) {
+             outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf(".") + 1) + format;
+         }
          try {
-             // Create an object of the class named 'converterName'
-             // Read this link for more info about Java Reflection: https://www.oracle.com/technical-resources/articles/java/javareflection.html
+             // Create an object of the class named 'converterName', or a pipeline
+             // of several converters when names are joined with '+' (e.g. "Grayscale+Blur")
              // Java reflection is NOT required knowledge for this course. 
-             Class<?> clazz = Class.forName(converterName);
-             Converter converter = (Converter) clazz.getDeclaredConstructor().newInstance();
-             // The class named 'converterName' must be a subclass of 'Converter'
-             // Call the convert method
-             converter.convert(inputFileName, outputFileName);
-        } catch  (IOException | NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException | ClassNotFoundException e) {
-
+             Converter converter = Pipeline.parse(converterName);
+             if (blockSizes != null) {
+                 if (!converterName.equals("Pixelate")) {
+                     System.out.println("--block-size only applies to Pixelate");
+                     System.exit(1);
+                 }
+                 if (blockSizes.length > 1) {
+                     // All sizes from one decode and one summed-area table
+                     String[] outputFileNames = new String[blockSizes.length];
+                     for (int i = 0; i < blockSizes.length; i++) {
+                         outputFileNames[i] = outputFileName.replace("_Pixelate.", "_Pixelate" + blockSizes[i] + ".");
+                     }
+                     new Pixelate().convert(inputFileName, blockSizes, outputFileNames);
+                     return;
+                 }
+                 converter = new Pixelate(blockSizes[0]);
+             }
+             if (widths != null) {
+                 if (!converterName.equals("Resize")) {
+                     System.out.println("--width only applies to Resize");
+                     System.exit(1);
+                 }
+                 if (widths.length > 1) {
+                     // All widths from one decode, through successively halved levels
+                     String[] outputFileNames = new String[widths.length];
+                     for (int i = 0; i < widths.length; i++) {
+                         outputFileNames[i] = outputFileName.replace("_Resize.", "_Resize" + widths[i] + ".");
+                     }
+                     new Resize().convert(inputFileName, widths, outputFileNames);
+                     return;
+                 }
+                 converter = new Resize(widths[0]);
+             }
+             if (seed != null || frames > 0) {
+                 if (!converterName.equals("Glitch")) {
+                     System.out.println("--seed and --frames only apply to Glitch");
+                     System.exit(1);
+                 }
+                 Glitch glitch = seed != null ? new Glitch(seed) : new Glitch();
+                 if (frames > 0) {
+                     // All frames from one decode, encoded as they are produced
+                     glitch.convertAnimated(inputFileName, outputFileName, frames, frameDelay);
+                     return;
+                 }
+                 converter = glitch;
+             }
+             ConversionMetrics metrics = new ConversionMetrics(converterName);
+             if (stripHeight > 0) {
+                 // Stream images too large for memory through the converter in strips
+                 new StripProcessor(converter, stripHeight).convert(inputFileName, outputFileName, metrics);
+             } else if (cache != null) {
+                 // Copy the result of an identical earlier conversion if there is one
+                 if (cache.convert(converter, inputFileName, outputFileName, metrics)) {
+                     System.out.println("Cached result: " + outputFileName);
+                 }
+             } else {
+                 // Call the convert method
+                 converter.convert(inputFileName, outputFileName, metrics);
+             }
+             if (printMetrics) {
+                 System.out.println(metrics.toJson());
+             }
+        } catch  (IOException | ReflectiveOperationException | UnsupportedOperationException | IllegalArgumentException e) {
+             
              System.out.println("Error: " + e.getMessage());
              e.printStackTrace(); // Uncomment this line for debugging. Comment for production.
          }
      }
+     /**
+      * Converts a whole directory, or every file named in a list file, with a
+      * single converter and writes the PNG results to an output directory.
+      */
+     static void runBatch(String[] args, int argIndex, int decodeThreads, int processThreads,
+                          int encodeThreads, int maxInFlight, boolean printMetrics) {
+         if (args.length - argIndex < 3) {
+             System.out.println("Usage: java -cp \"path/to/classes\" PixelCraft --batch [--decode-threads N] [--process-threads N] [--encode-threads N] [--max-in-flight N] [--metrics] <ConverterName>[+<ConverterName>...] <input_dir/file_list.txt> <output_dir>");
+             System.exit(1);
+         }
+         try {
+             Converter converter = Pipeline.parse(args[argIndex]);
+             List<File> inputs = BatchProcessor.listInputs(new File(args[argIndex + 1]));
+             BatchProcessor processor = new BatchProcessor(converter, decodeThreads, processThreads,
+                     encodeThreads, maxInFlight);
+             BatchProcessor.Report report = processor.run(inputs, new File(args[argIndex + 2]));
+             for (Map.Entry<File, Throwable> failure : report.getFailures().entrySet()) {
+                 System.out.println("Error: " + failure.getKey() + ": " + failure.getValue());
+             }
+             System.out.printf("Converted %d of %d images in %.1f s%n", report.getSucceeded(),
+                     inputs.size(), report.getElapsedNanos() / 1e9);
+             // Decoding throughput per input format
+             System.out.print(ImageDecoder.getDefault());
+             if (printMetrics) {
+                 System.out.println(report.getMetrics().toJson());
+             }
+             if (!report.getFailures().isEmpty()) {
+                 System.exit(1);
+             }
+         } catch (IOException | ReflectiveOperationException | InterruptedException e) {
+             System.out.println("Error: " + e.getMessage());
+             System.exit(1);
+         }
+     }
+     /**
+      * Serves conversions over HTTP on the loopback interface until the
+      * process is stopped, answering repeated conversions from the cache if
+      * one is given.
+      */
+     static void runServer(int port, int maxConcurrent, ResultCache cache) {
+         try {
+             ImageServer server = new ImageServer(port, maxConcurrent);
+             server.setCache(cache);
+             server.start();
+             System.out.println("Listening on http://localhost:" + server.getPort()
+                     + "/convert/<ConverterName>[+<ConverterName>...] (stats at /stats)");
+         } catch (IOException e) {
+             System.out.println("Error: " + e.getMessage());
+             System.exit(1);
+         }
+     }
  }
@@ -0,0 +1,211 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the {@link PixelKernels}, written with the incubating
+ * Vector API.
+ * Each loop loads as many packed ARGB pixels as fit in the CPU's preferred
+ * vector width (8 with AVX2, 16 with AVX-512), unpacks every channel into its
+ * own vector with shifts and masks, computes all lanes at once and packs the
+ * result back. The pixels left over at the end of a row are handled by the
+ * scalar code of the superclass.
+ * 
+ * This class is kept out of the main source directory because it only
+ * compiles and runs with the incubator module added:
+ * 
+ *   javac --add-modules jdk.incubator.vector -cp classes -d classes simd/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector -cp classes PixelCraft ...
+ * 
+ * {@link PixelKernels#getDefault()} loads it by name and falls back to the
+ * scalar kernels if it is missing or the module is not available.
+ */
+public class VectorKernels extends PixelKernels {
+    
+    /**
+     * Vectors of packed pixels in the widest shape the CPU supports.
+     */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    
+    /**
+     * Multiplying a sum of three channels (at most 765) by this and shifting
+     * right by 16 divides it by 3 exactly, without a vector division.
+     */
+    private static final int DIVIDE_BY_3 = 21846;
+    
+    /**
+     * The sepia matrix of {@link PixelKernels#sepia}, row by row, scaled by
+     * 65536 and rounded.
+     */
+    private static final int[] SEPIA = {
+        25756, 50397, 12386,
+        22872, 44958, 11010,
+        17826, 34996, 8585,
+    };
+    
+    /**
+     * Creates the vector kernels. Touching the species here makes a JVM
+     * without the Vector API fail now, inside {@link PixelKernels#getDefault()},
+     * rather than in the middle of a filter.
+     */
+    public VectorKernels() {
+        if (INTS.length() < 4) {
+            throw new IllegalStateException("No useful vector shape: " + INTS);
+        }
+    }
+    
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+    
+    @Override
+    public String toString() {
+        return "vector " + INTS.vectorBitSize() + "-bit, " + INTS.length() + " lanes";
+    }
+    
+    /**
+     * Extracts one 8-bit channel from every lane.
+     */
+    private static IntVector channel(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+    
+    @Override
+    public void grayscale(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        int lanes = INTS.length();
+        int i = 0;
+        for (; i <= length - lanes; i += lanes) {
+            IntVector pixels = IntVector.fromArray(INTS, in, inOffset + i);
+            IntVector sum = channel(pixels, 16).add(channel(pixels, 8)).add(pixels.and(0xff));
+            IntVector gray = sum.mul(DIVIDE_BY_3).lanewise(VectorOperators.LSHR, 16);
+            pixels.and(0xff000000).or(gray.mul(0x010101)).intoArray(out, outOffset + i);
+        }
+        super.grayscale(in, inOffset + i, out, outOffset + i, length - i);
+    }
+    
+    /**
+     * The sepia matrix is evaluated in 16-bit fixed point, with integer
+     * lanes only; converting lanes between ints and floats is slow in this
+     * API. The scaled coefficients differ from the exact ones by at most
+     * 1/131072 each, so the truncated channel differs from the scalar double
+     * computation by 1 only when the exact value is within 0.006 of an
+     * integer.
+     */
+    @Override
+    public void sepia(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        int lanes = INTS.length();
+        int i = 0;
+        for (; i <= length - lanes; i += lanes) {
+            IntVector pixels = IntVector.fromArray(INTS, in, inOffset + i);
+            IntVector red = channel(pixels, 16);
+            IntVector green = channel(pixels, 8);
+            IntVector blue = pixels.and(0xff);
+            
+            IntVector newRed = toChannel(red, green, blue, SEPIA[0], SEPIA[1], SEPIA[2]);
+            IntVector newGreen = toChannel(red, green, blue, SEPIA[3], SEPIA[4], SEPIA[5]);
+            IntVector newBlue = toChannel(red, green, blue, SEPIA[6], SEPIA[7], SEPIA[8]);
+            
+            pixels.and(0xff000000)
+                    .or(newRed.lanewise(VectorOperators.LSHL, 16))
+                    .or(newGreen.lanewise(VectorOperators.LSHL, 8))
+                    .or(newBlue)
+                    .intoArray(out, outOffset + i);
+        }
+        super.sepia(in, inOffset + i, out, outOffset + i, length - i);
+    }
+    
+    /**
+     * Computes one row of the sepia matrix in fixed point, truncates it like
+     * a Java cast and clamps it at 255.
+     */
+    private static IntVector toChannel(IntVector red, IntVector green, IntVector blue, int r, int g, int b) {
+        return red.mul(r).add(green.mul(g)).add(blue.mul(b)).lanewise(VectorOperators.LSHR, 16).min(255);
+    }
+    
+    /**
+     * Table lookups have no SIMD form in this API, but the tables of most
+     * channel filters are clamped additions, which are computed directly.
+     */
+    @Override
+    public void affine(int[] scale, int[] offset, int[] table,
+                       int[] in, int inOffset, int[] out, int outOffset, int length) {
+        int lanes = INTS.length();
+        int i = 0;
+        for (; i <= length - lanes; i += lanes) {
+            IntVector pixels = IntVector.fromArray(INTS, in, inOffset + i);
+            IntVector result = IntVector.zero(INTS);
+            for (int channel = 0; channel < 4; channel++) {
+                IntVector value = channel(pixels, 8 * channel);
+                value = scale[channel] < 0 ? value.neg() : value;
+                value = value.add(offset[channel]).max(0).min(255);
+                result = result.or(value.lanewise(VectorOperators.LSHL, 8 * channel));
+            }
+            result.intoArray(out, outOffset + i);
+        }
+        super.lookup(table, in, inOffset + i, out, outOffset + i, length - i);
+    }
+    
+    @Override
+    public void luma(int[] pixels, int offset, int[] luma, int width) {
+        int lanes = INTS.length();
+        int x = 0;
+        for (; x <= width - lanes; x += lanes) {
+            IntVector vector = IntVector.fromArray(INTS, pixels, offset + x);
+            IntVector sum = channel(vector, 16).add(channel(vector, 8)).add(vector.and(0xff));
+            sum.mul(DIVIDE_BY_3).lanewise(VectorOperators.LSHR, 16).intoArray(luma, x);
+        }
+        for (; x < width; x++) {
+            luma[x] = Pixels.luma(pixels[offset + x]);
+        }
+    }
+    
+    /**
+     * The exact magnitude is the integer square root of the sum of squares,
+     * found bit by bit with integer lanes only; converting lanes to floats and
+     * back is slow in this API. Only 8 bits are needed since the magnitude is
+     * clamped at 255, and the result is exactly the truncated double square
+     * root of the scalar kernel.
+     */
+    @Override
+    public void sobel(int[] above, int[] row, int[] below, int[] out, int outOffset,
+                      int from, int to, boolean exact) {
+        int lanes = INTS.length();
+        int x = from;
+        for (; x <= to - lanes; x += lanes) {
+            IntVector aboveLeft = IntVector.fromArray(INTS, above, x - 1);
+            IntVector aboveRight = IntVector.fromArray(INTS, above, x + 1);
+            IntVector belowLeft = IntVector.fromArray(INTS, below, x - 1);
+            IntVector belowRight = IntVector.fromArray(INTS, below, x + 1);
+            IntVector aboveSides = aboveLeft.add(aboveRight);
+            IntVector belowSides = belowLeft.add(belowRight);
+            
+            IntVector gx = aboveRight.add(IntVector.fromArray(INTS, row, x + 1).mul(2)).add(belowRight)
+                    .sub(aboveLeft.add(IntVector.fromArray(INTS, row, x - 1).mul(2)).add(belowLeft));
+            IntVector gy = belowSides.add(IntVector.fromArray(INTS, below, x).mul(2))
+                    .sub(aboveSides.add(IntVector.fromArray(INTS, above, x).mul(2)));
+            
+            IntVector edge;
+            if (exact) {
+                edge = sqrt255(gx.mul(gx).add(gy.mul(gy)));
+            } else {
+                edge = gx.abs().add(gy.abs()).min(255);
+            }
+            edge.mul(0x010101).or(0xff000000).intoArray(out, outOffset + x);
+        }
+        super.sobel(above, row, below, out, outOffset, x, to, exact);
+    }
+    
+    /**
+     * Computes min(255, floor(sqrt(n))) in every lane by deciding the 8 bits
+     * of the result from the highest down.
+     */
+    private static IntVector sqrt255(IntVector n) {
+        IntVector root = IntVector.zero(INTS);
+        for (int bit = 128; bit > 0; bit >>= 1) {
+            IntVector candidate = root.or(bit);
+            root = root.blend(candidate, candidate.mul(candidate).compare(VectorOperators.LE, n));
+        }
+        return root;
+    }
+}